@@ -0,0 +1,222 @@
+#!/usr/bin/env python3
+'''
+parity.py - compare the java and python urlcanon implementations
+
+Streams a corpus of urls through the java port (ParityWorker) and the python
+reference implementation in parallel. For each canonicalizer (whatwg,
+semantic_precise, semantic, aggressive) compares the canonicalized url, its
+surt and its ssurt, then reports mismatch counts, example mismatches and the
+throughput of each implementation side by side.
+
+Build the benchmarks jar first (see README.rst), then for example:
+
+    python3 benchmarks/parity.py --generate 1000000 --seed 42
+    python3 benchmarks/parity.py --corpus urls.txt --examples 50
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+'''
+import argparse
+import collections
+import os
+import queue
+import subprocess
+import sys
+import threading
+import time
+
+BENCHMARKS_DIR = os.path.dirname(os.path.abspath(__file__))
+PYTHON_SRC_DIR = os.path.join(os.path.dirname(BENCHMARKS_DIR), 'python')
+DEFAULT_JAR = os.path.join(BENCHMARKS_DIR, 'target', 'benchmarks.jar')
+
+CANONICALIZERS = ['whatwg', 'semantic_precise', 'semantic', 'aggressive']
+FIELDS = ['%s %s' % (canon, form) for canon in CANONICALIZERS
+          for form in ('url', 'surt', 'ssurt')]
+
+def worker():
+    '''
+    Python side: same input and output format as ParityWorker.java.
+    '''
+    import urlcanon
+    canonicalizers = [getattr(urlcanon, name) for name in CANONICALIZERS]
+    out = sys.stdout.buffer
+    count = 0
+    elapsed = 0.0
+    for line in sys.stdin.buffer:
+        line = line[:-1] if line.endswith(b'\n') else line
+        start = time.perf_counter()
+        fields = []
+        for canonicalizer in canonicalizers:
+            try:
+                url = urlcanon.parse_url(line)
+                canonicalizer(url)
+                fields.extend((bytes(url), url.surt(), url.ssurt()))
+            except Exception as e:
+                error = ('!' + type(e).__name__).encode('ascii')
+                fields.extend((error, error, error))
+        elapsed += time.perf_counter() - start
+        count += 1
+        out.write(b'\t'.join(fields) + b'\n')
+    out.flush()
+    sys.stderr.write('python: %d urls in %.3f s\n' % (count, elapsed))
+
+def start_workers(args):
+    java = subprocess.Popen(
+            ['java', '-cp', args.jar,
+             'org.netpreserve.urlcanon.benchmarks.ParityWorker'],
+            stdin=subprocess.PIPE, stdout=subprocess.PIPE,
+            stderr=subprocess.PIPE)
+    env = dict(os.environ)
+    env['PYTHONPATH'] = os.pathsep.join(
+            p for p in (PYTHON_SRC_DIR, env.get('PYTHONPATH')) if p)
+    python = subprocess.Popen(
+            [args.python, os.path.abspath(__file__), '--worker'],
+            stdin=subprocess.PIPE, stdout=subprocess.PIPE,
+            stderr=subprocess.PIPE, env=env)
+    return java, python
+
+def open_corpus(args):
+    if args.corpus:
+        return open(args.corpus, 'rb'), None
+    generator = subprocess.Popen(
+            ['java', '-cp', args.jar,
+             'org.netpreserve.urlcanon.UrlCorpusGenerator',
+             str(args.generate), str(args.seed)],
+            stdout=subprocess.PIPE)
+    return generator.stdout, generator
+
+def feed(corpus, workers):
+    try:
+        for line in corpus:
+            if not line.endswith(b'\n'):
+                line += b'\n'
+            for w in workers:
+                w.stdin.write(line)
+    finally:
+        for w in workers:
+            w.stdin.close()
+
+def read_lines(stream, q):
+    for line in stream:
+        q.put(line)
+    q.put(None)
+
+def start_thread(target, *args):
+    thread = threading.Thread(target=target, args=args)
+    thread.daemon = True
+    thread.start()
+    return thread
+
+def compare(args):
+    corpus, generator = open_corpus(args)
+    java, python = start_workers(args)
+    start = time.time()
+
+    # feeding both workers in lockstep bounds how far either can get ahead,
+    # so the output queues stay small
+    start_thread(feed, corpus, [java, python])
+    java_q = queue.Queue()
+    python_q = queue.Queue()
+    start_thread(read_lines, java.stdout, java_q)
+    start_thread(read_lines, python.stdout, python_q)
+    stderr = {}
+    stderr_threads = [
+            start_thread(lambda n, s: stderr.__setitem__(n, s.read()), n, w.stderr)
+            for n, w in (('java', java), ('python', python))]
+
+    total = 0
+    mismatched_urls = 0
+    mismatches = collections.Counter()
+    examples = []
+    while True:
+        j = java_q.get()
+        p = python_q.get()
+        if j is None or p is None:
+            if j is not None or p is not None:
+                sys.stderr.write('error: workers produced different numbers of results\n')
+            break
+        total += 1
+        if j == p:
+            continue
+        mismatched_urls += 1
+        j_fields = j.rstrip(b'\n').split(b'\t')
+        p_fields = p.rstrip(b'\n').split(b'\t')
+        for i, field in enumerate(FIELDS):
+            j_value = j_fields[i] if i < len(j_fields) else None
+            p_value = p_fields[i] if i < len(p_fields) else None
+            if j_value != p_value:
+                mismatches[field] += 1
+                if len(examples) < args.examples:
+                    examples.append((total, field, j_value, p_value))
+
+    java.wait()
+    python.wait()
+    if generator:
+        generator.wait()
+    for thread in stderr_threads:
+        thread.join()
+    wall = time.time() - start
+
+    print('%d urls compared in %.1f s, %d with mismatches' % (
+        total, wall, mismatched_urls))
+    print()
+    print('%-24s %12s' % ('field', 'mismatches'))
+    for field in FIELDS:
+        print('%-24s %12d' % (field, mismatches[field]))
+    print()
+    print('%-8s %14s %12s' % ('impl', 'cpu seconds', 'urls/s'))
+    for name in ('java', 'python'):
+        output = stderr.get(name, b'').decode('utf-8', 'replace')
+        timing = [l for l in output.splitlines() if l.startswith(name + ':')]
+        if timing:
+            # "<name>: <count> urls in <seconds> s"
+            words = timing[-1].split()
+            count, seconds = int(words[1]), float(words[4])
+            print('%-8s %14.3f %12.0f' % (
+                name, seconds, count / seconds if seconds else 0))
+        else:
+            print('%-8s failed:\n%s' % (name, output))
+    if examples:
+        print()
+        print('examples:')
+        for line_no, field, j_value, p_value in examples:
+            print('line %d %s' % (line_no, field))
+            print('    java:   %r' % j_value)
+            print('    python: %r' % p_value)
+    return 1 if mismatched_urls or java.returncode or python.returncode else 0
+
+def main():
+    parser = argparse.ArgumentParser(
+            description='compare the java and python urlcanon implementations')
+    source = parser.add_mutually_exclusive_group()
+    source.add_argument('--corpus', help='file of urls, one per line')
+    source.add_argument(
+            '--generate', type=int, default=100000, metavar='N',
+            help='generate N urls with UrlCorpusGenerator (default 100000)')
+    parser.add_argument('--seed', type=int, default=0,
+                        help='seed for --generate (default 0)')
+    parser.add_argument('--jar', default=DEFAULT_JAR,
+                        help='benchmarks jar (default %(default)s)')
+    parser.add_argument('--python', default=sys.executable,
+                        help='python interpreter for the python side')
+    parser.add_argument('--examples', type=int, default=20,
+                        help='number of example mismatches to show')
+    parser.add_argument('--worker', action='store_true',
+                        help=argparse.SUPPRESS)
+    args = parser.parse_args()
+    if args.worker:
+        worker()
+    else:
+        sys.exit(compare(args))
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,66 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.CachingCanonicalizer;
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Canonicalizes a repetitive stream of urls, as in crawl logs, with and
+ * without a {@link CachingCanonicalizer}. The stream draws from the corpus
+ * with a skew towards its first urls, so that some recur often and most
+ * rarely. The cache is shared by the benchmark threads.
+ */
+@State(Scope.Benchmark)
+public class CachingCanonicalizeBenchmark extends BenchmarkDefaults {
+    @Param({"WHATWG", "SEMANTIC"})
+    public String canonicalizer;
+
+    @Param({"4194304"})
+    public long cacheBytes;
+
+    private Canonicalizer instance;
+    private CachingCanonicalizer cache;
+
+    @Setup
+    public void setup() {
+        instance = Canonicalizers.byName(canonicalizer);
+        cache = new CachingCanonicalizer(instance, cacheBytes);
+    }
+
+    @State(Scope.Thread)
+    public static class Stream {
+        private String[] urls;
+        private int next;
+
+        @Setup
+        public void setup(CorpusState corpus) {
+            Random random = new Random(0);
+            urls = new String[1 << 16];
+            for (int i = 0; i < urls.length; i++) {
+                urls[i] = corpus.urls[(int) (corpus.urls.length * Math.pow(random.nextDouble(), 4))];
+            }
+        }
+
+        String nextUrl() {
+            String url = urls[next];
+            next = (next + 1) & (urls.length - 1);
+            return url;
+        }
+    }
+
+    @Benchmark
+    public String uncached(Stream stream) {
+        return instance.canonicalize(stream.nextUrl());
+    }
+
+    @Benchmark
+    public String cached(Stream stream) {
+        return cache.canonicalize(stream.nextUrl());
+    }
+}
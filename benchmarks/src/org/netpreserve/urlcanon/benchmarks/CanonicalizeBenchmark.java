@@ -0,0 +1,79 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.netpreserve.urlcanon.ParsedUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parse followed by canonicalization with each of the built-in canonicalizers.
+ * Canonicalization mutates the url so parsing is part of the measured
+ * operation; subtract {@link ParseBenchmark} to isolate the canonicalizer.
+ */
+@State(Scope.Benchmark)
+public class CanonicalizeBenchmark extends BenchmarkDefaults {
+    @Param({"WHATWG", "SEMANTIC_PRECISE", "SEMANTIC", "AGGRESSIVE"})
+    public String canonicalizer;
+
+    private Canonicalizer instance;
+
+    @Setup
+    public void setup() {
+        instance = Canonicalizers.byName(canonicalizer);
+    }
+
+    /**
+     * An output buffer per thread, so threads don't write to the same cache
+     * lines.
+     */
+    @State(Scope.Thread)
+    public static class Utf8Buffer {
+        final byte[] bytes = new byte[1 << 20];
+    }
+
+    @Benchmark
+    public ParsedUrl canonicalize(CorpusState state) {
+        ParsedUrl url = ParsedUrl.parseUrl(state.nextUrl());
+        instance.canonicalize(url);
+        return url;
+    }
+
+    /**
+     * Canonicalizes and formats, as when indexing by canonical url.
+     */
+    @Benchmark
+    public String canonicalizeToString(CorpusState state) {
+        ParsedUrl url = ParsedUrl.parseUrl(state.nextUrl());
+        instance.canonicalize(url);
+        return url.toString();
+    }
+
+    /**
+     * Like canonicalizeToString through the String entry point.
+     */
+    @Benchmark
+    public String canonicalizeString(CorpusState state) {
+        return instance.canonicalize(state.nextUrl());
+    }
+
+    /**
+     * Canonicalizes to UTF-8 the usual way, through a String.
+     */
+    @Benchmark
+    public byte[] canonicalizeStringToUtf8(CorpusState state) {
+        return instance.canonicalize(state.nextUrl()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Like canonicalizeStringToUtf8 writing straight into a reused buffer.
+     */
+    @Benchmark
+    public int canonicalizeToUtf8(CorpusState state, Utf8Buffer buffer) {
+        return instance.canonicalize(state.nextUrl(), buffer.bytes, 0);
+    }
+}
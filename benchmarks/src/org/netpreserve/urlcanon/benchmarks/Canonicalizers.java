@@ -0,0 +1,20 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+
+class Canonicalizers {
+    static Canonicalizer byName(String name) {
+        switch (name) {
+            case "WHATWG":
+                return Canonicalizer.WHATWG;
+            case "SEMANTIC_PRECISE":
+                return Canonicalizer.SEMANTIC_PRECISE;
+            case "SEMANTIC":
+                return Canonicalizer.SEMANTIC;
+            case "AGGRESSIVE":
+                return Canonicalizer.AGGRESSIVE;
+            default:
+                throw new IllegalArgumentException("unknown canonicalizer " + name);
+        }
+    }
+}
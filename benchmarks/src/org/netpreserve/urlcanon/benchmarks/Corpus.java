@@ -0,0 +1,167 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.netpreserve.urlcanon.UrlCorpusGenerator;
+import org.netpreserve.urlcanon.UrlCorpusGenerator.Shape;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Named lists of input urls for the benchmarks. Each corpus is read from the
+ * json test data shared with the unit tests, except:
+ *
+ * - "mixed": every json corpus concatenated and shuffled with a fixed seed
+ * - "generated": synthetic urls from {@link UrlCorpusGenerator} in its default mix
+ * - "generated:SHAPE": synthetic urls of a single {@link UrlCorpusGenerator.Shape}
+ * - "long_query": generated urls with 2-4 KB of tracking parameters appended
+ */
+class Corpus {
+    static final String[] NAMES = {"urltestdata", "parsing", "semantic_precise", "aggressive", "path_dots", "mixed"};
+    private static final int GENERATED_SIZE = 100_000;
+    private static final long GENERATED_SEED = 0;
+
+    static List<String> load(String name) {
+        if (name.equals("long_query")) {
+            return loadLongQuery();
+        } else if (name.equals("generated")) {
+            return UrlCorpusGenerator.realistic(GENERATED_SEED).generate(GENERATED_SIZE);
+        } else if (name.startsWith("generated:")) {
+            Shape shape = Shape.valueOf(name.substring("generated:".length()));
+            return UrlCorpusGenerator.only(shape, GENERATED_SEED).generate(GENERATED_SIZE);
+        }
+        try {
+            switch (name) {
+                case "urltestdata":
+                    return loadUrlTestData();
+                case "parsing":
+                case "semantic_precise":
+                case "aggressive":
+                    return loadObjectKeys("/" + name + ".json");
+                case "path_dots":
+                    return loadPathDots();
+                case "mixed":
+                    return loadMixed();
+                default:
+                    throw new IllegalArgumentException("unknown corpus " + name);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<String> loadLongQuery() {
+        Random random = new Random(GENERATED_SEED);
+        List<String> urls = new ArrayList<>();
+        for (String url : UrlCorpusGenerator.realistic(GENERATED_SEED).generate(GENERATED_SIZE / 10)) {
+            int fragment = url.indexOf('#');
+            StringBuilder sb = new StringBuilder(fragment == -1 ? url : url.substring(0, fragment));
+            sb.append(sb.indexOf("?") == -1 ? '?' : '&');
+            int length = 2048 + random.nextInt(2048);
+            for (int i = 0; sb.length() < length; i++) {
+                if (i > 0) sb.append('&');
+                sb.append("utm_p").append(i).append('=');
+                for (int j = 16 + random.nextInt(48); j > 0; j--) {
+                    sb.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            if (fragment != -1) {
+                sb.append(url, fragment, url.length());
+            }
+            urls.add(sb.toString());
+        }
+        return urls;
+    }
+
+    private static List<String> loadMixed() {
+        List<String> urls = new ArrayList<>();
+        for (String name : NAMES) {
+            if (!name.equals("mixed")) {
+                urls.addAll(load(name));
+            }
+        }
+        Collections.shuffle(urls, new Random(0));
+        return urls;
+    }
+
+    private static JsonReader open(String resource) {
+        InputStream stream = Corpus.class.getResourceAsStream(resource);
+        if (stream == null) {
+            throw new IllegalStateException("missing resource " + resource);
+        }
+        return new JsonReader(new InputStreamReader(stream, UTF_8));
+    }
+
+    /**
+     * The "input" field of each test case in urltestdata.json.
+     */
+    private static List<String> loadUrlTestData() throws IOException {
+        List<String> urls = new ArrayList<>();
+        try (JsonReader reader = open("/urltestdata.json")) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() == JsonToken.STRING) { // skip comments
+                    reader.nextString();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("input")) {
+                        urls.add(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+        }
+        return urls;
+    }
+
+    /**
+     * The keys of a json object mapping input urls to expected results.
+     */
+    private static List<String> loadObjectKeys(String resource) throws IOException {
+        List<String> urls = new ArrayList<>();
+        try (JsonReader reader = open(resource)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                urls.add(reader.nextName());
+                reader.skipValue();
+            }
+            reader.endObject();
+        }
+        return urls;
+    }
+
+    /**
+     * The paths in path_dots.json, prefixed with a scheme and host matching their type.
+     */
+    private static List<String> loadPathDots() throws IOException {
+        List<String> urls = new ArrayList<>();
+        try (JsonReader reader = open("/path_dots.json")) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String prefix = reader.nextName().equals("special") ? "http://example.com" : "foo://example.com";
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    urls.add(prefix + reader.nextName());
+                    reader.skipValue();
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,60 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.ParsedUrl;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cycles through the urls of a corpus so that each benchmark operation
+ * processes exactly one url, making per-operation figures per-url figures.
+ */
+@State(Scope.Thread)
+public class CorpusState {
+    @Param({"urltestdata", "parsing", "semantic_precise", "aggressive", "path_dots", "mixed", "generated", "long_query"})
+    public String corpus;
+
+    String[] urls;
+    byte[][] utf8;
+    byte[][] binary;
+    private int next;
+
+    @Setup
+    public void setup() {
+        urls = Corpus.load(corpus).toArray(new String[0]);
+        utf8 = new byte[urls.length][];
+        binary = new byte[urls.length][];
+        for (int i = 0; i < urls.length; i++) {
+            utf8[i] = urls[i].getBytes(StandardCharsets.UTF_8);
+            binary[i] = ParsedUrl.parseUrl(urls[i]).toBytes();
+        }
+    }
+
+    String nextUrl() {
+        String url = urls[next];
+        next = next + 1 == urls.length ? 0 : next + 1;
+        return url;
+    }
+
+    /**
+     * Like {@link #nextUrl()} but UTF-8 encoded.
+     */
+    byte[] nextUtf8() {
+        byte[] url = utf8[next];
+        next = next + 1 == urls.length ? 0 : next + 1;
+        return url;
+    }
+
+    /**
+     * Like {@link #nextUrl()} but parsed and serialized with
+     * {@link ParsedUrl#toBytes()}.
+     */
+    byte[] nextBinary() {
+        byte[] url = binary[next];
+        next = next + 1 == urls.length ? 0 : next + 1;
+        return url;
+    }
+}
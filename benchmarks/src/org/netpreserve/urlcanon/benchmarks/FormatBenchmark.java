@@ -0,0 +1,56 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.netpreserve.urlcanon.ParsedUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Formatting of urls that have already been parsed and canonicalized.
+ */
+@State(Scope.Thread)
+public class FormatBenchmark extends BenchmarkDefaults {
+    @Param({"urltestdata", "parsing", "semantic_precise", "aggressive", "path_dots", "mixed", "generated"})
+    public String corpus;
+
+    @Param({"WHATWG", "SEMANTIC"})
+    public String canonicalizer;
+
+    private ParsedUrl[] urls;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Canonicalizer instance = Canonicalizers.byName(canonicalizer);
+        String[] inputs = Corpus.load(corpus).toArray(new String[0]);
+        urls = new ParsedUrl[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            urls[i] = ParsedUrl.parseUrl(inputs[i]);
+            instance.canonicalize(urls[i]);
+        }
+    }
+
+    private ParsedUrl nextUrl() {
+        ParsedUrl url = urls[next];
+        next = next + 1 == urls.length ? 0 : next + 1;
+        return url;
+    }
+
+    @Benchmark
+    public String format() {
+        return nextUrl().toString();
+    }
+
+    @Benchmark
+    public String surt() {
+        return nextUrl().surt();
+    }
+
+    @Benchmark
+    public String ssurt() {
+        return nextUrl().ssurt();
+    }
+}
@@ -0,0 +1,48 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Checks urls that are already canonical, as when they're read back from an
+ * index, with isCanonical and by canonicalizing and comparing.
+ */
+@State(Scope.Thread)
+public class IsCanonicalBenchmark extends BenchmarkDefaults {
+    @Param({"WHATWG", "SEMANTIC_PRECISE", "SEMANTIC", "AGGRESSIVE"})
+    public String canonicalizer;
+
+    private Canonicalizer instance;
+    private String[] urls;
+    private int next;
+
+    @Setup
+    public void setup(CorpusState corpus) {
+        instance = Canonicalizers.byName(canonicalizer);
+        urls = new String[corpus.urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = instance.canonicalize(corpus.urls[i]);
+        }
+    }
+
+    private String nextUrl() {
+        String url = urls[next];
+        next = next + 1 == urls.length ? 0 : next + 1;
+        return url;
+    }
+
+    @Benchmark
+    public boolean isCanonical() {
+        return instance.isCanonical(nextUrl());
+    }
+
+    @Benchmark
+    public boolean canonicalizeAndCompare() {
+        String url = nextUrl();
+        return instance.canonicalize(url).equals(url);
+    }
+}
@@ -0,0 +1,28 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs JMH with the usual command line options. Unless other profilers are
+ * requested the GC profiler is enabled, whose gc.alloc.rate.norm figure is
+ * the number of bytes allocated per url.
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams()
+                || cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+        if (cmdOptions.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,30 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.netpreserve.urlcanon.MultiCanonicalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * The WHATWG, semantic and aggressive forms of each url, as stored for a
+ * capture, computed separately and with a MultiCanonicalizer.
+ */
+public class MultiCanonicalizeBenchmark extends BenchmarkDefaults {
+    private static final Canonicalizer[] CANONICALIZERS = {
+            Canonicalizer.WHATWG, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE};
+    private static final MultiCanonicalizer MULTI = new MultiCanonicalizer(CANONICALIZERS);
+
+    @Benchmark
+    public String[] separately(CorpusState state) {
+        String url = state.nextUrl();
+        String[] forms = new String[CANONICALIZERS.length];
+        for (int i = 0; i < forms.length; i++) {
+            forms[i] = CANONICALIZERS[i].canonicalize(url);
+        }
+        return forms;
+    }
+
+    @Benchmark
+    public String[] together(CorpusState state) {
+        return MULTI.canonicalizeToStrings(state.nextUrl());
+    }
+}
@@ -0,0 +1,81 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.AggressiveCanonicalizer;
+import org.netpreserve.urlcanon.ParsedUrl;
+import org.netpreserve.urlcanon.SemanticCanonicalizer;
+import org.netpreserve.urlcanon.SemanticPreciseCanonicalizer;
+import org.netpreserve.urlcanon.WhatwgCanonicalizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Java side of parity.py. Reads urls from stdin, one per line, and for each
+ * writes a line of tab-separated fields: for each of whatwg, semantic_precise,
+ * semantic and aggressive the canonicalized url, its surt and its ssurt.
+ *
+ * Input and output are treated as bytes (mapped one-to-one onto chars with
+ * ISO-8859-1) to match the bytes-based python implementation. Time spent
+ * canonicalizing and formatting, excluding I/O, is reported on stderr.
+ */
+public class ParityWorker {
+    interface Canonicalize {
+        void apply(ParsedUrl url, Charset charset);
+    }
+
+    private static final Canonicalize[] CANONICALIZERS = {
+            new WhatwgCanonicalizer()::canonicalize,
+            new SemanticPreciseCanonicalizer()::canonicalize,
+            new SemanticCanonicalizer()::canonicalize,
+            new AggressiveCanonicalizer()::canonicalize,
+    };
+
+    public static void main(String[] args) throws IOException {
+        InputStream in = new BufferedInputStream(System.in, 65536);
+        OutputStream out = new BufferedOutputStream(System.out, 65536);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        StringBuilder record = new StringBuilder();
+        long count = 0;
+        long nanos = 0;
+        while (readLine(in, line)) {
+            String input = new String(line.toByteArray(), ISO_8859_1);
+            record.setLength(0);
+            long start = System.nanoTime();
+            for (Canonicalize canonicalizer : CANONICALIZERS) {
+                if (record.length() > 0) record.append('\t');
+                try {
+                    ParsedUrl url = ParsedUrl.parseUrl(input);
+                    canonicalizer.apply(url, ISO_8859_1);
+                    record.append(url).append('\t').append(url.surt()).append('\t').append(url.ssurt());
+                } catch (RuntimeException e) {
+                    String error = "!" + e.getClass().getSimpleName();
+                    record.append(error).append('\t').append(error).append('\t').append(error);
+                }
+            }
+            nanos += System.nanoTime() - start;
+            count++;
+            record.append('\n');
+            out.write(record.toString().getBytes(ISO_8859_1));
+        }
+        out.flush();
+        System.err.printf("java: %d urls in %.3f s%n", count, nanos / 1e9);
+    }
+
+    private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b = in.read();
+        if (b == -1) return false;
+        while (b != -1 && b != '\n') {
+            line.write(b);
+            b = in.read();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,30 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.ParsedUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parsing alone, without any canonicalization. Use the "long_query" corpus
+ * to see the effect of the delimiter scanning on long urls.
+ */
+public class ParseBenchmark extends BenchmarkDefaults {
+    @Benchmark
+    public ParsedUrl parse(CorpusState state) {
+        return ParsedUrl.parseUrl(state.nextUrl());
+    }
+
+    @Benchmark
+    public ParsedUrl parseUtf8(CorpusState state) {
+        return ParsedUrl.parseUrl(state.nextUtf8());
+    }
+
+    /**
+     * Decoding the binary format, for comparison with parseUtf8.
+     */
+    @Benchmark
+    public ParsedUrl readBinary(CorpusState state) {
+        return ParsedUrl.readFrom(ByteBuffer.wrap(state.nextBinary()));
+    }
+}
@@ -0,0 +1,51 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.netpreserve.urlcanon.ParsedUrl;
+
+import java.util.List;
+
+/**
+ * Estimates the heap retained by each ParsedUrl, as in a crawl frontier that
+ * keeps millions of them, by measuring used heap before and after holding on
+ * to a corpus of parsed urls.
+ *
+ * Usage: java -cp target/benchmarks.jar org.netpreserve.urlcanon.benchmarks.RetainedHeap
+ *            [corpus [canonicalizer|none]]
+ *
+ * corpus defaults to "generated" and canonicalizer to SEMANTIC.
+ */
+public class RetainedHeap {
+    public static void main(String[] args) {
+        String corpus = args.length > 0 ? args[0] : "generated";
+        String canonicalizerName = args.length > 1 ? args[1] : "SEMANTIC";
+        Canonicalizer canonicalizer = canonicalizerName.equals("none") ? null : Canonicalizers.byName(canonicalizerName);
+        List<String> inputs = Corpus.load(corpus);
+
+        ParsedUrl[] urls = new ParsedUrl[inputs.size()];
+        long arrayBytes = usedHeap();
+        for (int i = 0; i < urls.length; i++) {
+            // copy the input so that it's only retained if the ParsedUrl retains it
+            ParsedUrl url = ParsedUrl.parseUrl(new String(inputs.get(i)));
+            if (canonicalizer != null) {
+                canonicalizer.canonicalize(url);
+            }
+            urls[i] = url;
+        }
+        long afterBytes = usedHeap();
+
+        System.out.printf("%d urls from %s, canonicalizer %s: %.1f bytes retained per url%n", inputs.size(), corpus,
+                canonicalizerName, (afterBytes - arrayBytes) / (double) urls.length);
+        System.out.println("e.g. " + urls[urls.length - 1]); // keep urls reachable until measured
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,86 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Runs {@link CanonicalizeBenchmark} with increasing thread counts to check
+ * that the shared canonicalizer singletons scale across cores. For each
+ * thread count reports total throughput, throughput per thread and
+ * efficiency relative to a single thread (100% is perfectly linear).
+ *
+ * Usage: java -cp target/benchmarks.jar org.netpreserve.urlcanon.benchmarks.Scalability
+ *            [maxThreads [corpus [canonicalizer...]]]
+ *
+ * maxThreads defaults to the number of available processors, corpus to
+ * "generated" and canonicalizers to all of them.
+ */
+public class Scalability {
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        String corpus = args.length > 1 ? args[1] : "generated";
+        List<String> canonicalizers = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            canonicalizers.add(args[i]);
+        }
+        if (canonicalizers.isEmpty()) {
+            canonicalizers.add("WHATWG");
+            canonicalizers.add("SEMANTIC_PRECISE");
+            canonicalizers.add("SEMANTIC");
+            canonicalizers.add("AGGRESSIVE");
+        }
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-18s %8s %14s %18s %11s%n", "canonicalizer", "threads", "ops/us",
+                "ops/us per thread", "efficiency"));
+        for (String canonicalizer : canonicalizers) {
+            double singleThreaded = 0;
+            for (int threads : threadCounts) {
+                double score = run(canonicalizer, corpus, threads);
+                if (threads == 1) {
+                    singleThreaded = score;
+                }
+                double perThread = score / threads;
+                report.append(String.format("%-18s %8d %14.3f %18.3f %10.0f%%%n", canonicalizer, threads, score,
+                        perThread, singleThreaded == 0 ? 0 : 100 * perThread / singleThreaded));
+            }
+        }
+        System.out.println();
+        System.out.print(report);
+    }
+
+    private static double run(String canonicalizer, String corpus, int threads) throws Exception {
+        Options options = new OptionsBuilder()
+                // anchored, as the other canonicalize* benchmarks share the prefix
+                .include("^" + Pattern.quote(CanonicalizeBenchmark.class.getName() + ".canonicalize") + "$")
+                .param("canonicalizer", canonicalizer)
+                .param("corpus", corpus)
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .threads(threads)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        if (results.size() != 1) {
+            throw new IllegalStateException("expected one result but got " + results.size());
+        }
+        return results.iterator().next().getPrimaryResult().getScore();
+    }
+}
@@ -0,0 +1,47 @@
+package org.netpreserve.urlcanon.benchmarks;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.netpreserve.urlcanon.UrlValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Classifies urls by WHATWG validity, and canonicalizes them with and
+ * without dropping the failures first. The urltestdata corpus has the most
+ * junk.
+ */
+@State(Scope.Thread)
+public class ValidateBenchmark extends BenchmarkDefaults {
+    @Param({"WHATWG", "SEMANTIC"})
+    public String canonicalizer;
+
+    private Canonicalizer instance;
+
+    @Setup
+    public void setup() {
+        instance = Canonicalizers.byName(canonicalizer);
+    }
+
+    @Benchmark
+    public UrlValidator.Validity classify(CorpusState corpus) {
+        return UrlValidator.classify(corpus.nextUrl());
+    }
+
+    @Benchmark
+    public boolean isFailure(CorpusState corpus) {
+        return UrlValidator.isFailure(corpus.nextUrl());
+    }
+
+    @Benchmark
+    public String canonicalize(CorpusState corpus) {
+        return instance.canonicalize(corpus.nextUrl());
+    }
+
+    @Benchmark
+    public String canonicalizeStrict(CorpusState corpus) {
+        return instance.canonicalizeStrict(corpus.nextUrl());
+    }
+}
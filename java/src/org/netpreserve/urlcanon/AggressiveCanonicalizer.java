@@ -18,9 +18,20 @@
 
 package org.netpreserve.urlcanon;
 
+import java.nio.charset.Charset;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.netpreserve.urlcanon.ParsedUrl.HOST;
+import static org.netpreserve.urlcanon.ParsedUrl.PATH;
+import static org.netpreserve.urlcanon.ParsedUrl.QUERY;
+import static org.netpreserve.urlcanon.ParsedUrl.QUESTION_MARK;
+import static org.netpreserve.urlcanon.ParsedUrl.SCHEME;
+import static org.netpreserve.urlcanon.Step.components;
+import static org.netpreserve.urlcanon.Step.rewrite;
+import static org.netpreserve.urlcanon.Step.step;
+
 /**
  * For fuzzyier matching. Similar to the rules Wayback uses.
  *
@@ -35,36 +46,60 @@ import java.util.regex.Pattern;
 public class AggressiveCanonicalizer implements Canonicalizer {
     @Override
     public void canonicalize(ParsedUrl url) {
-        Canonicalizer.SEMANTIC.canonicalize(url);
-        httpsToHttp(url);
-        stripWww(url);
-        lowercasePath(url);
-        lowercaseQuery(url);
-        stripSessionIdsFromQuery(url);
-        stripSessionIdsFromPath(url);
-        stripTrailingSlashUnlessEmpty(url);
-        removeRedundantAmpersandsFromQuery(url);
-        omitQuestionMarkIfQueryEmpty(url);
-        SemanticPreciseCanonicalizer.alphaReorderQuery(url); // sort again after lowercasing
+        canonicalize(url, UTF_8);
     }
-    static void httpsToHttp(ParsedUrl url) {
-        if (url.getScheme().equalsIgnoreCase("https")) {
-            url.setScheme("http");
-        }
+
+    public void canonicalize(ParsedUrl url, Charset charset) {
+        Steps.PIPELINE.run(url, charset);
     }
 
-    private static final Pattern WWW_RE = Pattern.compile("^www[0-9]*\\.");
+    @Override
+    public void recanonicalize(ParsedUrl url) {
+        recanonicalize(url, UTF_8);
+    }
+
+    public void recanonicalize(ParsedUrl url, Charset charset) {
+        Steps.PIPELINE.runIncremental(url, charset);
+    }
+
+    @Override
+    public boolean isCanonical(CharSequence input) {
+        return CanonicalChecker.isCanonical(this, input, CanonicalChecker.AGGRESSIVE);
+    }
+
+    /**
+     * The steps run after the ones inherited from semantic.
+     */
+    private static final Step[] OWN_STEPS = {
+            rewrite("httpsToHttp", SCHEME, AggressiveCanonicalizer::httpsToHttp),
+            rewrite("stripWww", HOST, AggressiveCanonicalizer::stripWww),
+            rewrite("lowercasePath", PATH, path -> path.toLowerCase(Locale.US)),
+            rewrite("lowercaseQuery", QUERY, query -> query.toLowerCase(Locale.US)),
+            rewrite("stripSessionIdsFromQuery", QUERY, AggressiveCanonicalizer::stripSessionIdsFromQuery),
+            rewrite("stripSessionIdsFromPath", PATH, AggressiveCanonicalizer::stripSessionIdsFromPath),
+            rewrite("stripTrailingSlashUnlessEmpty", PATH, AggressiveCanonicalizer::stripTrailingSlashUnlessEmpty),
+            rewrite("removeRedundantAmpersandsFromQuery", QUERY, query -> SemanticPreciseCanonicalizer.removeLeadingTrailingAndDuplicateChars(query, '&')),
+            step("omitQuestionMarkIfQueryEmpty", components(QUESTION_MARK, QUERY), (url, charset) -> omitQuestionMarkIfQueryEmpty(url)),
+            // sort again after lowercasing
+            rewrite("alphaReorderQuery", QUERY, SemanticPreciseCanonicalizer::alphaReorderQuery)
+    };
 
-    static void stripWww(ParsedUrl url) {
-        url.setHost(WWW_RE.matcher(url.getHost()).replaceAll(""));
+    /**
+     * All the steps, built on first use like {@link SemanticCanonicalizer.Steps}.
+     */
+    static final class Steps {
+        static final Step[] ALL = Step.concat(SemanticCanonicalizer.Steps.ALL, OWN_STEPS);
+        static final Pipeline PIPELINE = Pipeline.compile(ALL);
     }
 
-    static void lowercasePath(ParsedUrl url) {
-        url.setPath(url.getPath().toLowerCase(Locale.US));
+    static String httpsToHttp(String scheme) {
+        return scheme.equalsIgnoreCase("https") ? "http" : scheme;
     }
 
-    static void lowercaseQuery(ParsedUrl url) {
-        url.setQuery(url.getQuery().toLowerCase(Locale.US));
+    private static final Pattern WWW_RE = Pattern.compile("^www[0-9]*\\.");
+
+    static String stripWww(String host) {
+        return host.startsWith("www") ? WWW_RE.matcher(host).replaceAll("") : host;
     }
 
     private static final Pattern QUERY_SESSIONID_RE = Pattern.compile(
@@ -77,8 +112,14 @@ public class AggressiveCanonicalizer implements Canonicalizer {
                     + "|cfid=[0-9]+&cftoken=[0-9a-z-]+"
                     + ")(?:&|$)");
 
-    static void stripSessionIdsFromQuery(ParsedUrl url) {
-        url.setQuery(QUERY_SESSIONID_RE.matcher(url.getQuery()).replaceAll(""));
+    static String stripSessionIdsFromQuery(String query) {
+        // every session id parameter name has "id" in it
+        for (int i = 1; i < query.length(); i++) {
+            if ((query.charAt(i) | 0x20) == 'd' && (query.charAt(i - 1) | 0x20) == 'i') {
+                return QUERY_SESSIONID_RE.matcher(query).replaceAll("");
+            }
+        }
+        return query;
     }
 
     private static final Pattern ASPX_SUFFIX_RE = Pattern.compile(".*\\.aspx$");
@@ -87,27 +128,24 @@ public class AggressiveCanonicalizer implements Canonicalizer {
             "(?<=/)(?:\\((?:[a-z]\\([0-9a-z]{24}\\))+\\)/)");
     private static final Pattern PATH_SESSIONID_RE = Pattern.compile(";jsessionid=[0-9a-z]{32}$");
 
-    static void stripSessionIdsFromPath(ParsedUrl url) {
-        String path = url.getPath();
-        if (ASPX_SUFFIX_RE.matcher(path).matches()) {
+    static String stripSessionIdsFromPath(String path) {
+        if (path.endsWith(".aspx") && ASPX_SUFFIX_RE.matcher(path).matches()) {
             path = ASPX_PATH_SESSIONID_RE.matcher(path).replaceAll("");
         }
-        path = PATH_SESSIONID_RE.matcher(path).replaceAll( "");
-        url.setPath(path);
-    }
-
-    static void removeRedundantAmpersandsFromQuery(ParsedUrl url) {
-        url.setQuery(SemanticPreciseCanonicalizer.removeLeadingTrailingAndDuplicateChars(url.getQuery(), '&'));
+        if (path.contains(";jsessionid=")) {
+            path = PATH_SESSIONID_RE.matcher(path).replaceAll("");
+        }
+        return path;
     }
 
-    private static void stripTrailingSlashUnlessEmpty(ParsedUrl url) {
-        String path = url.getPath();
+    private static String stripTrailingSlashUnlessEmpty(String path) {
         if (path.length() > 1 && path.charAt(path.length() - 1) == '/') {
-            url.setPath(path.substring(0, path.length() - 1));
+            return path.substring(0, path.length() - 1);
         }
+        return path;
     }
 
-    private void omitQuestionMarkIfQueryEmpty(ParsedUrl url) {
+    private static void omitQuestionMarkIfQueryEmpty(ParsedUrl url) {
         if (url.getQuery().isEmpty()) {
             url.setQuestionMark("");
         }
@@ -0,0 +1,246 @@
+/*
+ * BinaryFormat.java - compact binary serialization of ParsedUrl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_AFTER_SCHEME;
+import static org.netpreserve.urlcanon.ParsedUrl.HASH_SIGN;
+import static org.netpreserve.urlcanon.ParsedUrl.SPAN_COMPONENTS;
+
+/**
+ * Compact binary encoding of a ParsedUrl, which can be read back without
+ * parsing. All integers are unsigned LEB128 varints.
+ *
+ * <pre>
+ * header     bits 0-5: presence of each delimiter, from colon after scheme
+ *            to hash sign; bit 6: the url was clean (canonicalized and not
+ *            modified since); bit 7: unusual delimiters follow the lengths
+ * lengths    byte length of each of the 11 components, in ParsedUrl's
+ *            component order (leading junk, trailing junk, scheme, slashes,
+ *            username, password, host, port, path, query, fragment)
+ * delimiters only if bit 7 is set: for each of the 6 delimiters its byte
+ *            length then its UTF-8 bytes
+ * bytes      the UTF-8 bytes of the components, concatenated in the same order
+ * </pre>
+ *
+ * A typical url has 1 byte of header and 11 bytes of lengths on top of its
+ * component bytes. Decoding copies the component bytes once and sets up the
+ * same lazy spans the parser would, so components are only decoded when
+ * they're first used. Unpaired surrogates are written as '?', as by
+ * String.getBytes.
+ */
+final class BinaryFormat {
+    private static final int DELIMITERS = HASH_SIGN - COLON_AFTER_SCHEME + 1;
+    private static final int CLEAN = 1 << 6;
+    private static final int UNUSUAL_DELIMITERS = 1 << 7;
+
+    private BinaryFormat() {
+    }
+
+    static byte[] encode(ParsedUrl url) {
+        String[] components = new String[SPAN_COMPONENTS];
+        int[] lengths = new int[SPAN_COMPONENTS];
+        int header = url.delimiterBits() | (url.isDirty() ? 0 : CLEAN);
+        boolean unusual = url.hasUnusualDelimiters();
+        if (unusual) {
+            header |= UNUSUAL_DELIMITERS;
+        }
+
+        int size = varintSize(header);
+        for (int i = 0; i < SPAN_COMPONENTS; i++) {
+            components[i] = url.get(i);
+            lengths[i] = utf8Length(components[i]);
+            size += varintSize(lengths[i]) + lengths[i];
+        }
+        if (unusual) {
+            for (int d = 0; d < DELIMITERS; d++) {
+                int length = utf8Length(url.delimiter(COLON_AFTER_SCHEME + d));
+                size += varintSize(length) + length;
+            }
+        }
+
+        byte[] bytes = new byte[size];
+        int pos = writeVarint(bytes, 0, header);
+        for (int length : lengths) {
+            pos = writeVarint(bytes, pos, length);
+        }
+        if (unusual) {
+            for (int d = 0; d < DELIMITERS; d++) {
+                String delimiter = url.delimiter(COLON_AFTER_SCHEME + d);
+                pos = writeVarint(bytes, pos, utf8Length(delimiter));
+                pos = writeUtf8(bytes, pos, delimiter);
+            }
+        }
+        for (String component : components) {
+            pos = writeUtf8(bytes, pos, component);
+        }
+        return bytes;
+    }
+
+    static ParsedUrl decode(ByteBuffer buffer) {
+        int header = readVarint(buffer);
+        int lengthsStart = buffer.position();
+        int total = 0;
+        for (int i = 0; i < SPAN_COMPONENTS; i++) {
+            total = addLength(total, readVarint(buffer));
+        }
+        String[] delimiters = null;
+        if ((header & UNUSUAL_DELIMITERS) != 0) {
+            delimiters = new String[DELIMITERS];
+            for (int d = 0; d < DELIMITERS; d++) {
+                byte[] delimiter = new byte[readVarint(buffer)];
+                buffer.get(delimiter);
+                delimiters[d] = new String(delimiter, UTF_8);
+            }
+        }
+        ByteChars chars;
+        if (buffer.hasArray()) {
+            if (total > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            chars = new ByteChars(buffer.array(), buffer.arrayOffset() + buffer.position(), total, UTF_8);
+            buffer.position(buffer.position() + total);
+        } else {
+            byte[] bytes = new byte[total];
+            buffer.get(bytes);
+            chars = new ByteChars(bytes, 0, total, UTF_8);
+        }
+
+        // read the lengths again rather than allocate an array to keep them in
+        ParsedUrl url = new ParsedUrl(chars);
+        int end = buffer.position();
+        buffer.position(lengthsStart);
+        int pos = 0;
+        for (int i = 0; i < SPAN_COMPONENTS; i++) {
+            int length = readVarint(buffer);
+            url.setSpan(i, pos, pos + length);
+            pos += length;
+        }
+        buffer.position(end);
+        return finish(url, header, delimiters);
+    }
+
+    static ParsedUrl decode(DataInput in) throws IOException {
+        int header = readVarint(in);
+        int[] lengths = new int[SPAN_COMPONENTS];
+        int total = 0;
+        for (int i = 0; i < SPAN_COMPONENTS; i++) {
+            lengths[i] = readVarint(in);
+            total = addLength(total, lengths[i]);
+        }
+        String[] delimiters = null;
+        if ((header & UNUSUAL_DELIMITERS) != 0) {
+            delimiters = new String[DELIMITERS];
+            for (int d = 0; d < DELIMITERS; d++) {
+                byte[] delimiter = new byte[readVarint(in)];
+                in.readFully(delimiter);
+                delimiters[d] = new String(delimiter, UTF_8);
+            }
+        }
+        byte[] bytes = new byte[total];
+        in.readFully(bytes);
+        ParsedUrl url = new ParsedUrl(new ByteChars(bytes, 0, total, UTF_8));
+        int pos = 0;
+        for (int i = 0; i < SPAN_COMPONENTS; i++) {
+            url.setSpan(i, pos, pos + lengths[i]);
+            pos += lengths[i];
+        }
+        return finish(url, header, delimiters);
+    }
+
+    private static ParsedUrl finish(ParsedUrl url, int header, String[] delimiters) {
+        for (int d = 0; d < DELIMITERS; d++) {
+            if (delimiters != null) {
+                url.setDelimiter(COLON_AFTER_SCHEME + d, delimiters[d]);
+            } else if ((header & (1 << d)) != 0) {
+                url.setDelimiter(COLON_AFTER_SCHEME + d, ParsedUrl.usualDelimiter(COLON_AFTER_SCHEME + d));
+            }
+        }
+        if ((header & CLEAN) != 0) {
+            url.markClean();
+        }
+        return url;
+    }
+
+    private static int addLength(int total, int length) {
+        if (total + length < 0) {
+            throw new IllegalArgumentException("malformed url: total length overflows");
+        }
+        return total + length;
+    }
+
+    private static int utf8Length(String s) {
+        return Utf8.length(s, 0, s.length());
+    }
+
+    private static int writeUtf8(byte[] bytes, int pos, String s) {
+        return Utf8.encode(s, 0, s.length(), bytes, pos);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] bytes, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[pos++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return checkVarint(value);
+            }
+        }
+        throw new IllegalArgumentException("malformed url: varint too long");
+    }
+
+    private static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return checkVarint(value);
+            }
+        }
+        throw new IllegalArgumentException("malformed url: varint too long");
+    }
+
+    private static int checkVarint(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("malformed url: negative length");
+        }
+        return value;
+    }
+}
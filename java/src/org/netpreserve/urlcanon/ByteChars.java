@@ -0,0 +1,115 @@
+/*
+ * ByteChars.java - bytes viewed as one char per byte for parsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.nio.charset.Charset;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Presents bytes to the parser as a CharSequence of one char per byte (like
+ * python's parse.py working on bytes). All the delimiters the parser looks
+ * for are ASCII so with an ASCII-compatible charset component boundaries fall
+ * in the same place as they would in the decoded string. Only the components
+ * themselves are decoded, and only when needed.
+ *
+ * The bytes are held as an ISO-8859-1 String, which maps each byte to the
+ * char with the same value. On JDK 9+ that's a plain copy of the bytes and
+ * lets the parser use the vectorized String.indexOf to find delimiters.
+ */
+final class ByteChars implements CharSequence {
+    private final String chars;
+    private final Charset charset;
+
+    ByteChars(byte[] bytes, int offset, int length, Charset charset) {
+        this.chars = new String(bytes, offset, length, ISO_8859_1);
+        this.charset = charset;
+    }
+
+    /**
+     * The bytes, one char per byte.
+     */
+    String latin1() {
+        return chars;
+    }
+
+    @Override
+    public int length() {
+        return chars.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars.charAt(index);
+    }
+
+    /**
+     * The bytes in [start:end], one char per byte. Use {@link #decode} for
+     * the text they encode.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return chars.substring(start, end);
+    }
+
+    /**
+     * Decodes bytes[start:end] with the charset.
+     */
+    @SuppressWarnings("deprecation")
+    String decode(int start, int end) {
+        if (isDecoded(start, end)) {
+            return chars.substring(start, end);
+        }
+        byte[] bytes = new byte[end - start];
+        chars.getBytes(start, end, bytes, 0); // the low byte of each char, exactly what we want
+        return new String(bytes, charset);
+    }
+
+    void appendTo(StringBuilder sb, int start, int end) {
+        if (isDecoded(start, end)) {
+            sb.append(chars, start, end);
+        } else {
+            sb.append(decode(start, end));
+        }
+    }
+
+    /**
+     * True if the chars of bytes[start:end] are already the decoded string,
+     * that is, the bytes are ASCII or the charset is ISO-8859-1.
+     */
+    boolean isDecoded(int start, int end) {
+        return charset == ISO_8859_1 || isAscii(start, end);
+    }
+
+    private boolean isAscii(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The bytes, one char per byte, as for any CharSequence. Use
+     * {@link #decode} for the text they encode.
+     */
+    @Override
+    public String toString() {
+        return chars;
+    }
+}
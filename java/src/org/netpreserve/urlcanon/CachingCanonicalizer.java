@@ -0,0 +1,470 @@
+/*
+ * CachingCanonicalizer.java - a bounded cache of canonical forms in front of a canonicalizer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers the canonical forms of the url strings a canonicalizer has seen,
+ * for streams like crawl logs and outlinks where the same navigation, asset
+ * and tracker urls come up over and over again. A url found in the cache
+ * isn't parsed or canonicalized at all.
+ *
+ * <pre>
+ * Canonicalizer canonicalizer = new CachingCanonicalizer(Canonicalizer.SEMANTIC, 64 * 1024 * 1024);
+ * String key = canonicalizer.canonicalize(url);
+ * ...
+ * System.out.println(((CachingCanonicalizer) canonicalizer).stats());
+ * </pre>
+ *
+ * The cache holds up to a budget of bytes, estimated from the lengths of the
+ * strings it keeps. To make room it evicts the least recently used urls, but
+ * a new url is only let in if it has been seen more often than the ones it
+ * would evict (TinyLFU admission), so a burst of urls seen once doesn't flush
+ * the hot ones. How often urls have been seen is kept approximately, in a
+ * count-min sketch of 4-bit counters that are halved every so often so that
+ * urls which were hot long ago fade.
+ *
+ * Thread-safe. The cache is split into segments by hash, each with its own
+ * lock, share of the budget and sketch, and urls are canonicalized outside
+ * the locks.
+ *
+ * Only the String entry points use the cache, {@link #canonicalize(String)}
+ * and the ones writing the canonical form somewhere when given a String;
+ * ParsedUrls and other CharSequences go straight to the canonicalizer.
+ */
+public final class CachingCanonicalizer implements Canonicalizer {
+    /**
+     * Estimated bytes of a cache entry apart from its strings: the map entry
+     * and its slot in the table.
+     */
+    static final int ENTRY_OVERHEAD = 64;
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MIN_SEGMENT_BYTES = 16 * 1024;
+
+    /**
+     * Stored as the canonical form of a url that is already canonical.
+     */
+    private static final String UNCHANGED = new String();
+
+    private final Canonicalizer canonicalizer;
+    private final long maxBytes;
+    private final Segment[] segments;
+
+    /**
+     * @param maxBytes the memory budget of the cache in bytes
+     * @throws IllegalArgumentException if maxBytes is negative
+     */
+    public CachingCanonicalizer(Canonicalizer canonicalizer, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("negative maxBytes: " + maxBytes);
+        }
+        this.canonicalizer = Objects.requireNonNull(canonicalizer);
+        this.maxBytes = maxBytes;
+        int count = 1;
+        int wanted = Math.min(MAX_SEGMENTS, 4 * Runtime.getRuntime().availableProcessors());
+        while (count < wanted && maxBytes / (count * 2) >= MIN_SEGMENT_BYTES) {
+            count *= 2;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxBytes / count);
+        }
+    }
+
+    /**
+     * The canonicalizer whose results are cached.
+     */
+    public Canonicalizer canonicalizer() {
+        return canonicalizer;
+    }
+
+    @Override
+    public void canonicalize(ParsedUrl url) {
+        canonicalizer.canonicalize(url);
+    }
+
+    @Override
+    public void recanonicalize(ParsedUrl url) {
+        canonicalizer.recanonicalize(url);
+    }
+
+    /**
+     * The canonical form of input from the cache, or from the canonicalizer
+     * and then cached if it's let in. As with the canonicalizer, input itself
+     * is returned if it's already canonical.
+     */
+    @Override
+    public String canonicalize(String input) {
+        int hash = spread(input.hashCode());
+        Segment segment = segment(hash);
+        String canonical = segment.get(input, hash);
+        if (canonical != null) {
+            return canonical == UNCHANGED ? input : canonical;
+        }
+        canonical = canonicalizer.canonicalize(input);
+        segment.put(input, canonical == input ? UNCHANGED : canonical, hash);
+        return canonical;
+    }
+
+    @Override
+    public void canonicalize(CharSequence input, StringBuilder out) {
+        if (input instanceof String) {
+            out.append(canonicalize((String) input));
+        } else {
+            canonicalizer.canonicalize(input, out);
+        }
+    }
+
+    @Override
+    public void canonicalize(CharSequence input, Appendable out) throws IOException {
+        if (input instanceof String) {
+            out.append(canonicalize((String) input));
+        } else {
+            canonicalizer.canonicalize(input, out);
+        }
+    }
+
+    @Override
+    public int canonicalize(CharSequence input, byte[] dest, int offset) {
+        if (input instanceof String) {
+            return Utf8.encode(canonicalize((String) input), dest, offset);
+        }
+        return canonicalizer.canonicalize(input, dest, offset);
+    }
+
+    @Override
+    public void canonicalize(CharSequence input, ByteBuffer dest) {
+        if (input instanceof String) {
+            Utf8.encode(canonicalize((String) input), dest);
+        } else {
+            canonicalizer.canonicalize(input, dest);
+        }
+    }
+
+    /**
+     * Checks input before looking it up, as the cache also holds the
+     * canonical forms of urls that fail strict parsing.
+     */
+    @Override
+    public String canonicalizeStrict(String input) {
+        return UrlValidator.isFailure(input) ? null : canonicalize(input);
+    }
+
+    /**
+     * Answered from the cache if input is there, otherwise by the
+     * canonicalizer without caching anything, as it may not need to
+     * canonicalize input to tell.
+     */
+    @Override
+    public boolean isCanonical(CharSequence input) {
+        if (input instanceof String) {
+            int hash = spread(input.hashCode());
+            String canonical = segment(hash).get((String) input, hash);
+            if (canonical != null) {
+                return canonical == UNCHANGED;
+            }
+        }
+        return canonicalizer.isCanonical(input);
+    }
+
+    /**
+     * Empties the cache, keeping the statistics.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * The statistics so far, summed over the segments one at a time, so
+     * they may be slightly out of date while other threads use the cache.
+     */
+    public Stats stats() {
+        Stats stats = new Stats(maxBytes);
+        for (Segment segment : segments) {
+            segment.addTo(stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingCanonicalizer[" + canonicalizer + ", " + maxBytes + " bytes]";
+    }
+
+    /**
+     * Estimated bytes of a cached url and its canonical form.
+     */
+    static long weight(String input, String canonical) {
+        return ENTRY_OVERHEAD + stringBytes(input) + (canonical == UNCHANGED ? 0 : stringBytes(canonical));
+    }
+
+    /**
+     * Estimated bytes of a String of mostly Latin-1 characters, as urls are,
+     * with compact strings: the object, the array header and a byte per char.
+     */
+    private static long stringBytes(String s) {
+        return 40 + ((s.length() + 7) & ~7);
+    }
+
+    private Segment segment(int hash) {
+        return segments[hash >>> 26 & (segments.length - 1)];
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Segment {
+        private final long maxBytes;
+        private final FrequencySketch sketch;
+        private final LinkedHashMap<String, String> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long rejections;
+
+        Segment(long maxBytes) {
+            // sized for urls of around a hundred characters
+            this.sketch = new FrequencySketch(maxBytes / 256);
+            this.maxBytes = Math.max(0, maxBytes - sketch.bytes());
+        }
+
+        synchronized String get(String input, int hash) {
+            sketch.increment(hash);
+            String canonical = map.get(input);
+            if (canonical == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return canonical;
+        }
+
+        /**
+         * Caches a url just canonicalized if there's room for it or it's been
+         * seen more often than the least recently used urls making room for
+         * it would evict.
+         */
+        synchronized void put(String input, String canonical, int hash) {
+            if (map.containsKey(input)) {
+                return; // canonicalized by another thread meanwhile
+            }
+            long weight = weight(input, canonical);
+            if (weight > maxBytes) {
+                rejections++;
+                return;
+            }
+            if (bytes + weight > maxBytes) {
+                int frequency = sketch.frequency(hash);
+                long freed = 0;
+                int victims = 0;
+                for (Map.Entry<String, String> entry : map.entrySet()) {
+                    if (sketch.frequency(spread(entry.getKey().hashCode())) >= frequency) {
+                        rejections++;
+                        return;
+                    }
+                    freed += weight(entry.getKey(), entry.getValue());
+                    victims++;
+                    if (bytes - freed + weight <= maxBytes) {
+                        break;
+                    }
+                }
+                Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+                for (int i = 0; i < victims; i++) {
+                    iterator.next();
+                    iterator.remove();
+                }
+                bytes -= freed;
+                evictions += victims;
+            }
+            map.put(input, canonical);
+            bytes += weight;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+
+        synchronized void addTo(Stats stats) {
+            stats.hits += hits;
+            stats.misses += misses;
+            stats.evictions += evictions;
+            stats.rejections += rejections;
+            stats.entries += map.size();
+            stats.bytes += bytes + sketch.bytes();
+        }
+    }
+
+    /**
+     * Approximate counts of how often each hash has been seen lately, as a
+     * count-min sketch: four 4-bit counters per hash, in different longs of a
+     * table, of which the smallest is the count. Once as many increments as
+     * ten times the table's counters have been made all the counters are
+     * halved.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                0xcbf29ce484222325L};
+
+        private final long[] table;
+        private final int sampleSize;
+        private int increments;
+
+        FrequencySketch(long expectedEntries) {
+            int length = 8;
+            while (length < expectedEntries && length < (1 << 24)) {
+                length *= 2;
+            }
+            table = new long[length];
+            sampleSize = 10 * length;
+        }
+
+        long bytes() {
+            return 16 + 8L * table.length;
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                long h = rehash(hash, i);
+                int index = (int) (h >>> 32) & (table.length - 1);
+                int shift = (int) (h & 15) << 2;
+                frequency = Math.min(frequency, (int) (table[index] >>> shift) & 15);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long h = rehash(hash, i);
+                int index = (int) (h >>> 32) & (table.length - 1);
+                int shift = (int) (h & 15) << 2;
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++increments >= sampleSize) {
+                halve();
+            }
+        }
+
+        private void halve() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            increments /= 2;
+        }
+
+        private static long rehash(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return h ^ (h >>> 29);
+        }
+    }
+
+    /**
+     * Cache statistics, see {@link #stats()}.
+     */
+    public static final class Stats {
+        private final long maxBytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long rejections;
+        private long entries;
+        private long bytes;
+
+        Stats(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Number of urls found in the cache.
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * Number of urls not found in the cache, which were canonicalized.
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Hits divided by lookups, 0 before any.
+         */
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        /**
+         * Number of urls evicted to make room for others.
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Number of canonicalized urls not let into the cache, as they were
+         * seen less often than the urls they would have evicted.
+         */
+        public long getRejections() {
+            return rejections;
+        }
+
+        /**
+         * Number of urls in the cache.
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * Estimated bytes used by the cache, including its frequency
+         * sketches, which take a sixteenth of the budget or less. At most
+         * {@link #getMaxBytes()} unless that's tiny.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits %d, misses %d (hit rate %.1f%%), evictions %d, rejections %d, "
+                            + "entries %d, bytes %d of %d", hits, misses, 100 * getHitRate(), evictions, rejections,
+                    entries, bytes, maxBytes);
+        }
+    }
+}
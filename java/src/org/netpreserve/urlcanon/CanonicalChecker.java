@@ -0,0 +1,512 @@
+/*
+ * CanonicalChecker.java - tells whether a url is already canonical without canonicalizing it
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Implements {@link Canonicalizer#isCanonical(CharSequence)} for the built-in
+ * canonicalizers with one read-only pass over the url that allocates nothing,
+ * so that urls which were canonicalized before, like those read back from an
+ * index, are cheap to check.
+ *
+ * The scan follows the urls the canonicalizers' steps leave alone: a special
+ * scheme other than file, "//", a lowercase ASCII host, a numeric port and a
+ * path, query and fragment, checked against the same encode sets, dot-segment,
+ * port and query-order rules as the steps. It stops with {@link #NO} at the
+ * first thing a step would change. What it can't judge without running the
+ * steps, like userinfo, IPv6 and internationalized hosts and, for the
+ * semantic canonicalizers, percent-encodings, which they decode and recode,
+ * is {@link #MAYBE} and those urls are canonicalized to compare.
+ */
+final class CanonicalChecker {
+    // the verdicts
+    static final int YES = 0;
+    static final int NO = 1;
+    static final int MAYBE = 2;
+
+    // the canonicalizers, each of which does all the steps of the one before
+    static final int WHATWG = 0;
+    static final int SEMANTIC_PRECISE = 1;
+    static final int SEMANTIC = 2;
+    static final int AGGRESSIVE = 3;
+
+    private static final Class<?>[] CANONICALIZERS = {WhatwgCanonicalizer.class, SemanticPreciseCanonicalizer.class,
+            SemanticCanonicalizer.class, AggressiveCanonicalizer.class};
+
+    private CanonicalChecker() {
+    }
+
+    /**
+     * Whether canonicalizer, the built-in one of the given level, would give
+     * input back unchanged.
+     */
+    static boolean isCanonical(Canonicalizer canonicalizer, CharSequence input, int level) {
+        // a subclass may canonicalize differently
+        int verdict = canonicalizer.getClass() == CANONICALIZERS[level] ? check(input, level) : MAYBE;
+        if (verdict == MAYBE) {
+            return CanonicalizationContext.isCanonical(canonicalizer, input);
+        }
+        return verdict == YES;
+    }
+
+    /**
+     * Checks s against the steps of the built-in canonicalizer of the given
+     * level, returning {@link #YES}, {@link #NO} or {@link #MAYBE}.
+     */
+    static int check(CharSequence s, int level) {
+        int len = s.length();
+        if (len == 0) {
+            return MAYBE;
+        }
+        if (s.charAt(len - 1) <= 0x20) {
+            return NO; // trailing junk
+        }
+
+        // scheme [a-z][a-z0-9+.-]* :
+        int pos = 0;
+        boolean uppercase = false;
+        while (pos < len) {
+            char c = s.charAt(pos);
+            if (c >= 'A' && c <= 'Z') {
+                uppercase = true;
+            } else if (!(c >= 'a' && c <= 'z') && (pos == 0 || !((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'))) {
+                break;
+            }
+            pos++;
+        }
+        if (pos == 0 || pos == len || s.charAt(pos) != ':') {
+            return MAYBE;
+        }
+        if (uppercase) {
+            return NO;
+        }
+        SpecialScheme scheme = SpecialScheme.of(s, 0, pos);
+        if (scheme == null || scheme == SpecialScheme.FILE) {
+            return MAYBE;
+        }
+        if (level >= AGGRESSIVE && scheme == SpecialScheme.HTTPS) {
+            return NO;
+        }
+
+        // "//" then the authority
+        pos++;
+        if (pos + 2 >= len || s.charAt(pos) != '/' || s.charAt(pos + 1) != '/') {
+            return MAYBE;
+        }
+        pos += 2;
+        int authorityStart = pos;
+        int authorityEnd = pos;
+        while (authorityEnd < len) {
+            char c = s.charAt(authorityEnd);
+            if (c == '/' || c == '\\' || c == '?' || c == '#') {
+                break;
+            }
+            if (c == '@') {
+                return level >= SEMANTIC_PRECISE ? NO : MAYBE; // the userinfo is removed or cleaned up
+            }
+            authorityEnd++;
+        }
+        int verdict = checkAuthority(s, authorityStart, authorityEnd, scheme, level);
+        if (verdict != YES) {
+            return verdict;
+        }
+
+        // path
+        pos = authorityEnd;
+        if (pos == len || s.charAt(pos) != '/') {
+            return NO; // an empty path becomes "/", backslashes become slashes
+        }
+        int pathEnd = pos;
+        while (pathEnd < len && s.charAt(pathEnd) != '?' && s.charAt(pathEnd) != '#') {
+            pathEnd++;
+        }
+        verdict = checkPath(s, pos, pathEnd, level);
+        if (verdict != YES) {
+            return verdict;
+        }
+
+        // query
+        pos = pathEnd;
+        if (pos < len && s.charAt(pos) == '?') {
+            int queryEnd = CharSequences.indexOf(s, '#', pos + 1, len);
+            if (queryEnd == -1) {
+                queryEnd = len;
+            }
+            verdict = checkQuery(s, pos + 1, queryEnd, level);
+            if (verdict != YES) {
+                return verdict;
+            }
+            pos = queryEnd;
+        }
+
+        // fragment
+        if (pos < len) {
+            if (level >= SEMANTIC) {
+                return NO; // the fragment is removed
+            }
+            return checkFragment(s, pos + 1, len, level);
+        }
+        return YES;
+    }
+
+    private static int checkAuthority(CharSequence s, int start, int end, SpecialScheme scheme, int level) {
+        int hostEnd = CharSequences.indexOf(s, ':', start, end);
+        if (hostEnd == -1) {
+            hostEnd = end;
+        }
+        if (hostEnd == start) {
+            return MAYBE;
+        }
+        for (int i = start; i < hostEnd; i++) {
+            char c = s.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '-')) {
+                return MAYBE; // left to IDNA, which may or may not change it
+            }
+        }
+        if (IpAddresses.parseIpv4(s, start, hostEnd) != -1 && !isDottedDecimal(s, start, hostEnd)) {
+            return NO;
+        }
+        if (!WhatwgCanonicalizer.isIdnNoOp(s, start, hostEnd, UTF_8)) {
+            return MAYBE;
+        }
+        if (level >= SEMANTIC_PRECISE && (s.charAt(start) == '.' || s.charAt(hostEnd - 1) == '.'
+                || CharSequences.indexOf(s, "..", start, hostEnd) != -1)) {
+            return NO; // fixHostDots
+        }
+        if (level >= AGGRESSIVE && isWww(s, start, hostEnd)) {
+            return NO;
+        }
+
+        if (hostEnd < end) {
+            int portStart = hostEnd + 1;
+            if (portStart == end) {
+                return MAYBE;
+            }
+            for (int i = portStart; i < end; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return MAYBE;
+                }
+            }
+            if ((int) CharSequences.parseUnsignedLongNoThrow(s, portStart, end, 10) == scheme.defaultPort) {
+                return NO;
+            }
+        }
+        return YES;
+    }
+
+    /**
+     * Whether s[start:end] is an IPv4 address as formatted by
+     * {@link IpAddresses#formatIpv4(long)}: four decimal numbers up to 255
+     * without leading zeros.
+     */
+    private static boolean isDottedDecimal(CharSequence s, int start, int end) {
+        int parts = 0;
+        int i = start;
+        while (i < end) {
+            int partStart = i;
+            int value = 0;
+            while (i < end && s.charAt(i) != '.') {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9' || i - partStart >= 3) {
+                    return false;
+                }
+                value = value * 10 + (c - '0');
+                i++;
+            }
+            if (i == partStart || value > 255 || (s.charAt(partStart) == '0' && i - partStart > 1)) {
+                return false;
+            }
+            parts++;
+            if (i < end) {
+                i++;
+                if (i == end) {
+                    return false; // trailing dot
+                }
+            }
+        }
+        return parts == 4;
+    }
+
+    /**
+     * Whether s[start:end] starts with www[0-9]*\. like stripWww removes.
+     */
+    private static boolean isWww(CharSequence s, int start, int end) {
+        if (end - start < 4 || s.charAt(start) != 'w' || s.charAt(start + 1) != 'w' || s.charAt(start + 2) != 'w') {
+            return false;
+        }
+        int i = start + 3;
+        while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        return i < end && s.charAt(i) == '.';
+    }
+
+    private static int checkPath(CharSequence s, int start, int end, int level) {
+        boolean[] encodeSet = level >= SEMANTIC_PRECISE ? SemanticPreciseCanonicalizer.LESS_DUMB_PATH_ENCODE
+                : WhatwgCanonicalizer.PATH_ENCODE;
+        int segmentStart = start + 1;
+        for (int i = segmentStart; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%' && level >= SEMANTIC_PRECISE) {
+                int next = skipRecodedBytes(s, i, end, encodeSet, level >= AGGRESSIVE);
+                if (next == -1) {
+                    return MAYBE;
+                }
+                i = next - 1;
+                continue;
+            }
+            if (c > 0xff || encodeSet[c] || c == '\\') {
+                return NO;
+            }
+            if (level >= AGGRESSIVE && c >= 'A' && c <= 'Z') {
+                return NO;
+            }
+            if (c == '/') {
+                if (isDotSegment(s, segmentStart, i)) {
+                    return NO;
+                }
+                if (level >= SEMANTIC_PRECISE && i == segmentStart) {
+                    return NO; // collapseConsecutiveSlashes
+                }
+                segmentStart = i + 1;
+            }
+        }
+        if (isDotSegment(s, segmentStart, end)) {
+            return NO;
+        }
+        if (level >= AGGRESSIVE) {
+            if (end - start > 1 && s.charAt(end - 1) == '/') {
+                return NO; // stripTrailingSlashUnlessEmpty
+            }
+            if (CharSequences.indexOf(s, ";jsessionid=", start, end) != -1
+                    || (endsWith(s, start, end, ".aspx") && CharSequences.indexOf(s, '(', start, end) != -1)) {
+                return MAYBE; // there may be a session id to strip
+            }
+        }
+        return YES;
+    }
+
+    /**
+     * Whether s[start:end] is one of the segments normalizePathDots resolves:
+     * "." or "..", with any of the dots written as %2e.
+     */
+    private static boolean isDotSegment(CharSequence s, int start, int end) {
+        int dots = 0;
+        int i = start;
+        while (i < end) {
+            if (s.charAt(i) == '.') {
+                i++;
+            } else if (i + 3 <= end && s.charAt(i) == '%' && s.charAt(i + 1) == '2' && (s.charAt(i + 2) | 0x20) == 'e') {
+                i += 3;
+            } else {
+                return false;
+            }
+            dots++;
+        }
+        return dots == 1 || dots == 2;
+    }
+
+    private static boolean endsWith(CharSequence s, int start, int end, String suffix) {
+        return end - start >= suffix.length() && startsWith(s, end - suffix.length(), end, suffix);
+    }
+
+    private static int checkQuery(CharSequence s, int start, int end, int level) {
+        if (level == WHATWG) {
+            return hasNone(s, start, end, WhatwgCanonicalizer.QUERY_ENCODE) ? YES : NO;
+        }
+        boolean equalsSign = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%') {
+                int next = skipRecodedBytes(s, i, end, SemanticPreciseCanonicalizer.LESS_DUMB_QUERY_ENCODE,
+                        level >= AGGRESSIVE);
+                if (next == -1) {
+                    return MAYBE;
+                }
+                i = next - 1;
+            } else if (c == '&') {
+                if (level >= AGGRESSIVE && (i == start || i == end - 1 || s.charAt(i - 1) == '&')) {
+                    return NO; // removeRedundantAmpersandsFromQuery
+                }
+                equalsSign = false;
+            } else if (c == '=') {
+                if (equalsSign) {
+                    return NO; // all but the first '=' of a param are encoded
+                }
+                equalsSign = true;
+            } else if (c > 0xff || SemanticPreciseCanonicalizer.LESS_DUMB_QUERY_ENCODE[c]) {
+                return NO;
+            } else if (level >= AGGRESSIVE && c >= 'A' && c <= 'Z') {
+                return NO;
+            }
+        }
+        if (!SemanticPreciseCanonicalizer.isSortedQuery(s, start, end)) {
+            return NO;
+        }
+        if (level >= AGGRESSIVE) {
+            if (start == end) {
+                return NO; // omitQuestionMarkIfQueryEmpty
+            }
+            int paramStart = start;
+            while (!isSessionIdParam(s, paramStart, end)) {
+                int amp = CharSequences.indexOf(s, '&', paramStart, end);
+                if (amp == -1) {
+                    return YES;
+                }
+                paramStart = amp + 1;
+            }
+            return MAYBE; // there may be a session id to strip
+        }
+        return YES;
+    }
+
+    private static final String[] SESSION_ID_PARAMS = {"jsessionid=", "sessionid=", "phpsessid=", "sid=",
+            "aspsessionid", "cfid="};
+
+    /**
+     * Whether the param at s[i] starts like the ones stripSessionIdsFromQuery
+     * strips.
+     */
+    private static boolean isSessionIdParam(CharSequence s, int i, int end) {
+        for (String name : SESSION_ID_PARAMS) {
+            if (startsWith(s, i, end, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(CharSequence s, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checkFragment(CharSequence s, int start, int end, int level) {
+        if (level == WHATWG) {
+            return hasNone(s, start, end, WhatwgCanonicalizer.C0_ENCODE) ? YES : NO;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%') {
+                int next = skipRecodedBytes(s, i, end, SemanticPreciseCanonicalizer.GOOGLE_PCT_ENCODE, false);
+                if (next == -1) {
+                    return MAYBE;
+                }
+                i = next - 1;
+                continue;
+            }
+            if (c > 0xff || SemanticPreciseCanonicalizer.GOOGLE_PCT_ENCODE[c]) {
+                return NO;
+            }
+        }
+        return YES;
+    }
+
+    /**
+     * Checks the percent-encoded character at s[i], which the semantic
+     * canonicalizers decode (repeatedly) and encode again with encodeSet. It
+     * comes back the same if it's a character of the set written as UTF-8
+     * with uppercase hex digits, or lowercase ones where aggressive lowercases
+     * them. Returns the index after it, or -1 if it may not come back the
+     * same.
+     */
+    private static int skipRecodedBytes(CharSequence s, int i, int end, boolean[] encodeSet, boolean lowercaseHex) {
+        int b = hexByte(s, i, end, lowercaseHex);
+        if (b == -1) {
+            return -1;
+        }
+        if (b < 0x80) {
+            if (!encodeSet[b]) {
+                return -1;
+            }
+            if (b == '%' && i + 5 <= end && Character.digit(s.charAt(i + 3), 16) != -1
+                    && Character.digit(s.charAt(i + 4), 16) != -1) {
+                return -1; // "%2541" decodes to "%41" and then to "A"
+            }
+            return i + 3;
+        }
+        int continuationBytes;
+        int min = 0x80;
+        int max = 0xbf;
+        if (b >= 0xc2 && b <= 0xdf) {
+            continuationBytes = 1;
+        } else if (b >= 0xe0 && b <= 0xef) {
+            continuationBytes = 2;
+            if (b == 0xe0) min = 0xa0; // overlong
+            if (b == 0xed) max = 0x9f; // surrogate
+        } else if (b >= 0xf0 && b <= 0xf4) {
+            continuationBytes = 3;
+            if (b == 0xf0) min = 0x90; // overlong
+            if (b == 0xf4) max = 0x8f; // beyond U+10FFFF
+        } else {
+            return -1; // not UTF-8, so decoded as U+FFFD
+        }
+        for (int n = 0; n < continuationBytes; n++) {
+            i += 3;
+            b = hexByte(s, i, end, lowercaseHex);
+            if (b < min || b > max) {
+                return -1;
+            }
+            min = 0x80;
+            max = 0xbf;
+        }
+        return i + 3;
+    }
+
+    /**
+     * The byte escaped as %XX at s[i], or -1 if there isn't one with hex
+     * digits in the given case.
+     */
+    private static int hexByte(CharSequence s, int i, int end, boolean lowercaseHex) {
+        if (i + 3 > end || s.charAt(i) != '%') {
+            return -1;
+        }
+        int high = hexDigit(s.charAt(i + 1), lowercaseHex);
+        int low = hexDigit(s.charAt(i + 2), lowercaseHex);
+        return high == -1 || low == -1 ? -1 : high << 4 | low;
+    }
+
+    private static int hexDigit(char c, boolean lowercase) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        char a = lowercase ? 'a' : 'A';
+        return c >= a && c <= a + 5 ? c - a + 10 : -1;
+    }
+
+    /**
+     * Whether none of s[start:end] would be percent-encoded with encodeSet.
+     */
+    private static boolean hasNone(CharSequence s, int start, int end, boolean[] encodeSet) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c > 0xff || encodeSet[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * CanonicalizationContext.java - reusable state for canonicalizing many urls
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Canonicalizes urls one after another reusing a single ParsedUrl and the
+ * scratch buffers of the canonicalization steps, for tight loops over many
+ * urls. Only the components a canonicalizer actually changes are allocated,
+ * plus the output string unless it's appended to a caller's buffer.
+ *
+ * <pre>
+ * CanonicalizationContext context = new CanonicalizationContext(Canonicalizer.WHATWG);
+ * StringBuilder out = new StringBuilder();
+ * for (String line : lines) {
+ *     out.setLength(0);
+ *     context.canonicalize(line, out);
+ *     ...
+ * }
+ * </pre>
+ *
+ * A context is not thread-safe; use one per thread.
+ */
+public final class CanonicalizationContext {
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
+    private static final ThreadLocal<CanonicalizationContext> perThread =
+            ThreadLocal.withInitial(() -> new CanonicalizationContext(null));
+
+    private Canonicalizer canonicalizer; // only changed for the per-thread contexts
+    private boolean busy; // a per-thread context in use, by a canonicalizer that canonicalizes strings itself
+    private final ParsedUrl url = new ParsedUrl("");
+    private final StringBuilder input = new StringBuilder();
+    private StringBuilder output; // for the per-thread contexts
+
+    // scratch buffers, each used by one step at a time
+    private StringBuilder builder = new StringBuilder();
+    int[] offsets = new int[16];
+    private Matcher specialSegments;
+    private Matcher nonspecialSegments;
+    private FusedWhatwgCanonicalizer fused;
+
+    public CanonicalizationContext(Canonicalizer canonicalizer) {
+        this.canonicalizer = canonicalizer;
+        url.context = this;
+    }
+
+    /**
+     * Parses and canonicalizes input. The returned url belongs to the context
+     * and is reused by the next call, so copy it with
+     * {@link ParsedUrl#ParsedUrl(ParsedUrl)} to keep it.
+     */
+    public ParsedUrl canonicalize(CharSequence input) {
+        return canonicalize(input, 0, input.length());
+    }
+
+    /**
+     * Parses and canonicalizes input[start:end].
+     *
+     * @see #canonicalize(CharSequence)
+     */
+    public ParsedUrl canonicalize(CharSequence input, int start, int end) {
+        ParsedUrl url = parse(input, start, end);
+        canonicalizer.canonicalize(url);
+        return url;
+    }
+
+    /**
+     * Parses input[start:end] into the context's url.
+     */
+    private ParsedUrl parse(CharSequence input, int start, int end) {
+        if (!(input instanceof String)) {
+            // the caller may modify the input, so parse a copy of it
+            this.input.setLength(0);
+            this.input.append(input, start, end);
+            input = this.input;
+            end -= start;
+            start = 0;
+        }
+        if (this.input.capacity() > MAX_RETAINED_CAPACITY && input != this.input) {
+            this.input.setLength(0);
+            this.input.trimToSize();
+        }
+        url.reset(input);
+        UrlParser.parse(url, input, start, end);
+        return url;
+    }
+
+    /**
+     * Appends the canonical form of input to out.
+     */
+    public void canonicalize(CharSequence input, StringBuilder out) {
+        canonicalize(input).formatTo(out);
+    }
+
+    /**
+     * Writes the canonical form of input as UTF-8 at dest[offset], returning
+     * the number of bytes written.
+     *
+     * @throws IndexOutOfBoundsException if the bytes don't fit, in which
+     *                                   case nothing is written
+     */
+    public int canonicalize(CharSequence input, byte[] dest, int offset) {
+        return canonicalize(input).writeUtf8(dest, offset);
+    }
+
+    /**
+     * Writes the canonical form of input as UTF-8 at the buffer's position.
+     *
+     * @throws java.nio.BufferOverflowException if the bytes don't fit, in
+     *                                          which case nothing is written
+     */
+    public void canonicalize(CharSequence input, ByteBuffer dest) {
+        canonicalize(input).writeUtf8(dest);
+    }
+
+    /**
+     * Implements {@link Canonicalizer#canonicalize(String)} with the
+     * thread's context.
+     */
+    static String canonicalize(Canonicalizer canonicalizer, String input) {
+        CanonicalizationContext context = acquire(canonicalizer);
+        try {
+            ParsedUrl url = context.canonicalize(input);
+            StringBuilder sb = context.output();
+            url.formatTo(sb);
+            return input.contentEquals(sb) ? input : sb.toString();
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * Implements {@link Canonicalizer#canonicalizeStrict(String)} with the
+     * thread's context, checking the url between parsing and canonicalizing.
+     */
+    static String canonicalizeStrict(Canonicalizer canonicalizer, String input) {
+        CanonicalizationContext context = acquire(canonicalizer);
+        try {
+            ParsedUrl url = context.parse(input, 0, input.length());
+            if (UrlValidator.isFailure(url)) {
+                return null;
+            }
+            canonicalizer.canonicalize(url);
+            StringBuilder sb = context.output();
+            url.formatTo(sb);
+            return input.contentEquals(sb) ? input : sb.toString();
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * Implements {@link UrlValidator#classify(CharSequence)} and
+     * {@link UrlValidator#isFailure(CharSequence)} with the thread's context.
+     */
+    static UrlValidator.Validity classify(CharSequence input, boolean strict) {
+        CanonicalizationContext context = acquire(null);
+        try {
+            return UrlValidator.classify(context.parse(input, 0, input.length()), strict);
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * Implements {@link Canonicalizer#isCanonical(CharSequence)} with the
+     * thread's context, by canonicalizing input and comparing.
+     */
+    static boolean isCanonical(Canonicalizer canonicalizer, CharSequence input) {
+        CanonicalizationContext context = acquire(canonicalizer);
+        try {
+            ParsedUrl url = context.canonicalize(input);
+            StringBuilder sb = context.output();
+            url.formatTo(sb);
+            if (input instanceof String) {
+                return ((String) input).contentEquals(sb);
+            }
+            if (sb.length() != input.length()) {
+                return false;
+            }
+            for (int i = 0; i < sb.length(); i++) {
+                if (sb.charAt(i) != input.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * Implements {@link Canonicalizer#canonicalize(CharSequence, StringBuilder)}
+     * with the thread's context.
+     */
+    static void canonicalize(Canonicalizer canonicalizer, CharSequence input, StringBuilder out) {
+        CanonicalizationContext context = acquire(canonicalizer);
+        try {
+            context.canonicalize(input, out);
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * Implements {@link Canonicalizer#canonicalize(CharSequence, Appendable)}
+     * with the thread's context.
+     */
+    static void canonicalize(Canonicalizer canonicalizer, CharSequence input, Appendable out) throws IOException {
+        CanonicalizationContext context = acquire(canonicalizer);
+        try {
+            ParsedUrl url = context.canonicalize(input);
+            StringBuilder sb = context.output();
+            url.formatTo(sb);
+            out.append(sb);
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * Implements {@link Canonicalizer#canonicalize(CharSequence, byte[], int)}
+     * with the thread's context.
+     */
+    static int canonicalize(Canonicalizer canonicalizer, CharSequence input, byte[] dest, int offset) {
+        CanonicalizationContext context = acquire(canonicalizer);
+        try {
+            return context.canonicalize(input, dest, offset);
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * Implements {@link Canonicalizer#canonicalize(CharSequence, ByteBuffer)}
+     * with the thread's context.
+     */
+    static void canonicalize(Canonicalizer canonicalizer, CharSequence input, ByteBuffer dest) {
+        CanonicalizationContext context = acquire(canonicalizer);
+        try {
+            context.canonicalize(input, dest);
+        } finally {
+            context.busy = false;
+        }
+    }
+
+    /**
+     * The thread's context set up for canonicalizer, or a new one if the
+     * thread's is already in use further up the stack.
+     */
+    private static CanonicalizationContext acquire(Canonicalizer canonicalizer) {
+        CanonicalizationContext context = perThread.get();
+        if (context.busy) {
+            context = new CanonicalizationContext(canonicalizer);
+        }
+        context.canonicalizer = canonicalizer;
+        context.busy = true;
+        return context;
+    }
+
+    /**
+     * The scratch StringBuilder of the url's context, emptied, or null if the
+     * url isn't owned by a context.
+     */
+    static StringBuilder builder(ParsedUrl url) {
+        return url.context == null ? null : url.context.builder();
+    }
+
+    /**
+     * The buffer to format the url into, emptied.
+     */
+    private StringBuilder output() {
+        if (output == null || output.capacity() > MAX_RETAINED_CAPACITY) {
+            output = new StringBuilder();
+        }
+        output.setLength(0);
+        return output;
+    }
+
+    /**
+     * The scratch StringBuilder, emptied.
+     */
+    StringBuilder builder() {
+        if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+            builder = new StringBuilder();
+        }
+        builder.setLength(0);
+        return builder;
+    }
+
+    /**
+     * The context's fused WHATWG canonicalizer, whose output buffer becomes
+     * the source of the context's url.
+     */
+    FusedWhatwgCanonicalizer fused() {
+        if (fused == null) {
+            fused = new FusedWhatwgCanonicalizer(this);
+        }
+        return fused;
+    }
+
+    /**
+     * A matcher for the pattern, reset to input.
+     */
+    Matcher segmentMatcher(Pattern pattern, boolean special, CharSequence input) {
+        if (special) {
+            if (specialSegments == null) specialSegments = pattern.matcher(input);
+            return specialSegments.reset(input);
+        } else {
+            if (nonspecialSegments == null) nonspecialSegments = pattern.matcher(input);
+            return nonspecialSegments.reset(input);
+        }
+    }
+}
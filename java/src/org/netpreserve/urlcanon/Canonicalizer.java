@@ -19,6 +19,9 @@
 
 package org.netpreserve.urlcanon;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public interface Canonicalizer {
 
     Canonicalizer AGGRESSIVE = new AggressiveCanonicalizer();
@@ -28,4 +31,104 @@ public interface Canonicalizer {
 
     void canonicalize(ParsedUrl url);
 
+    /**
+     * Parses and canonicalizes input[start:end].
+     *
+     * @see ParsedUrl#parseUrl(CharSequence, int, int)
+     */
+    default ParsedUrl canonicalize(CharSequence input, int start, int end) {
+        ParsedUrl url = ParsedUrl.parseUrl(input, start, end);
+        canonicalize(url);
+        return url;
+    }
+
+    /**
+     * Canonicalizes a url string. The input itself is returned if it's
+     * already canonical, so callers can test for that with ==.
+     *
+     * No ParsedUrl is created: each thread parses into one it reuses.
+     */
+    default String canonicalize(String input) {
+        return CanonicalizationContext.canonicalize(this, input);
+    }
+
+    /**
+     * Canonicalizes a url string like {@link #canonicalize(String)}, unless
+     * the WHATWG URL standard fails to parse it, in which case null is
+     * returned straight after parsing, without running any steps. Crawlers
+     * can use this to drop junk outlinks cheaply.
+     *
+     * @see UrlValidator#isFailure(CharSequence)
+     */
+    default String canonicalizeStrict(String input) {
+        return CanonicalizationContext.canonicalizeStrict(this, input);
+    }
+
+    /**
+     * Appends the canonical form of input to out.
+     *
+     * @see #canonicalize(String)
+     */
+    default void canonicalize(CharSequence input, StringBuilder out) {
+        CanonicalizationContext.canonicalize(this, input, out);
+    }
+
+    /**
+     * Appends the canonical form of input to out.
+     *
+     * @see #canonicalize(String)
+     */
+    default void canonicalize(CharSequence input, Appendable out) throws IOException {
+        CanonicalizationContext.canonicalize(this, input, out);
+    }
+
+    /**
+     * Writes the canonical form of input as UTF-8 at dest[offset], returning
+     * the number of bytes written. No String is made along the way.
+     *
+     * @throws IndexOutOfBoundsException if the bytes don't fit, in which
+     *                                   case nothing is written
+     * @see ParsedUrl#writeUtf8(byte[], int)
+     */
+    default int canonicalize(CharSequence input, byte[] dest, int offset) {
+        return CanonicalizationContext.canonicalize(this, input, dest, offset);
+    }
+
+    /**
+     * Writes the canonical form of input as UTF-8 at the buffer's position.
+     *
+     * @throws java.nio.BufferOverflowException if the bytes don't fit, in
+     *                                          which case nothing is written
+     * @see ParsedUrl#writeUtf8(ByteBuffer)
+     */
+    default void canonicalize(CharSequence input, ByteBuffer dest) {
+        CanonicalizationContext.canonicalize(this, input, dest);
+    }
+
+    /**
+     * Whether input is already canonical, that is canonicalizing it would
+     * give it back unchanged. The built-in canonicalizers check most urls
+     * with a single scan that stops at the first thing they'd change and
+     * allocates nothing; urls the scan can't judge are canonicalized to
+     * compare.
+     */
+    default boolean isCanonical(CharSequence input) {
+        return CanonicalizationContext.isCanonical(this, input);
+    }
+
+    /**
+     * Brings a previously canonicalized url that has since been modified
+     * through its setters back to canonical form. The result is the same as
+     * canonicalizing the modified url again. Implementations may rerun only
+     * the steps affected by the modified components, where that gives the
+     * same result; aggressive reruns every step, as turning https into http
+     * can leave a port that only a second pass elides.
+     *
+     * @see ParsedUrl#isDirty()
+     */
+    default void recanonicalize(ParsedUrl url) {
+        canonicalize(url);
+        url.markClean();
+    }
+
 }
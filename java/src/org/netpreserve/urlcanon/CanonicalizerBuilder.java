@@ -0,0 +1,195 @@
+/*
+ * CanonicalizerBuilder.java - custom canonicalizers made from the built-in steps
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Makes a canonicalizer from a list of the steps the built-in ones are made
+ * of, like <code>Canonicalizer(steps)</code> in canon.py. Steps are named as
+ * in {@link CanonicalizerMetrics} and {@link #availableSteps()}.
+ *
+ * <pre>
+ * Canonicalizer canonicalizer = new CanonicalizerBuilder(Canonicalizer.SEMANTIC)
+ *         .remove("alphaReorderQuery")
+ *         .add("stripWww", "lowercasePath")
+ *         .build();
+ * </pre>
+ *
+ * The steps are compiled the same way as the built-in canonicalizers', so a
+ * custom one runs as fast as a built-in one with the same steps: a leading
+ * copy of the WHATWG steps runs as a single pass and consecutive rewrites of
+ * a component are merged. The builder may be reused; build() doesn't reset
+ * it.
+ */
+public final class CanonicalizerBuilder {
+    private final List<Step> steps = new ArrayList<>();
+    private Charset charset = UTF_8;
+
+    /**
+     * A builder with no steps.
+     */
+    public CanonicalizerBuilder() {
+    }
+
+    /**
+     * A builder starting with the steps of a built-in canonicalizer or of one
+     * made by a builder.
+     *
+     * @throws IllegalArgumentException if base is some other canonicalizer
+     */
+    public CanonicalizerBuilder(Canonicalizer base) {
+        steps.addAll(Arrays.asList(stepsOf(base)));
+    }
+
+    /**
+     * The steps a canonicalizer is made of.
+     *
+     * @throws IllegalArgumentException if it isn't made of steps
+     */
+    static Step[] stepsOf(Canonicalizer canonicalizer) {
+        Class<?> type = canonicalizer.getClass();
+        if (type == WhatwgCanonicalizer.class) {
+            return WhatwgCanonicalizer.STEPS;
+        } else if (type == SemanticPreciseCanonicalizer.class) {
+            return SemanticPreciseCanonicalizer.STEPS;
+        } else if (type == SemanticCanonicalizer.class) {
+            return SemanticCanonicalizer.Steps.ALL;
+        } else if (type == AggressiveCanonicalizer.class) {
+            return AggressiveCanonicalizer.Steps.ALL;
+        } else if (type == PipelineCanonicalizer.class) {
+            return ((PipelineCanonicalizer) canonicalizer).pipeline.steps;
+        } else {
+            throw new IllegalArgumentException("not made of steps: " + type.getName());
+        }
+    }
+
+    /**
+     * The charset a canonicalizer made of steps uses.
+     */
+    static Charset charsetOf(Canonicalizer canonicalizer) {
+        return canonicalizer instanceof PipelineCanonicalizer ? ((PipelineCanonicalizer) canonicalizer).charset : UTF_8;
+    }
+
+    /**
+     * Appends steps.
+     *
+     * @throws IllegalArgumentException if a step is unknown
+     */
+    public CanonicalizerBuilder add(String... steps) {
+        for (String name : steps) {
+            this.steps.add(step(name));
+        }
+        return this;
+    }
+
+    /**
+     * Removes every occurrence of a step.
+     *
+     * @throws IllegalArgumentException if the step is unknown
+     */
+    public CanonicalizerBuilder remove(String step) {
+        step(step);
+        steps.removeIf(s -> s.name.equals(step));
+        return this;
+    }
+
+    /**
+     * The charset percent-encoding and decoding steps use, UTF-8 by default.
+     */
+    public CanonicalizerBuilder charset(Charset charset) {
+        this.charset = Objects.requireNonNull(charset);
+        return this;
+    }
+
+    /**
+     * The names of the steps added so far, in order.
+     */
+    public List<String> steps() {
+        List<String> names = new ArrayList<>(steps.size());
+        for (Step step : steps) {
+            names.add(step.name);
+        }
+        return names;
+    }
+
+    public Canonicalizer build() {
+        return new PipelineCanonicalizer(Pipeline.compile(steps.toArray(new Step[0])), charset);
+    }
+
+    /**
+     * The names of all the steps there are.
+     */
+    public static List<String> availableSteps() {
+        return Collections.unmodifiableList(new ArrayList<>(AvailableSteps.BY_NAME.keySet()));
+    }
+
+    private static Step step(String name) {
+        Step step = AvailableSteps.BY_NAME.get(name);
+        if (step == null) {
+            throw new IllegalArgumentException("unknown step: " + name);
+        }
+        return step;
+    }
+
+    private static final class AvailableSteps {
+        static final Map<String, Step> BY_NAME = new LinkedHashMap<>();
+
+        static {
+            for (Step[] steps : Arrays.asList(WhatwgCanonicalizer.STEPS, SemanticPreciseCanonicalizer.STEPS,
+                    SemanticCanonicalizer.Steps.ALL, AggressiveCanonicalizer.Steps.ALL)) {
+                for (Step step : steps) {
+                    BY_NAME.putIfAbsent(step.name, step);
+                }
+            }
+        }
+    }
+
+    private static final class PipelineCanonicalizer implements Canonicalizer {
+        final Pipeline pipeline;
+        final Charset charset;
+
+        PipelineCanonicalizer(Pipeline pipeline, Charset charset) {
+            this.pipeline = pipeline;
+            this.charset = charset;
+        }
+
+        @Override
+        public void canonicalize(ParsedUrl url) {
+            pipeline.run(url, charset);
+        }
+
+        @Override
+        public void recanonicalize(ParsedUrl url) {
+            pipeline.runIncremental(url, charset);
+        }
+
+        @Override
+        public String toString() {
+            return "Canonicalizer[" + pipeline + "]";
+        }
+    }
+}
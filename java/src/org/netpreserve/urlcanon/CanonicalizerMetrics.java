@@ -0,0 +1,366 @@
+/*
+ * CanonicalizerMetrics.java - optional per-step canonicalization metrics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional metrics for finding out which canonicalization steps dominate on
+ * real data. Disabled by default, in which case the only cost is checking a
+ * flag once per canonicalization and once per slow path taken.
+ *
+ * When enabled every step of the built-in canonicalizers records the time
+ * spent in it, how many times it ran and how many times it actually changed
+ * the url. Counts of some notable slow paths are also kept.
+ *
+ * Each thread accumulates into its own counters without locking or atomic
+ * operations. {@link #snapshot()} sums them, so figures read while other
+ * threads are canonicalizing may be slightly out of date. The counters of
+ * threads that have died are folded into a single total, so thread pools
+ * that churn through threads don't accumulate them.
+ *
+ * A step counts as having changed the url if it set some component to a
+ * new value, as tracked by {@link ParsedUrl#isDirty()}, so recording it
+ * doesn't copy the url.
+ *
+ * <pre>
+ *     CanonicalizerMetrics.enable();
+ *     ... canonicalize lots of urls ...
+ *     System.out.println(CanonicalizerMetrics.snapshot());
+ * </pre>
+ */
+public final class CanonicalizerMetrics {
+    public enum Counter {
+        /** host passed to the IDN library by punycodeSpecialHost */
+        IDN_TO_ASCII,
+        /** path that needed regex-based dot segment resolution */
+        PATH_DOTS_REGEX,
+        /** pctDecode pass made while repeatedly percent-decoding a component */
+        PCT_DECODE_ITERATION,
+    }
+
+    static volatile boolean enabled;
+
+    // counters of live threads, guarded by itself
+    private static final List<ThreadCounters> allCounters = new ArrayList<>();
+    // totals of the threads that have died, guarded by allCounters
+    private static final ThreadCounters retired = new ThreadCounters(null);
+    private static final ThreadLocal<ThreadCounters> threadCounters = ThreadLocal.withInitial(() -> {
+        ThreadCounters counters = new ThreadCounters(Thread.currentThread());
+        synchronized (allCounters) {
+            retireDeadThreads();
+            allCounters.add(counters);
+        }
+        return counters;
+    });
+
+    private CanonicalizerMetrics() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Zeroes all counters. Other threads' counters are never written to, as
+     * they may be in the middle of incrementing them. Instead their values at
+     * the reset are remembered and subtracted from later snapshots.
+     */
+    public static void reset() {
+        synchronized (allCounters) {
+            retireDeadThreads();
+            for (ThreadCounters counters : allCounters) {
+                counters.baseline = counters.copy();
+            }
+            retired.clear();
+        }
+    }
+
+    /**
+     * Returns the totals across all threads.
+     */
+    public static Snapshot snapshot() {
+        Map<String, StepStats> steps = new LinkedHashMap<>();
+        Map<Counter, Long> counts = new EnumMap<>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            counts.put(counter, 0L);
+        }
+        synchronized (allCounters) {
+            retireDeadThreads();
+            for (ThreadCounters counters : allCounters) {
+                counters.addTo(steps, counts);
+            }
+            retired.addTo(steps, counts);
+        }
+        return new Snapshot(new ArrayList<>(steps.values()), counts);
+    }
+
+    /**
+     * Folds the counters of threads that have died into the retired totals.
+     * Callers hold the allCounters lock. A dead thread won't write to its
+     * counters again, so they can be read without racing it.
+     */
+    private static void retireDeadThreads() {
+        for (Iterator<ThreadCounters> it = allCounters.iterator(); it.hasNext(); ) {
+            ThreadCounters counters = it.next();
+            Thread thread = counters.thread.get();
+            if (thread == null || !thread.isAlive()) {
+                counters.retireTo(retired);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Number of threads whose counters are held separately, for tests.
+     */
+    static int trackedThreads() {
+        synchronized (allCounters) {
+            retireDeadThreads();
+            return allCounters.size();
+        }
+    }
+
+    static void run(Step[] steps, ParsedUrl url, Charset charset) {
+        ThreadCounters counters = threadCounters.get();
+        for (Step step : steps) {
+            url.markClean();
+            long start = System.nanoTime();
+            step.apply(url, charset);
+            long elapsed = System.nanoTime() - start;
+            counters.record(step, elapsed, url.isDirty());
+        }
+    }
+
+    /**
+     * Records that a slow path was taken.
+     */
+    static void count(Counter counter) {
+        if (enabled) {
+            threadCounters.get().counts[counter.ordinal()]++;
+        }
+    }
+
+    private static class ThreadCounters {
+        final WeakReference<Thread> thread;
+        Step[] steps = new Step[0];
+        long[] invocations = new long[0];
+        long[] changes = new long[0];
+        long[] nanos = new long[0];
+        final long[] counts = new long[Counter.values().length];
+        // the counters as of the last reset(), guarded by allCounters
+        ThreadCounters baseline;
+
+        ThreadCounters(Thread thread) {
+            this.thread = new WeakReference<>(thread);
+        }
+
+        void record(Step step, long elapsed, boolean changed) {
+            int id = step.id;
+            grow(id);
+            steps[id] = step;
+            invocations[id]++;
+            nanos[id] += elapsed;
+            if (changed) {
+                changes[id]++;
+            }
+        }
+
+        private void grow(int id) {
+            if (id >= steps.length) {
+                int length = Math.max(id + 1, steps.length * 2);
+                invocations = Arrays.copyOf(invocations, length);
+                changes = Arrays.copyOf(changes, length);
+                nanos = Arrays.copyOf(nanos, length);
+                steps = Arrays.copyOf(steps, length);
+            }
+        }
+
+        /**
+         * Zeroes the counters. Only for counters no live thread writes to.
+         */
+        void clear() {
+            Arrays.fill(invocations, 0);
+            Arrays.fill(changes, 0);
+            Arrays.fill(nanos, 0);
+            Arrays.fill(counts, 0);
+        }
+
+        /**
+         * Copies the counters, which the owning thread may be updating.
+         */
+        ThreadCounters copy() {
+            ThreadCounters copy = new ThreadCounters(null);
+            addTo(copy, 1);
+            return copy;
+        }
+
+        /**
+         * Adds the counts since the last reset to other's, which must belong
+         * to no live thread.
+         */
+        void retireTo(ThreadCounters other) {
+            addTo(other, 1);
+            if (baseline != null) {
+                baseline.addTo(other, -1);
+            }
+        }
+
+        private void addTo(ThreadCounters other, long sign) {
+            // read each array once, as the owning thread may be growing them
+            Step[] stepsById = this.steps;
+            long[] invocations = this.invocations;
+            long[] changes = this.changes;
+            long[] nanos = this.nanos;
+            int length = Math.min(stepsById.length, Math.min(invocations.length, Math.min(changes.length, nanos.length)));
+            for (int id = 0; id < length; id++) {
+                Step step = stepsById[id];
+                if (step != null) {
+                    other.grow(id);
+                    other.steps[id] = step;
+                    other.invocations[id] += sign * invocations[id];
+                    other.changes[id] += sign * changes[id];
+                    other.nanos[id] += sign * nanos[id];
+                }
+            }
+            for (int i = 0; i < counts.length; i++) {
+                other.counts[i] += sign * counts[i];
+            }
+        }
+
+        /**
+         * Adds the counts since the last reset to the totals being collected
+         * by snapshot().
+         */
+        void addTo(Map<String, StepStats> totals, Map<Counter, Long> counts) {
+            ThreadCounters sinceReset = copy();
+            if (baseline != null) {
+                baseline.addTo(sinceReset, -1);
+            }
+            for (int id = 0; id < sinceReset.steps.length; id++) {
+                Step step = sinceReset.steps[id];
+                if (step != null) {
+                    StepStats stats = totals.computeIfAbsent(step.name, StepStats::new);
+                    stats.invocations += sinceReset.invocations[id];
+                    stats.changes += sinceReset.changes[id];
+                    stats.nanos += sinceReset.nanos[id];
+                }
+            }
+            for (Counter counter : Counter.values()) {
+                counts.merge(counter, sinceReset.counts[counter.ordinal()], Long::sum);
+            }
+        }
+    }
+
+    public static final class StepStats {
+        private final String step;
+        private long invocations;
+        private long changes;
+        private long nanos;
+
+        StepStats(String step) {
+            this.step = step;
+        }
+
+        public String getStep() {
+            return step;
+        }
+
+        /**
+         * Number of times the step was applied.
+         */
+        public long getInvocations() {
+            return invocations;
+        }
+
+        /**
+         * Number of times applying the step modified the url.
+         */
+        public long getChanges() {
+            return changes;
+        }
+
+        /**
+         * Total time spent in the step.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    public static final class Snapshot {
+        private final List<StepStats> steps;
+        private final Map<Counter, Long> counts;
+
+        Snapshot(List<StepStats> steps, Map<Counter, Long> counts) {
+            this.steps = Collections.unmodifiableList(steps);
+            this.counts = Collections.unmodifiableMap(counts);
+        }
+
+        /**
+         * Statistics for each step that has run, in the order they were first seen.
+         */
+        public List<StepStats> getSteps() {
+            return steps;
+        }
+
+        public StepStats getStep(String name) {
+            for (StepStats stats : steps) {
+                if (stats.step.equals(name)) {
+                    return stats;
+                }
+            }
+            return null;
+        }
+
+        public long getCount(Counter counter) {
+            return counts.get(counter);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-36s %12s %12s %14s %10s%n", "step", "invocations", "changes", "total ms",
+                    "ns/call"));
+            for (StepStats stats : steps) {
+                sb.append(String.format("%-36s %12d %12d %14.3f %10d%n", stats.step, stats.invocations,
+                        stats.changes, stats.nanos / 1e6, stats.invocations == 0 ? 0 : stats.nanos / stats.invocations));
+            }
+            for (Map.Entry<Counter, Long> entry : counts.entrySet()) {
+                sb.append(String.format("%-36s %12d%n", entry.getKey(), entry.getValue()));
+            }
+            return sb.toString();
+        }
+    }
+}
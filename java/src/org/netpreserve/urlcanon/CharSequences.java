@@ -42,6 +42,50 @@ class CharSequences {
         return parseUnsignedLongNoThrow(s, 0, s.length(), 10);
     }
 
+    /**
+     * Returns s[start:end] as a String, without copying if s is a String and
+     * the range covers all of it.
+     */
+    static String toString(CharSequence s, int start, int end) {
+        if (start == 0 && end == s.length() && s instanceof String) {
+            return (String) s;
+        }
+        return s.subSequence(start, end).toString();
+    }
+
+    static int indexOf(CharSequence s, char c, int start, int end) {
+        if (end == s.length() && s instanceof String) {
+            return ((String) s).indexOf(c, start);
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int indexOf(CharSequence s, String target, int start, int end) {
+        if (end == s.length() && s instanceof String) {
+            return ((String) s).indexOf(target, start);
+        }
+        int last = end - target.length();
+        char first = target.charAt(0);
+        outer:
+        for (int i = start; i <= last; i++) {
+            if (s.charAt(i) != first) {
+                continue;
+            }
+            for (int j = 1; j < target.length(); j++) {
+                if (s.charAt(i + j) != target.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
     static String group(Matcher matcher, int group) {
         String g = matcher.group(group);
         return g == null ? "" : g;
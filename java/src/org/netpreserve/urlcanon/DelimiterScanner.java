@@ -0,0 +1,121 @@
+/*
+ * DelimiterScanner.java - fast searches for url delimiters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+/**
+ * Finds delimiters in the input to the parser.
+ *
+ * Long stretches of Strings (and bytes, via {@link ByteChars}) are searched
+ * with String.indexOf, which JDK 9+ compiles to vectorized instructions that
+ * test many chars at a time. On long urls that's several times faster than
+ * testing a char at a time. Short stretches and other CharSequences use a
+ * plain loop.
+ *
+ * The characters to percent-encode are found the same way a set at a time
+ * with {@link #indexOfAny}, so that the runs between them can be copied in
+ * bulk.
+ */
+final class DelimiterScanner {
+    /**
+     * Stretches shorter than this are scanned a char at a time as the
+     * intrinsic's setup cost wouldn't pay off.
+     */
+    private static final int MIN_INDEXOF_SCAN = 32;
+
+    private DelimiterScanner() {
+    }
+
+    /**
+     * Returns the index of the first c in s[from:to], or to if there isn't one.
+     */
+    static int indexOf(CharSequence s, char c, int from, int to) {
+        String str = indexableString(s, from, to);
+        if (str != null) {
+            int i = str.indexOf(c, from);
+            return i == -1 || i > to ? to : i;
+        }
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) return i;
+        }
+        return to;
+    }
+
+    /**
+     * Returns the index of the first a or b in s[from:to], or to if there
+     * isn't one.
+     */
+    static int indexOfEither(CharSequence s, char a, char b, int from, int to) {
+        if (indexableString(s, from, to) != null) {
+            // two vectorized passes still beat one pass a char at a time
+            return indexOf(s, b, from, indexOf(s, a, from, to));
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == a || c == b) return i;
+        }
+        return to;
+    }
+
+    /**
+     * Returns the index of the first char in s[from:to] that's above U+00FF
+     * or in set, or to if there isn't one.
+     */
+    static int indexOfAny(CharSequence s, boolean[] set, int from, int to) {
+        if (s instanceof String) {
+            // a monomorphic charAt the JIT can inline into the loop
+            String str = (String) s;
+            for (int i = from; i < to; i++) {
+                char c = str.charAt(i);
+                if (c > 0xff || set[c]) return i;
+            }
+            return to;
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c > 0xff || set[c]) return i;
+        }
+        return to;
+    }
+
+    /**
+     * Returns the index of the last c in s[from:to], or -1 if there isn't one.
+     */
+    static int lastIndexOf(CharSequence s, char c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (s.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the String to search with indexOf, or null if a loop is better.
+     * String.indexOf can't be told where to stop, so it's only used when it
+     * can't run much further than to.
+     */
+    private static String indexableString(CharSequence s, int from, int to) {
+        int length = to - from;
+        if (length < MIN_INDEXOF_SCAN || s.length() - to > length) {
+            return null;
+        } else if (s instanceof String) {
+            return (String) s;
+        } else if (s instanceof ByteChars) {
+            return ((ByteChars) s).latin1();
+        } else {
+            return null;
+        }
+    }
+}
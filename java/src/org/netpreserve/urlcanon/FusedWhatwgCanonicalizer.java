@@ -0,0 +1,265 @@
+/*
+ * FusedWhatwgCanonicalizer.java - WHATWG canonicalization in a single pass
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import static org.netpreserve.urlcanon.ParsedUrl.AT_SIGN;
+import static org.netpreserve.urlcanon.ParsedUrl.BACKSLASH;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_AFTER_SCHEME;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_BEFORE_PASSWORD;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_BEFORE_PORT;
+import static org.netpreserve.urlcanon.ParsedUrl.DOT;
+import static org.netpreserve.urlcanon.ParsedUrl.FRAGMENT;
+import static org.netpreserve.urlcanon.ParsedUrl.HASH_SIGN;
+import static org.netpreserve.urlcanon.ParsedUrl.HOST;
+import static org.netpreserve.urlcanon.ParsedUrl.LEADING_JUNK;
+import static org.netpreserve.urlcanon.ParsedUrl.NON_ASCII;
+import static org.netpreserve.urlcanon.ParsedUrl.PASSWORD;
+import static org.netpreserve.urlcanon.ParsedUrl.PATH;
+import static org.netpreserve.urlcanon.ParsedUrl.PERCENT;
+import static org.netpreserve.urlcanon.ParsedUrl.PORT;
+import static org.netpreserve.urlcanon.ParsedUrl.QUERY;
+import static org.netpreserve.urlcanon.ParsedUrl.QUESTION_MARK;
+import static org.netpreserve.urlcanon.ParsedUrl.SCHEME;
+import static org.netpreserve.urlcanon.ParsedUrl.SLASHES;
+import static org.netpreserve.urlcanon.ParsedUrl.SPAN_COMPONENTS;
+import static org.netpreserve.urlcanon.ParsedUrl.TAB_OR_NEWLINE;
+import static org.netpreserve.urlcanon.ParsedUrl.TRAILING_JUNK;
+import static org.netpreserve.urlcanon.ParsedUrl.UNSAFE;
+import static org.netpreserve.urlcanon.ParsedUrl.USERNAME;
+import static org.netpreserve.urlcanon.WhatwgCanonicalizer.C0_ENCODE;
+import static org.netpreserve.urlcanon.WhatwgCanonicalizer.HOST_ENCODE;
+import static org.netpreserve.urlcanon.WhatwgCanonicalizer.PATH_ENCODE;
+import static org.netpreserve.urlcanon.WhatwgCanonicalizer.QUERY_ENCODE;
+import static org.netpreserve.urlcanon.WhatwgCanonicalizer.USERINFO_ENCODE;
+
+/**
+ * Does what the steps of {@link WhatwgCanonicalizer} do, with the same
+ * result, in one walk over the components. Each component is read in place
+ * from the url's source and written once, in canonical form, to a single
+ * buffer that then becomes the url's new source. Intermediate Strings are
+ * only made for the rare components that need more than one transformation
+ * of their text, like hosts that are IP addresses or IDNs and paths with
+ * dot segments.
+ *
+ * Not thread-safe; each thread uses its own, or its context's.
+ */
+final class FusedWhatwgCanonicalizer {
+    /**
+     * Output buffers bigger than this aren't kept for the next url, so that
+     * one huge url doesn't pin its buffer.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<FusedWhatwgCanonicalizer> perThread =
+            ThreadLocal.withInitial(() -> new FusedWhatwgCanonicalizer(null));
+
+    private final CanonicalizationContext context;
+    private StringBuilder out = new StringBuilder();
+    private StringBuilder spare; // the other buffer, when out is still a url's source
+    private final int[] spans = new int[SPAN_COMPONENTS * 2];
+
+    // the component being read: chars[start:end]
+    private CharSequence chars;
+    private int start;
+    private int end;
+
+    FusedWhatwgCanonicalizer(CanonicalizationContext context) {
+        this.context = context;
+    }
+
+    static void canonicalize(ParsedUrl url, Charset charset) {
+        (url.context != null ? url.context.fused() : perThread.get()).run(url, charset);
+    }
+
+    private void run(ParsedUrl url, Charset charset) {
+        StringBuilder out = this.out;
+        if (url.isSource(out)) {
+            // recanonicalizing a context's url: don't overwrite what's being read
+            if (spare == null) spare = new StringBuilder();
+            this.out = spare;
+            spare = out;
+            out = this.out;
+        }
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            this.out = out = new StringBuilder();
+        }
+        out.setLength(0);
+        int delimiters = url.delimiterBits();
+
+        setSpan(LEADING_JUNK, 0);
+
+        // lowercaseScheme
+        load(url, SCHEME);
+        if (url.has(SCHEME, NON_ASCII)) {
+            out.append(chars.subSequence(start, end).toString().toLowerCase(Locale.US));
+        } else {
+            for (int i = start; i < end; i++) {
+                char c = chars.charAt(i);
+                out.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+            }
+        }
+        setSpan(SCHEME, 0);
+        SpecialScheme special = SpecialScheme.of(out, 0, out.length());
+        if (has(delimiters, COLON_AFTER_SCHEME)) out.append(':');
+
+        // twoSlashes
+        int slashesStart = out.length();
+        load(url, SLASHES);
+        if (start < end || special != null) {
+            out.append("//");
+        }
+        setSpan(SLASHES, slashesStart);
+
+        // cleanUpUserinfo and pctEncodeUserinfo
+        load(url, PASSWORD);
+        boolean hasPassword = start < end;
+        int usernameStart = out.length();
+        append(url, USERNAME, USERINFO_ENCODE, charset);
+        boolean hasUsername = out.length() > usernameStart;
+        if (!hasPassword) {
+            delimiters = clear(delimiters, COLON_BEFORE_PASSWORD);
+            if (!hasUsername) {
+                delimiters = clear(delimiters, AT_SIGN);
+            }
+        }
+        if (has(delimiters, COLON_BEFORE_PASSWORD)) out.append(':');
+        append(url, PASSWORD, USERINFO_ENCODE, charset);
+        if (has(delimiters, AT_SIGN)) out.append('@');
+
+        // pctDecodeHost, normalizeIpAddress, punycodeSpecialHost and pctEncodeHost
+        int hostStart = out.length();
+        load(url, HOST);
+        if (special != null && url.has(HOST, PERCENT)) {
+            load(WhatwgCanonicalizer.pctDecode(chars, start, end, charset));
+        }
+        if (end - start > 0 && chars.charAt(start) == '[' && chars.charAt(end - 1) == ']') {
+            load(WhatwgCanonicalizer.normalizeIpAddress(chars.subSequence(start, end).toString()));
+        } else {
+            long ipv4 = IpAddresses.parseIpv4(chars, start, end);
+            if (ipv4 != -1) {
+                load(IpAddresses.formatIpv4(ipv4));
+            }
+        }
+        if (special != null && !WhatwgCanonicalizer.isIdnNoOp(chars, start, end, charset)) {
+            load(WhatwgCanonicalizer.punycodeHost(chars.subSequence(start, end).toString(), charset));
+        }
+        WhatwgCanonicalizer.appendPctEncoded(out, chars, start, end, HOST_ENCODE, charset);
+        setSpan(HOST, hostStart);
+
+        // elideDefaultPort
+        load(url, PORT);
+        if (special != null && special.defaultPort != -1
+                && (int) CharSequences.parseUnsignedLongNoThrow(chars, start, end, 10) == special.defaultPort) {
+            delimiters = clear(delimiters, COLON_BEFORE_PORT);
+            setSpan(PORT, out.length());
+        } else {
+            if (has(delimiters, COLON_BEFORE_PORT)) out.append(':');
+            int portStart = out.length();
+            out.append(chars, start, end);
+            setSpan(PORT, portStart);
+        }
+
+        // fixBackslashes, pctEncodePath, leadingSlash and normalizePathDots;
+        // leadingSlash leaves emptyPathToSlash nothing to do
+        int pathStart = out.length();
+        load(url, PATH);
+        char first = start < end ? chars.charAt(start) : 0;
+        if (special != null && (first == '/' || first == '\\') && url.has(PATH, BACKSLASH)) {
+            load(chars.subSequence(start, end).toString().replace('\\', '/'));
+            first = '/';
+        }
+        boolean[] encodeSet = first == '/' || special != null ? PATH_ENCODE : C0_ENCODE;
+        boolean leadingSlash = special != null && first != '/';
+        if (url.has(PATH, DOT | PERCENT | NON_ASCII | UNSAFE)) {
+            // encode first as the dot segments may be percent-encoded
+            StringBuilder path = context == null ? new StringBuilder(end - start + 16) : context.builder();
+            if (leadingSlash) path.append('/');
+            WhatwgCanonicalizer.appendPctEncoded(path, chars, start, end, encodeSet, charset);
+            WhatwgCanonicalizer.resolvePathDotsTo(out, path, 0, path.length(), special != null, context);
+        } else {
+            if (leadingSlash) out.append('/');
+            out.append(chars, start, end);
+        }
+        setSpan(PATH, pathStart);
+
+        // pctEncodeQuery
+        if (has(delimiters, QUESTION_MARK)) out.append('?');
+        append(url, QUERY, QUERY_ENCODE, charset);
+
+        // pctEncodeFragment
+        if (has(delimiters, HASH_SIGN)) out.append('#');
+        append(url, FRAGMENT, C0_ENCODE, charset);
+
+        setSpan(TRAILING_JUNK, out.length());
+
+        if (context != null) {
+            url.setSerialized(out, spans, delimiters, null);
+        } else {
+            String string = out.toString();
+            url.setSerialized(string, spans, delimiters, string);
+        }
+        url.markClean();
+    }
+
+    /**
+     * Reads a component, without the tabs and newlines that
+     * removeTabsAndNewlines would remove.
+     */
+    private void load(ParsedUrl url, int component) {
+        chars = url.chars(component);
+        start = url.charsStart(component);
+        end = url.charsEnd(component);
+        if (url.has(component, TAB_OR_NEWLINE)) {
+            load(WhatwgCanonicalizer.removeTabsAndNewlines(chars, start, end));
+        }
+    }
+
+    private void load(String value) {
+        chars = value;
+        start = 0;
+        end = value.length();
+    }
+
+    /**
+     * Reads a component and appends it percent-encoded.
+     */
+    private void append(ParsedUrl url, int component, boolean[] encodeSet, Charset charset) {
+        int componentStart = out.length();
+        load(url, component);
+        WhatwgCanonicalizer.appendPctEncoded(out, chars, start, end, encodeSet, charset);
+        setSpan(component, componentStart);
+    }
+
+    /**
+     * Records that a component runs from componentStart to the end of out.
+     */
+    private void setSpan(int component, int componentStart) {
+        spans[component * 2] = componentStart;
+        spans[component * 2 + 1] = out.length();
+    }
+
+    private static boolean has(int delimiters, int delimiter) {
+        return (delimiters & 1 << (delimiter - COLON_AFTER_SCHEME)) != 0;
+    }
+
+    private static int clear(int delimiters, int delimiter) {
+        return delimiters & ~(1 << (delimiter - COLON_AFTER_SCHEME));
+    }
+}
@@ -3,9 +3,26 @@ package org.netpreserve.urlcanon;
 import com.ibm.icu.text.IDNA;
 
 class IdnIcu4j implements Idn {
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
+    // UTS46 instances are immutable so this can be shared between threads
     private final IDNA idna = IDNA.getUTS46Instance(IDNA.NONTRANSITIONAL_TO_ASCII);
 
+    // nameToASCII clears the destination and info before use, so each thread
+    // can reuse its own rather than allocating them on every call
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
     public String toAscii(String name) {
-        return idna.nameToASCII(name, new StringBuilder(), new IDNA.Info()).toString();
+        Scratch s = scratch.get();
+        String ascii = idna.nameToASCII(name, s.dest, s.info).toString();
+        if (s.dest.capacity() > MAX_RETAINED_CAPACITY) {
+            s.dest = new StringBuilder();
+        }
+        return ascii;
+    }
+
+    private static class Scratch {
+        StringBuilder dest = new StringBuilder();
+        final IDNA.Info info = new IDNA.Info();
     }
 }
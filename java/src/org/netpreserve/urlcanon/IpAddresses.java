@@ -24,8 +24,12 @@ class IpAddresses {
         if (ipv4 < 0) {
             throw new IllegalArgumentException("value " + ipv4);
         }
-        return String.format("%d.%d.%d.%d", ipv4 >> 24, (ipv4 >> 16) & 0xff,
-                (ipv4 >> 8) & 0xff, ipv4 & 0xff);
+        // not String.format(), which creates a Formatter and looks up locale data on every call
+        return new StringBuilder(15)
+                .append(ipv4 >> 24).append('.')
+                .append((ipv4 >> 16) & 0xff).append('.')
+                .append((ipv4 >> 8) & 0xff).append('.')
+                .append(ipv4 & 0xff).toString();
     }
 
     static short[] parseIpv6(String host) {
@@ -139,18 +143,25 @@ class IpAddresses {
     }
 
     static long parseIpv4(String host) {
+        return parseIpv4(host, 0, host.length());
+    }
+
+    /**
+     * Parses host[start:end] as an IPv4 address, returning -1 if it isn't one.
+     */
+    static long parseIpv4(CharSequence host, int start, int end) {
         long ipv4 = 0;
-        int startOfPart = 0;
+        int startOfPart = start;
 
-        if (host.isEmpty()) {
+        if (start == end) {
             return -1;
         }
 
         for (int i = 0;; i++) {
             // find the end of this part
-            int endOfPart = host.indexOf(".", startOfPart);
+            int endOfPart = CharSequences.indexOf(host, '.', startOfPart, end);
             if (endOfPart == -1) {
-                endOfPart = host.length();
+                endOfPart = end;
             }
 
             // if there's more than 4 return failure
@@ -167,7 +178,7 @@ class IpAddresses {
             }
 
             // if this is the last part (or second-last part and last part is empty)
-            if (endOfPart >= host.length() - 1) {
+            if (endOfPart >= end - 1) {
                 if (part >= (1L << (8 * (4 - i)))) {
                     return -1; // too big
                 }
@@ -187,7 +198,7 @@ class IpAddresses {
         }
     }
 
-    private static long parseIpv4Num(String host, int start, int end) {
+    private static long parseIpv4Num(CharSequence host, int start, int end) {
         int radix = 10;
         if (end - start >= 2 && host.charAt(start) == '0') {
             char c = host.charAt(start + 1);
@@ -0,0 +1,211 @@
+/*
+ * MultiCanonicalizer.java - several canonical forms of a url from one parse
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Canonicalizes a url several ways at once, as when storing a capture under
+ * its WHATWG, semantic and aggressive forms:
+ *
+ * <pre>
+ * MultiCanonicalizer keys = new MultiCanonicalizer(
+ *         Canonicalizer.WHATWG, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE);
+ * String[] forms = keys.canonicalizeToStrings(url); // in the same order
+ * </pre>
+ *
+ * The url is parsed once. The canonicalizers' steps form a tree: steps that
+ * several of them start with run once, and the url is only copied where
+ * their steps diverge, which is cheap as a copy shares the unmodified
+ * components. Semantic is semantic-precise plus one step and aggressive is
+ * semantic plus some, so all three together cost about as much as
+ * aggressive alone. The canonicalizers must be built-in ones or made by
+ * {@link CanonicalizerBuilder}.
+ *
+ * Thread-safe, as it keeps no state between urls.
+ */
+public final class MultiCanonicalizer {
+    private final int count;
+    private final Node root;
+
+    /**
+     * @throws IllegalArgumentException if a canonicalizer isn't made of steps
+     */
+    public MultiCanonicalizer(Canonicalizer... canonicalizers) {
+        count = canonicalizers.length;
+        TrieNode trie = new TrieNode();
+        for (int i = 0; i < canonicalizers.length; i++) {
+            Charset charset = CanonicalizerBuilder.charsetOf(canonicalizers[i]);
+            TrieNode node = trie;
+            for (Step[] unit : units(CanonicalizerBuilder.stepsOf(canonicalizers[i]))) {
+                node = node.child(unit, charset);
+            }
+            node.outputs.add(i);
+        }
+        root = trie.compile();
+    }
+
+    /**
+     * Parses input once and canonicalizes it with each canonicalizer,
+     * returning the urls in the order the canonicalizers were given.
+     */
+    public ParsedUrl[] canonicalize(CharSequence input) {
+        ParsedUrl[] results = new ParsedUrl[count];
+        root.run(ParsedUrl.parseUrl(input), results);
+        return results;
+    }
+
+    /**
+     * Like {@link #canonicalize(CharSequence)} but formats the urls.
+     */
+    public String[] canonicalizeToStrings(CharSequence input) {
+        ParsedUrl[] urls = canonicalize(input);
+        String[] strings = new String[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            strings[i] = urls[i].toString();
+        }
+        return strings;
+    }
+
+    /**
+     * The tree of steps, a node per line, indented by depth.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        root.describe(sb, 0);
+        return sb.toString();
+    }
+
+    /**
+     * Splits the steps into the units the tree branches between: the steps
+     * one at a time, except that a leading copy of all the WHATWG steps stays
+     * together so that it still runs fused.
+     */
+    private static List<Step[]> units(Step[] steps) {
+        List<Step[]> units = new ArrayList<>();
+        int i = 0;
+        Step[] whatwg = WhatwgCanonicalizer.STEPS;
+        if (steps.length >= whatwg.length && sameNames(Arrays.copyOf(steps, whatwg.length), whatwg)) {
+            units.add(whatwg);
+            i = whatwg.length;
+        }
+        for (; i < steps.length; i++) {
+            units.add(new Step[]{steps[i]});
+        }
+        return units;
+    }
+
+    private static boolean sameNames(Step[] a, Step[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (!a[i].name.equals(b[i].name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The tree as it's built, with a unit of steps per edge.
+     */
+    private static final class TrieNode {
+        final List<Step> steps = new ArrayList<>();
+        Charset charset;
+        final List<Integer> outputs = new ArrayList<>();
+        final Map<String, TrieNode> children = new LinkedHashMap<>();
+
+        TrieNode child(Step[] unit, Charset charset) {
+            StringBuilder key = new StringBuilder(charset.name());
+            for (Step step : unit) {
+                key.append(' ').append(step.name);
+            }
+            return children.computeIfAbsent(key.toString(), k -> {
+                TrieNode child = new TrieNode();
+                child.steps.addAll(Arrays.asList(unit));
+                child.charset = charset;
+                return child;
+            });
+        }
+
+        /**
+         * Compiles the tree, running chains of nodes that don't branch as one.
+         */
+        Node compile() {
+            TrieNode node = this;
+            List<Step> steps = new ArrayList<>(node.steps);
+            Charset charset = node.charset;
+            while (node.outputs.isEmpty() && node.children.size() == 1) {
+                node = node.children.values().iterator().next();
+                steps.addAll(node.steps);
+                charset = node.charset;
+            }
+            Node[] children = new Node[node.children.size()];
+            int i = 0;
+            for (TrieNode child : node.children.values()) {
+                children[i++] = child.compile();
+            }
+            int[] outputs = new int[node.outputs.size()];
+            for (i = 0; i < outputs.length; i++) {
+                outputs[i] = node.outputs.get(i);
+            }
+            return new Node(Pipeline.compile(steps.toArray(new Step[0])), charset, outputs, children);
+        }
+    }
+
+    private static final class Node {
+        final Pipeline pipeline;
+        final Charset charset; // null if there are no steps
+        final int[] outputs; // the canonicalizers whose steps end here
+        final Node[] children;
+
+        Node(Pipeline pipeline, Charset charset, int[] outputs, Node[] children) {
+            this.pipeline = pipeline;
+            this.charset = charset;
+            this.outputs = outputs;
+            this.children = children;
+        }
+
+        void run(ParsedUrl url, ParsedUrl[] results) {
+            if (pipeline.steps.length > 0) {
+                pipeline.run(url, charset);
+            }
+            // the last to use the url gets it, the others a copy
+            int uses = outputs.length + children.length;
+            for (int output : outputs) {
+                results[output] = --uses == 0 ? url : new ParsedUrl(url);
+            }
+            for (Node child : children) {
+                child.run(--uses == 0 ? url : new ParsedUrl(url), results);
+            }
+        }
+
+        void describe(StringBuilder sb, int depth) {
+            for (int i = 0; i < depth; i++) sb.append("  ");
+            sb.append(pipeline.steps.length > 0 ? pipeline.toString() : "parse");
+            for (int output : outputs) sb.append(" => ").append(output);
+            sb.append('\n');
+            for (Node child : children) {
+                child.describe(sb, depth + 1);
+            }
+        }
+    }
+}
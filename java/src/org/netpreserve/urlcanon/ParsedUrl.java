@@ -20,127 +20,241 @@
 
 package org.netpreserve.urlcanon;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 public class ParsedUrl {
-    final static Map<String,Integer> SPECIAL_SCHEMES = initSpecialSchemes();
+    /*
+     * Components that can be arbitrarily long are taken lazily from the input
+     * string: the parser just records their offsets in spans and leaves the
+     * field null until the getter first needs it. Delimiters are always
+     * stored directly as they're either empty or a shared constant.
+     */
+    static final int LEADING_JUNK = 0;
+    static final int TRAILING_JUNK = 1;
+    static final int SCHEME = 2;
+    static final int SLASHES = 3;
+    static final int USERNAME = 4;
+    static final int PASSWORD = 5;
+    static final int HOST = 6;
+    static final int PORT = 7;
+    static final int PATH = 8;
+    static final int QUERY = 9;
+    static final int FRAGMENT = 10;
+    static final int SPAN_COMPONENTS = 11;
+
+    /*
+     * Delimiters are nearly always either absent or their usual character so
+     * they're stored as presence bits. Any other value a caller sets is kept
+     * in unusualDelimiters, which is normally null.
+     */
+    static final int COLON_AFTER_SCHEME = 11;
+    static final int COLON_BEFORE_PASSWORD = 12;
+    static final int AT_SIGN = 13;
+    static final int COLON_BEFORE_PORT = 14;
+    static final int QUESTION_MARK = 15;
+    static final int HASH_SIGN = 16;
+    private static final String[] USUAL_DELIMITERS = {":", ":", "@", ":", "?", "#"};
+
+    /**
+     * Bit mask of every component and delimiter.
+     */
+    static final int ALL_COMPONENTS = (1 << 17) - 1;
 
-    private static Map<String, Integer> initSpecialSchemes() {
-        Map<String,Integer> map = new HashMap<>();
-        map.put("ftp", 21);
-        map.put("gopher", 70);
-        map.put("http", 80);
-        map.put("https", 443);
-        map.put("ws", 80);
-        map.put("wss", 443);
-        map.put("file", null);
-        return map;
+    /*
+     * Classes of characters a component contains. Canonicalization steps
+     * check these to skip work that would leave the component unchanged.
+     * They're worked out on first use with a single scan of the component and
+     * kept until it changes.
+     */
+    static final int NON_ASCII = 1;
+    static final int UNSAFE = 2; // C0 controls, space, DEL and "#<>?`{}, the ASCII the WHATWG encode sets escape
+    static final int TAB_OR_NEWLINE = 4;
+    static final int PERCENT = 8;
+    static final int DOT = 16;
+    static final int BACKSLASH = 32;
+    private static final int CLASSIFIED = 64;
+    private static final int CLASS_BITS = 7;
+    private static final byte[] ASCII_CLASSES = initAsciiClasses();
+
+    private static byte[] initAsciiClasses() {
+        byte[] classes = new byte[128];
+        for (int c = 0; c <= 0x20; c++) {
+            classes[c] = UNSAFE;
+        }
+        for (char c : "\u007f\"#<>?`{}".toCharArray()) {
+            classes[c] = UNSAFE;
+        }
+        classes['\t'] = classes['\n'] = classes['\r'] = UNSAFE | TAB_OR_NEWLINE;
+        classes['%'] = PERCENT;
+        classes['.'] = DOT;
+        classes['\\'] = BACKSLASH;
+        return classes;
     }
 
+    /**
+     * Where urls are formatted on their way to UTF-8 bytes. Buffers bigger
+     * than MAX_RETAINED_CAPACITY aren't kept for the next url.
+     */
+    private static final ThreadLocal<StringBuilder> scratch = ThreadLocal.withInitial(StringBuilder::new);
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private CharSequence source; // a String or ByteChars, null once every component is materialized
+    private int[] spans; // start and end offset in source of each lazy component
+
     private String leadingJunk;
     private String trailingJunk;
     private String scheme;
-    private String colonAfterScheme;
-    private String questionMark;
     private String query;
-    private String hashSign;
     private String fragment;
     private String slashes;
     private String path;
     private String username;
-    private String colonBeforePassword;
     private String password;
-    private String atSign;
     private String host;
-    private String colonBeforePort;
     private String port;
 
+    private int delimiters;
+    private String[] unusualDelimiters;
+
+    // bit per component changed since markClean()
+    private int dirty = ALL_COMPONENTS;
+
+    private long classes; // CLASS_BITS per component from SCHEME to FRAGMENT, zero until classified
+    private int specialScheme; // 0 until looked up, then 1 + ordinal, or -1 if not special
+
+    // scratch buffers for canonicalization steps, if this url is reused by a context
+    CanonicalizationContext context;
+
+    // formatted forms, computed on first use and cleared by every change
+    private String string;
+    private String surt;
+    private String ssurt;
+    private int hash;
+
     //-------------------------------------------------------------------------
     //region URL Parsing
     //-------------------------------------------------------------------------
 
+    ParsedUrl(CharSequence source) {
+        this.source = source;
+        this.spans = new int[SPAN_COMPONENTS * 2];
+    }
+
+    /**
+     * Makes this a fresh url for the parser to fill in from a new source,
+     * reusing the spans array.
+     */
+    void reset(CharSequence source) {
+        this.source = source;
+        if (spans == null) {
+            spans = new int[SPAN_COMPONENTS * 2];
+        }
+        leadingJunk = trailingJunk = scheme = slashes = username = password = null;
+        host = port = path = query = fragment = null;
+        delimiters = 0;
+        unusualDelimiters = null;
+        dirty = ALL_COMPONENTS;
+        classes = 0;
+        specialScheme = 0;
+        invalidate();
+    }
+
+    /**
+     * An empty url to be filled in through the setters, as by UrlBuilder.
+     */
     ParsedUrl() {
+        leadingJunk = trailingJunk = scheme = slashes = username = password = "";
+        host = port = path = query = fragment = "";
     }
 
     /**
      * Copy constructor.
      */
     public ParsedUrl(ParsedUrl parsedUrl) {
-        this.leadingJunk = parsedUrl.getLeadingJunk();
-        this.trailingJunk = parsedUrl.getTrailingJunk();
-        this.scheme = parsedUrl.getScheme();
-        this.colonAfterScheme = parsedUrl.getColonAfterScheme();
-        this.questionMark = parsedUrl.getQuestionMark();
-        this.query = parsedUrl.getQuery();
-        this.hashSign = parsedUrl.getHashSign();
-        this.fragment = parsedUrl.getFragment();
-        this.slashes = parsedUrl.getSlashes();
-        this.path = parsedUrl.getPath();
-        this.username = parsedUrl.getUsername();
-        this.colonBeforePassword = parsedUrl.getColonBeforePassword();
-        this.password = parsedUrl.getPassword();
-        this.atSign = parsedUrl.getAtSign();
-        this.host = parsedUrl.getHost();
-        this.colonBeforePort = parsedUrl.getColonBeforePort();
-        this.port = parsedUrl.getPort();
+        if (parsedUrl.context != null) {
+            // the context's url is reused, and may be parsed from its input buffer
+            parsedUrl.materialize();
+        } else {
+            this.source = parsedUrl.source;
+            if (parsedUrl.spans != null) {
+                // not shared, as canonicalization may rewrite them in place
+                this.spans = parsedUrl.spans.clone();
+            }
+        }
+        this.leadingJunk = parsedUrl.leadingJunk;
+        this.trailingJunk = parsedUrl.trailingJunk;
+        this.scheme = parsedUrl.scheme;
+        this.query = parsedUrl.query;
+        this.fragment = parsedUrl.fragment;
+        this.slashes = parsedUrl.slashes;
+        this.path = parsedUrl.path;
+        this.username = parsedUrl.username;
+        this.password = parsedUrl.password;
+        this.host = parsedUrl.host;
+        this.port = parsedUrl.port;
+        this.delimiters = parsedUrl.delimiters;
+        if (parsedUrl.unusualDelimiters != null) {
+            this.unusualDelimiters = parsedUrl.unusualDelimiters.clone();
+        }
+        this.string = parsedUrl.string;
+        this.surt = parsedUrl.surt;
+        this.ssurt = parsedUrl.ssurt;
+        this.hash = parsedUrl.hash;
+        this.dirty = parsedUrl.dirty;
+        this.classes = parsedUrl.classes;
+        this.specialScheme = parsedUrl.specialScheme;
     }
 
     private ParsedUrl(ParsedUrl base, ParsedUrl relative) {
-        leadingJunk = relative.leadingJunk;
-        trailingJunk = relative.trailingJunk;
-        scheme = relative.scheme;
-        colonAfterScheme = relative.colonAfterScheme;
-        questionMark = relative.questionMark;
-        query = relative.query;
-        hashSign = relative.hashSign;
-        fragment = relative.fragment;
-        slashes = relative.slashes;
-        path = relative.path;
-        username = relative.username;
-        colonBeforePassword = relative.colonBeforePassword;
-        password = relative.password;
-        atSign = relative.atSign;
-        host = relative.host;
-        colonBeforePort = relative.colonBeforePort;
-        port = relative.port;
-
-        if (!slashes.isEmpty()) {
-            if (scheme.isEmpty()) {
-                scheme = base.scheme;
+        this(relative);
+        invalidate();
+        // fields are assigned directly below, bypassing changed()
+        dirty = ALL_COMPONENTS;
+        classes = 0;
+        specialScheme = 0;
+
+        if (!getSlashes().isEmpty()) {
+            if (getScheme().isEmpty()) {
+                scheme = base.getScheme();
             }
             return;
         }
 
-        if (!scheme.isEmpty() && !scheme.equalsIgnoreCase(base.scheme)) {
+        if (!getScheme().isEmpty() && !getScheme().equalsIgnoreCase(base.getScheme())) {
             return;
         }
 
-        if (scheme.isEmpty() || scheme.equalsIgnoreCase(base.scheme)) {
-            scheme = base.scheme;
-            colonAfterScheme = base.colonAfterScheme;
-            username = base.username;
-            colonBeforePassword = base.colonBeforePassword;
-            password = base.password;
-            atSign = base.atSign;
-            host = base.host;
-            colonBeforePort = base.colonBeforePort;
-            port = base.port;
+        if (getScheme().isEmpty() || getScheme().equalsIgnoreCase(base.getScheme())) {
+            scheme = base.getScheme();
+            setColonAfterScheme(base.getColonAfterScheme());
+            username = base.getUsername();
+            setColonBeforePassword(base.getColonBeforePassword());
+            password = base.getPassword();
+            setAtSign(base.getAtSign());
+            host = base.getHost();
+            setColonBeforePort(base.getColonBeforePort());
+            port = base.getPort();
         }
 
-        if (path.isEmpty() && !relative.host.isEmpty()) {
-            path = relative.host;
+        if (getPath().isEmpty() && !relative.getHost().isEmpty()) {
+            path = relative.getHost();
         }
 
-        if (path.isEmpty() || path.charAt(0) == '/') {
+        if (getPath().isEmpty() || getPath().charAt(0) == '/') {
             return;
         }
 
-        path = base.dirname() + path;
+        path = base.dirname() + getPath();
     }
 
     private String dirname() {
+        String path = getPath();
         for (int i = path.length() - 1; i >= 0; i--) {
             if (path.charAt(i) == '/') {
                 return path.substring(0, i + 1);
@@ -149,12 +263,431 @@ public class ParsedUrl {
         return "";
     }
 
+    /**
+     * Parses a UTF-8 encoded url.
+     */
     public static ParsedUrl parseUrl(byte[] bytes) {
-        return parseUrl(new String(bytes));
+        return parseUrl(bytes, 0, bytes.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a UTF-8 encoded url from a slice of a byte array.
+     */
+    public static ParsedUrl parseUrl(byte[] bytes, int offset, int length) {
+        return parseUrl(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a url from a slice of a byte array.
+     *
+     * Component boundaries are found by scanning the bytes themselves, the
+     * same way parse.py does, and each component is only decoded to a String
+     * when it's first needed. The charset must be ASCII-compatible, such as
+     * UTF-8 or ISO-8859-1 (which maps each byte to the char with the same
+     * value). The bytes are copied so the caller may reuse the array.
+     */
+    public static ParsedUrl parseUrl(byte[] bytes, int offset, int length, Charset charset) {
+        return UrlParser.parseUrl(new ByteChars(bytes, offset, length, charset), 0, length);
+    }
+
+    /**
+     * Parses a UTF-8 encoded url from the remaining bytes of a buffer. The
+     * buffer's position is not changed.
+     */
+    public static ParsedUrl parseUrl(ByteBuffer buffer) {
+        return parseUrl(buffer, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a url from the remaining bytes of a heap or direct buffer. The
+     * buffer's position is not changed.
+     *
+     * @see #parseUrl(byte[], int, int, Charset)
+     */
+    public static ParsedUrl parseUrl(ByteBuffer buffer, Charset charset) {
+        if (buffer.hasArray()) {
+            return parseUrl(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), charset);
+        }
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return parseUrl(copy, 0, copy.length, charset);
     }
 
     public static ParsedUrl parseUrl(String input) {
-        return UrlParser.parseUrl(input);
+        return UrlParser.parseUrl(input, 0, input.length());
+    }
+
+    public static ParsedUrl parseUrl(CharSequence input) {
+        return parseUrl(input, 0, input.length());
+    }
+
+    /**
+     * Parses the url in input[start:end], such as a window of a larger buffer.
+     *
+     * A String is parsed in place and components are taken from it lazily, so
+     * the whole string stays reachable while the url is. Any other
+     * CharSequence may be modified by the caller afterwards so its window is
+     * copied once into a String before parsing.
+     */
+    public static ParsedUrl parseUrl(CharSequence input, int start, int end) {
+        if (input instanceof String) {
+            return UrlParser.parseUrl(input, start, end);
+        }
+        String copy = input.subSequence(start, end).toString();
+        return UrlParser.parseUrl(copy, 0, copy.length());
+    }
+
+    /**
+     * Sets a lazy component to the given span of the source string.
+     */
+    void setSpan(int component, int start, int end) {
+        changed(component);
+        spans[component * 2] = start;
+        spans[component * 2 + 1] = end;
+        switch (component) {
+            case LEADING_JUNK: leadingJunk = null; break;
+            case TRAILING_JUNK: trailingJunk = null; break;
+            case SCHEME: scheme = null; break;
+            case SLASHES: slashes = null; break;
+            case USERNAME: username = null; break;
+            case PASSWORD: password = null; break;
+            case HOST: host = null; break;
+            case PORT: port = null; break;
+            case PATH: path = null; break;
+            case QUERY: query = null; break;
+            case FRAGMENT: fragment = null; break;
+            default: throw new IllegalArgumentException("component " + component);
+        }
+    }
+
+    /**
+     * Replaces every component with a span of source, which holds the whole
+     * url serialized with delimiters of their usual values, as written by
+     * {@link FusedWhatwgCanonicalizer}. string is the cached toString(), if
+     * it's known.
+     */
+    void setSerialized(CharSequence source, int[] spans, int delimiters, String string) {
+        this.source = source;
+        if (this.spans == null) {
+            this.spans = new int[SPAN_COMPONENTS * 2];
+        }
+        System.arraycopy(spans, 0, this.spans, 0, SPAN_COMPONENTS * 2);
+        leadingJunk = trailingJunk = scheme = slashes = username = password = null;
+        host = port = path = query = fragment = null;
+        this.delimiters = delimiters;
+        unusualDelimiters = null;
+        dirty = ALL_COMPONENTS;
+        classes = 0;
+        specialScheme = 0;
+        invalidate();
+        this.string = string;
+    }
+
+    /**
+     * True if the url's lazy components are read from sb.
+     */
+    boolean isSource(StringBuilder sb) {
+        return source == sb;
+    }
+
+    /**
+     * Materializes every lazy component and then makes spans refer to a new
+     * source string, for reparsing part of the url.
+     */
+    void rebase(String source) {
+        materialize();
+        this.source = source;
+        this.spans = new int[SPAN_COMPONENTS * 2];
+    }
+
+    private void materialize() {
+        getLeadingJunk();
+        getTrailingJunk();
+        getScheme();
+        getSlashes();
+        getUsername();
+        getPassword();
+        getHost();
+        getPort();
+        getPath();
+        getQuery();
+        getFragment();
+    }
+
+    /**
+     * Drops the source once nothing refers to it any more, so that
+     * canonicalized urls don't retain their input.
+     */
+    private void releaseSourceIfUnused() {
+        if (source != null && leadingJunk != null && trailingJunk != null && scheme != null && slashes != null
+                && username != null && password != null && host != null && port != null && path != null
+                && query != null && fragment != null) {
+            source = null;
+            if (context == null) {
+                spans = null; // a context's url keeps them for the next url
+            }
+        }
+    }
+
+    /**
+     * Marks a component dirty and forgets the cached formatted forms.
+     */
+    private void changed(int component) {
+        dirty |= 1 << component;
+        if (component >= SCHEME && component <= FRAGMENT) {
+            classes &= ~(((1L << CLASS_BITS) - 1) << (component - SCHEME) * CLASS_BITS);
+            if (component == SCHEME) {
+                specialScheme = 0;
+            }
+        }
+        invalidate();
+    }
+
+    private void invalidate() {
+        string = null;
+        surt = null;
+        ssurt = null;
+        hash = 0;
+    }
+
+    static String usualDelimiter(int delimiter) {
+        return USUAL_DELIMITERS[delimiter - COLON_AFTER_SCHEME];
+    }
+
+    String delimiter(int delimiter) {
+        int i = delimiter - COLON_AFTER_SCHEME;
+        if ((delimiters & (1 << i)) == 0) {
+            return "";
+        } else if (unusualDelimiters != null && unusualDelimiters[i] != null) {
+            return unusualDelimiters[i];
+        } else {
+            return USUAL_DELIMITERS[i];
+        }
+    }
+
+    void setDelimiter(int delimiter, String value) {
+        if (!delimiter(delimiter).equals(Objects.requireNonNull(value))) {
+            changed(delimiter);
+        }
+        int i = delimiter - COLON_AFTER_SCHEME;
+        if (value.isEmpty()) {
+            delimiters &= ~(1 << i);
+        } else {
+            delimiters |= 1 << i;
+        }
+        if (value.isEmpty() || value.equals(USUAL_DELIMITERS[i])) {
+            if (unusualDelimiters != null) {
+                unusualDelimiters[i] = null;
+            }
+        } else {
+            if (unusualDelimiters == null) {
+                unusualDelimiters = new String[USUAL_DELIMITERS.length];
+            }
+            unusualDelimiters[i] = value;
+        }
+    }
+
+    /**
+     * True if the component contains any of the given character classes.
+     * Delimiters aren't classified.
+     */
+    boolean has(int component, int classes) {
+        return (classes(component) & classes) != 0;
+    }
+
+    private int classes(int component) {
+        if (component < SCHEME) {
+            return classify(component); // junk is almost always empty, not worth caching
+        }
+        int shift = (component - SCHEME) * CLASS_BITS;
+        int c = (int) (this.classes >>> shift) & ((1 << CLASS_BITS) - 1);
+        if (c == 0) {
+            c = classify(component) | CLASSIFIED;
+            this.classes |= (long) c << shift;
+        }
+        return c;
+    }
+
+    private int classify(int component) {
+        String value = component(component);
+        if (value != null) {
+            return classify(value, 0, value.length());
+        }
+        return classify(source, spans[component * 2], spans[component * 2 + 1]);
+    }
+
+    private static int classify(CharSequence s, int start, int end) {
+        int classes = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            classes |= c < 0x80 ? ASCII_CLASSES[c] : NON_ASCII;
+        }
+        return classes;
+    }
+
+    /**
+     * The special scheme named by the scheme component exactly, or null if
+     * the scheme isn't special (which includes not yet lowercased).
+     */
+    SpecialScheme specialScheme() {
+        if (specialScheme == 0) {
+            SpecialScheme scheme = SpecialScheme.of(getScheme());
+            specialScheme = scheme == null ? -1 : scheme.ordinal() + 1;
+        }
+        return specialScheme > 0 ? SpecialScheme.VALUES[specialScheme - 1] : null;
+    }
+
+    /**
+     * Presence bits of the delimiters, from COLON_AFTER_SCHEME upwards.
+     */
+    int delimiterBits() {
+        return delimiters;
+    }
+
+    boolean hasUnusualDelimiters() {
+        if (unusualDelimiters != null) {
+            for (String delimiter : unusualDelimiters) {
+                if (delimiter != null) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets a component by number, materializing it if it's lazy.
+     */
+    String get(int component) {
+        switch (component) {
+            case LEADING_JUNK: return getLeadingJunk();
+            case TRAILING_JUNK: return getTrailingJunk();
+            case SCHEME: return getScheme();
+            case SLASHES: return getSlashes();
+            case USERNAME: return getUsername();
+            case PASSWORD: return getPassword();
+            case HOST: return getHost();
+            case PORT: return getPort();
+            case PATH: return getPath();
+            case QUERY: return getQuery();
+            case FRAGMENT: return getFragment();
+            default: throw new IllegalArgumentException("component " + component);
+        }
+    }
+
+    /**
+     * Sets a component by number.
+     */
+    void set(int component, String value) {
+        switch (component) {
+            case LEADING_JUNK: setLeadingJunk(value); break;
+            case TRAILING_JUNK: setTrailingJunk(value); break;
+            case SCHEME: setScheme(value); break;
+            case SLASHES: setSlashes(value); break;
+            case USERNAME: setUsername(value); break;
+            case PASSWORD: setPassword(value); break;
+            case HOST: setHost(value); break;
+            case PORT: setPort(value); break;
+            case PATH: setPath(value); break;
+            case QUERY: setQuery(value); break;
+            case FRAGMENT: setFragment(value); break;
+            default: throw new IllegalArgumentException("component " + component);
+        }
+    }
+
+    /**
+     * The chars to read a component from in place, between
+     * {@link #charsStart} and {@link #charsEnd}: the source if the component
+     * is still a span of it, otherwise its value. A span of undecoded bytes
+     * is materialized first.
+     */
+    CharSequence chars(int component) {
+        String value = component(component);
+        if (value != null) {
+            return value;
+        }
+        if (source instanceof ByteChars
+                && !((ByteChars) source).isDecoded(spans[component * 2], spans[component * 2 + 1])) {
+            return get(component);
+        }
+        return source;
+    }
+
+    int charsStart(int component) {
+        return component(component) != null ? 0 : spans[component * 2];
+    }
+
+    int charsEnd(int component) {
+        String value = component(component);
+        return value != null ? value.length() : spans[component * 2 + 1];
+    }
+
+    private String component(int component) {
+        switch (component) {
+            case LEADING_JUNK: return leadingJunk;
+            case TRAILING_JUNK: return trailingJunk;
+            case SCHEME: return scheme;
+            case SLASHES: return slashes;
+            case USERNAME: return username;
+            case PASSWORD: return password;
+            case HOST: return host;
+            case PORT: return port;
+            case PATH: return path;
+            case QUERY: return query;
+            case FRAGMENT: return fragment;
+            default: throw new IllegalArgumentException("component " + component);
+        }
+    }
+
+    /**
+     * True if the component's value equals value, comparing a lazy component
+     * with its span of the source in place.
+     */
+    private boolean hasValue(int component, String value) {
+        String current = component(component);
+        if (current != null) {
+            return current.equals(value);
+        }
+        int start = spans[component * 2];
+        int end = spans[component * 2 + 1];
+        if (source instanceof ByteChars && !((ByteChars) source).isDecoded(start, end)) {
+            return ((ByteChars) source).decode(start, end).equals(value);
+        }
+        if (value.length() != end - start) {
+            return false;
+        }
+        if (source instanceof String) {
+            return ((String) source).regionMatches(start, value, 0, value.length());
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (source.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int capacityHint() {
+        return spans == null ? 64 : Math.max(spans[TRAILING_JUNK * 2 + 1] - spans[LEADING_JUNK * 2], 48) + 16;
+    }
+
+    private String span(int component) {
+        int start = spans[component * 2];
+        int end = spans[component * 2 + 1];
+        if (start == end) {
+            return "";
+        } else if (source instanceof ByteChars) {
+            return ((ByteChars) source).decode(start, end);
+        }
+        return source.subSequence(start, end).toString();
+    }
+
+    private void append(StringBuilder sb, String value, int component) {
+        if (value != null) {
+            sb.append(value);
+        } else if (source instanceof ByteChars) {
+            ((ByteChars) source).appendTo(sb, spans[component * 2], spans[component * 2 + 1]);
+        } else {
+            sb.append(source, spans[component * 2], spans[component * 2 + 1]);
+        }
     }
 
     //-------------------------------------------------------------------------
@@ -166,24 +699,49 @@ public class ParsedUrl {
     //-------------------------------------------------------------------------
 
 
+    /**
+     * Formats this URL. The result is cached until the URL is next modified.
+     */
+    @Override
     public String toString() {
-        return leadingJunk
-                + scheme
-                + colonAfterScheme
-                + slashes
-                + username
-                + colonBeforePassword
-                + password
-                + atSign
-                + host
-                + colonBeforePort
-                + port
-                + path
-                + questionMark
-                + query
-                + hashSign
-                + fragment
-                + trailingJunk;
+        String string = this.string;
+        if (string == null) {
+            this.string = string = format();
+        }
+        return string;
+    }
+
+    private String format() {
+        StringBuilder sb = new StringBuilder(capacityHint());
+        formatTo(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the formatted url to sb, without caching it.
+     */
+    void formatTo(StringBuilder sb) {
+        if (string != null) {
+            sb.append(string);
+            return;
+        }
+        append(sb, leadingJunk, LEADING_JUNK);
+        append(sb, scheme, SCHEME);
+        sb.append(getColonAfterScheme());
+        append(sb, slashes, SLASHES);
+        append(sb, username, USERNAME);
+        sb.append(getColonBeforePassword());
+        append(sb, password, PASSWORD);
+        sb.append(getAtSign());
+        append(sb, host, HOST);
+        sb.append(getColonBeforePort());
+        append(sb, port, PORT);
+        append(sb, path, PATH);
+        sb.append(getQuestionMark());
+        append(sb, query, QUERY);
+        sb.append(getHashSign());
+        append(sb, fragment, FRAGMENT);
+        append(sb, trailingJunk, TRAILING_JUNK);
     }
 
     //-------------------------------------------------------------------------
@@ -195,21 +753,46 @@ public class ParsedUrl {
     //-------------------------------------------------------------------------
 
     private String surt(boolean trailingComma) {
-        String openParen = "".equals(scheme) ? "" : "(";
-        String surtHost = ssurtHost(host);
-        if (!trailingComma) {
-            surtHost = surtHost.replaceFirst(",$", "");
+        StringBuilder sb = new StringBuilder(capacityHint());
+        surtTo(sb, trailingComma);
+        return sb.toString();
+    }
+
+    private void surtTo(StringBuilder sb, boolean trailingComma) {
+        append(sb, leadingJunk, LEADING_JUNK);
+        append(sb, scheme, SCHEME);
+        sb.append(getColonAfterScheme());
+        append(sb, slashes, SLASHES);
+        if (charsEnd(HOST) > charsStart(HOST)) {
+            if (charsEnd(SCHEME) > charsStart(SCHEME)) {
+                sb.append('(');
+            }
+            appendSsurtHost(sb, chars(HOST), charsStart(HOST), charsEnd(HOST));
+            if (!trailingComma && sb.charAt(sb.length() - 1) == ',') {
+                sb.setLength(sb.length() - 1);
+            }
+            sb.append(getColonBeforePort());
+            append(sb, port, PORT);
+            sb.append(')');
         }
-        String hostWithPort = "".equals(host) ? "" : openParen + surtHost + colonBeforePort + port + ")";
-        return leadingJunk + scheme + colonAfterScheme + slashes + hostWithPort + path + questionMark + query + hashSign
-                + fragment + trailingJunk;
+        append(sb, path, PATH);
+        sb.append(getQuestionMark());
+        append(sb, query, QUERY);
+        sb.append(getHashSign());
+        append(sb, fragment, FRAGMENT);
+        append(sb, trailingJunk, TRAILING_JUNK);
     }
 
     /**
-     * Format this URL as a Heritrix-compatible SURT.
+     * Format this URL as a Heritrix-compatible SURT. The result is cached
+     * until the URL is next modified.
      */
     public String surt() {
-        return surt(true);
+        String surt = this.surt;
+        if (surt == null) {
+            this.surt = surt = surt(true);
+        }
+        return surt;
     }
 
     /**
@@ -220,40 +803,55 @@ public class ParsedUrl {
     }
 
     /**
-     * Format this URL with a field order suitable for sorting.
+     * Format this URL with a field order suitable for sorting. The result is
+     * cached until the URL is next modified.
      */
     public String ssurt() {
-        return leadingJunk +
-                ssurtHost(host) +
-                slashes +
-                port +
-                colonBeforePort +
-                scheme +
-                atSign +
-                username +
-                colonBeforePassword +
-                password +
-                colonAfterScheme +
-                path +
-                questionMark +
-                query +
-                hashSign +
-                fragment +
-                trailingJunk;
+        String ssurt = this.ssurt;
+        if (ssurt == null) {
+            StringBuilder sb = new StringBuilder(capacityHint());
+            ssurtTo(sb);
+            this.ssurt = ssurt = sb.toString();
+        }
+        return ssurt;
+    }
+
+    private void ssurtTo(StringBuilder sb) {
+        append(sb, leadingJunk, LEADING_JUNK);
+        appendSsurtHost(sb, chars(HOST), charsStart(HOST), charsEnd(HOST));
+        append(sb, slashes, SLASHES);
+        append(sb, port, PORT);
+        sb.append(getColonBeforePort());
+        append(sb, scheme, SCHEME);
+        sb.append(getAtSign());
+        append(sb, username, USERNAME);
+        sb.append(getColonBeforePassword());
+        append(sb, password, PASSWORD);
+        sb.append(getColonAfterScheme());
+        append(sb, path, PATH);
+        sb.append(getQuestionMark());
+        append(sb, query, QUERY);
+        sb.append(getHashSign());
+        append(sb, fragment, FRAGMENT);
+        append(sb, trailingJunk, TRAILING_JUNK);
     }
 
     /**
      * Reverse host unless it's an IPv4 or IPv6 address.
      */
     static String ssurtHost(String host) {
-        if (host.isEmpty()) {
-            return host;
-        } else if (host.charAt(0) == '[') {
-            return host;
-        } else if (IpAddresses.parseIpv4(host) != -1) {
-            return host;
+        StringBuilder sb = new StringBuilder(host.length() + 1);
+        appendSsurtHost(sb, host, 0, host.length());
+        return sb.toString();
+    }
+
+    private static void appendSsurtHost(StringBuilder sb, CharSequence host, int start, int end) {
+        if (start == end) {
+            return;
+        } else if (host.charAt(start) == '[' || IpAddresses.parseIpv4(host, start, end) != -1) {
+            sb.append(host, start, end);
         } else {
-            return reverseHost(host);
+            appendReversedHost(sb, host, start, end);
         }
     }
 
@@ -264,18 +862,185 @@ public class ParsedUrl {
      */
     static String reverseHost(String host) {
         StringBuilder buf = new StringBuilder(host.length() + 1);
-        String nocommas = host.replace(",", ".");
-        int j = host.length();
-        for (int i = host.length() - 1; i >= 0; i--) {
-            if (host.charAt(i) == '.') {
-                buf.append(nocommas, i + 1, j);
+        appendReversedHost(buf, host, 0, host.length());
+        return buf.toString();
+    }
+
+    private static void appendReversedHost(StringBuilder buf, CharSequence host, int start, int end) {
+        int j = end;
+        for (int i = end - 1; i >= start - 1; i--) {
+            if (i < start || host.charAt(i) == '.') {
+                for (int k = i + 1; k < j; k++) {
+                    char c = host.charAt(k);
+                    buf.append(c == ',' ? '.' : c);
+                }
                 buf.append(',');
                 j = i;
             }
         }
-        buf.append(nocommas, 0, j);
-        buf.append(',');
-        return buf.toString();
+    }
+
+    //-------------------------------------------------------------------------
+    //endregion
+    //-------------------------------------------------------------------------
+
+    //-------------------------------------------------------------------------
+    //region UTF-8 Output
+    //-------------------------------------------------------------------------
+
+    /**
+     * Writes the formatted url as UTF-8 at dest[offset], as
+     * toString().getBytes(UTF_8) would give but without making either, and
+     * returns the number of bytes written.
+     *
+     * @throws IndexOutOfBoundsException if the bytes don't fit, in which
+     *                                   case nothing is written
+     */
+    public int writeUtf8(byte[] dest, int offset) {
+        return Utf8.encode(formatted(), dest, offset);
+    }
+
+    /**
+     * Writes the formatted url as UTF-8 at the buffer's position.
+     *
+     * @throws java.nio.BufferOverflowException if the bytes don't fit, in
+     *                                          which case nothing is written
+     * @see #writeUtf8(byte[], int)
+     */
+    public void writeUtf8(ByteBuffer buffer) {
+        Utf8.encode(formatted(), buffer);
+    }
+
+    /**
+     * Writes the url's {@link #surt()} as UTF-8 at dest[offset], returning
+     * the number of bytes written.
+     *
+     * @see #writeUtf8(byte[], int)
+     */
+    public int writeSurtUtf8(byte[] dest, int offset) {
+        return Utf8.encode(formattedSurt(), dest, offset);
+    }
+
+    /**
+     * Writes the url's {@link #surt()} as UTF-8 at the buffer's position.
+     *
+     * @see #writeUtf8(ByteBuffer)
+     */
+    public void writeSurtUtf8(ByteBuffer buffer) {
+        Utf8.encode(formattedSurt(), buffer);
+    }
+
+    /**
+     * Writes the url's {@link #ssurt()} as UTF-8 at dest[offset], returning
+     * the number of bytes written.
+     *
+     * @see #writeUtf8(byte[], int)
+     */
+    public int writeSsurtUtf8(byte[] dest, int offset) {
+        return Utf8.encode(formattedSsurt(), dest, offset);
+    }
+
+    /**
+     * Writes the url's {@link #ssurt()} as UTF-8 at the buffer's position.
+     *
+     * @see #writeUtf8(ByteBuffer)
+     */
+    public void writeSsurtUtf8(ByteBuffer buffer) {
+        Utf8.encode(formattedSsurt(), buffer);
+    }
+
+    // The cached String if there is one, otherwise the url formatted into the
+    // thread's scratch buffer, which isn't cached as the caller only wants
+    // the bytes.
+
+    private CharSequence formatted() {
+        if (string != null) {
+            return string;
+        }
+        StringBuilder sb = scratch();
+        formatTo(sb);
+        return sb;
+    }
+
+    private CharSequence formattedSurt() {
+        if (surt != null) {
+            return surt;
+        }
+        StringBuilder sb = scratch();
+        surtTo(sb, true);
+        return sb;
+    }
+
+    private CharSequence formattedSsurt() {
+        if (ssurt != null) {
+            return ssurt;
+        }
+        StringBuilder sb = scratch();
+        ssurtTo(sb);
+        return sb;
+    }
+
+    private static StringBuilder scratch() {
+        StringBuilder sb = scratch.get();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder();
+            scratch.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    //-------------------------------------------------------------------------
+    //endregion
+    //-------------------------------------------------------------------------
+
+    //-------------------------------------------------------------------------
+    //region Binary Serialization
+    //-------------------------------------------------------------------------
+
+    /**
+     * Writes the url in the compact binary format described in
+     * {@link BinaryFormat}.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.write(BinaryFormat.encode(this));
+    }
+
+    /**
+     * Writes the url in the compact binary format at the buffer's position.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(BinaryFormat.encode(this));
+    }
+
+    /**
+     * Returns the url in the compact binary format.
+     */
+    public byte[] toBytes() {
+        return BinaryFormat.encode(this);
+    }
+
+    /**
+     * Reads a url written by {@link #writeTo(DataOutput)}. Nothing is
+     * parsed: the components are taken lazily from the bytes read.
+     *
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static ParsedUrl readFrom(DataInput in) throws IOException {
+        return BinaryFormat.decode(in);
+    }
+
+    /**
+     * Reads a url written by {@link #writeTo(ByteBuffer)} or
+     * {@link #toBytes()}, advancing the buffer's position past it.
+     *
+     * @throws IllegalArgumentException if the data is malformed
+     * @throws java.nio.BufferUnderflowException if the data is truncated
+     */
+    public static ParsedUrl readFrom(ByteBuffer buffer) {
+        return BinaryFormat.decode(buffer);
     }
 
     //-------------------------------------------------------------------------
@@ -287,7 +1052,83 @@ public class ParsedUrl {
     //-------------------------------------------------------------------------
 
     String hostPort() {
-        return host + colonBeforePort + port;
+        return getHost() + getColonBeforePort() + getPort();
+    }
+
+    /**
+     * True if any component has been modified since {@link #markClean()},
+     * which canonicalizers call when they finish. Setting a component to a
+     * value equal to its current one doesn't count as a modification. A
+     * freshly parsed url is dirty.
+     */
+    public boolean isDirty() {
+        return dirty != 0;
+    }
+
+    /**
+     * Records that the url is in canonical form, so that
+     * {@link Canonicalizer#recanonicalize(ParsedUrl)} only redoes the work
+     * affected by later modifications.
+     */
+    public void markClean() {
+        dirty = 0;
+    }
+
+    /**
+     * Bit mask (1 &lt;&lt; component) of the components modified since markClean().
+     */
+    int dirtyComponents() {
+        return dirty;
+    }
+
+    /**
+     * Two ParsedUrls are equal if all their components are equal. As the
+     * setters change the hash code, don't modify a ParsedUrl while it's a key
+     * in a map or an element of a set.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ParsedUrl)) return false;
+        ParsedUrl other = (ParsedUrl) o;
+        if (hash != 0 && other.hash != 0 && hash != other.hash) return false;
+        return sameComponents(other);
+    }
+
+    /**
+     * Hash of the formatted URL, so equal urls (whose components concatenate
+     * to the same string) hash the same. Cached along with toString().
+     */
+    @Override
+    public int hashCode() {
+        int hash = this.hash;
+        if (hash == 0) {
+            this.hash = hash = toString().hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * True if every component of this url is equal to the corresponding component of other.
+     */
+    boolean sameComponents(ParsedUrl other) {
+        return getLeadingJunk().equals(other.getLeadingJunk())
+                && getScheme().equals(other.getScheme())
+                && getColonAfterScheme().equals(other.getColonAfterScheme())
+                && getSlashes().equals(other.getSlashes())
+                && getUsername().equals(other.getUsername())
+                && getColonBeforePassword().equals(other.getColonBeforePassword())
+                && getPassword().equals(other.getPassword())
+                && getAtSign().equals(other.getAtSign())
+                && getHost().equals(other.getHost())
+                && getColonBeforePort().equals(other.getColonBeforePort())
+                && getPort().equals(other.getPort())
+                && getPath().equals(other.getPath())
+                && getQuestionMark().equals(other.getQuestionMark())
+                && getQuery().equals(other.getQuery())
+                && getHashSign().equals(other.getHashSign())
+                && getFragment().equals(other.getFragment())
+                && getTrailingJunk().equals(other.getTrailingJunk());
     }
 
     //-------------------------------------------------------------------------
@@ -298,140 +1139,235 @@ public class ParsedUrl {
     //region Accessors: Simple
     //-------------------------------------------------------------------------
 
+    /*
+     * The setters reject null, as they always have, since a null field means
+     * the component is still a span of the source. A component is only marked
+     * modified if its value changes, which is decided without materializing
+     * a lazy component.
+     */
+
     public String getLeadingJunk() {
+        String leadingJunk = this.leadingJunk;
+        if (leadingJunk == null) {
+            this.leadingJunk = leadingJunk = span(LEADING_JUNK);
+        }
         return leadingJunk;
     }
 
     public void setLeadingJunk(String leadingJunk) {
-        this.leadingJunk = Objects.requireNonNull(leadingJunk);
+        if (!hasValue(LEADING_JUNK, Objects.requireNonNull(leadingJunk))) {
+            changed(LEADING_JUNK);
+        }
+        this.leadingJunk = leadingJunk;
+        releaseSourceIfUnused();
     }
 
     public String getTrailingJunk() {
+        String trailingJunk = this.trailingJunk;
+        if (trailingJunk == null) {
+            this.trailingJunk = trailingJunk = span(TRAILING_JUNK);
+        }
         return trailingJunk;
     }
 
     public void setTrailingJunk(String trailingJunk) {
-        this.trailingJunk = Objects.requireNonNull(trailingJunk);
+        if (!hasValue(TRAILING_JUNK, Objects.requireNonNull(trailingJunk))) {
+            changed(TRAILING_JUNK);
+        }
+        this.trailingJunk = trailingJunk;
+        releaseSourceIfUnused();
     }
 
     public String getScheme() {
+        String scheme = this.scheme;
+        if (scheme == null) {
+            this.scheme = scheme = span(SCHEME);
+        }
         return scheme;
     }
 
     public void setScheme(String scheme) {
-        this.scheme = Objects.requireNonNull(scheme);
+        if (!hasValue(SCHEME, Objects.requireNonNull(scheme))) {
+            changed(SCHEME);
+        }
+        this.scheme = scheme;
+        releaseSourceIfUnused();
     }
 
     public String getColonAfterScheme() {
-        return colonAfterScheme;
+        return delimiter(COLON_AFTER_SCHEME);
     }
 
     public void setColonAfterScheme(String colonAfterScheme) {
-        this.colonAfterScheme = Objects.requireNonNull(colonAfterScheme);
+        setDelimiter(COLON_AFTER_SCHEME, colonAfterScheme);
     }
 
     public String getQuestionMark() {
-        return questionMark;
+        return delimiter(QUESTION_MARK);
     }
 
     public void setQuestionMark(String questionMark) {
-        this.questionMark = Objects.requireNonNull(questionMark);
+        setDelimiter(QUESTION_MARK, questionMark);
     }
 
     public String getQuery() {
+        String query = this.query;
+        if (query == null) {
+            this.query = query = span(QUERY);
+        }
         return query;
     }
 
     public void setQuery(String query) {
-        this.query = Objects.requireNonNull(query);
+        if (!hasValue(QUERY, Objects.requireNonNull(query))) {
+            changed(QUERY);
+        }
+        this.query = query;
+        releaseSourceIfUnused();
     }
 
     public String getHashSign() {
-        return hashSign;
+        return delimiter(HASH_SIGN);
     }
 
     public void setHashSign(String hashSign) {
-        this.hashSign = Objects.requireNonNull(hashSign);
+        setDelimiter(HASH_SIGN, hashSign);
     }
 
     public String getFragment() {
+        String fragment = this.fragment;
+        if (fragment == null) {
+            this.fragment = fragment = span(FRAGMENT);
+        }
         return fragment;
     }
 
     public void setFragment(String fragment) {
-        this.fragment = Objects.requireNonNull(fragment);
+        if (!hasValue(FRAGMENT, Objects.requireNonNull(fragment))) {
+            changed(FRAGMENT);
+        }
+        this.fragment = fragment;
+        releaseSourceIfUnused();
     }
 
     public String getSlashes() {
+        String slashes = this.slashes;
+        if (slashes == null) {
+            this.slashes = slashes = span(SLASHES);
+        }
         return slashes;
     }
 
     public void setSlashes(String slashes) {
-        this.slashes = Objects.requireNonNull(slashes);
+        if (!hasValue(SLASHES, Objects.requireNonNull(slashes))) {
+            changed(SLASHES);
+        }
+        this.slashes = slashes;
+        releaseSourceIfUnused();
     }
 
     public String getPath() {
+        String path = this.path;
+        if (path == null) {
+            this.path = path = span(PATH);
+        }
         return path;
     }
 
     public void setPath(String path) {
-        this.path = Objects.requireNonNull(path);
+        if (!hasValue(PATH, Objects.requireNonNull(path))) {
+            changed(PATH);
+        }
+        this.path = path;
+        releaseSourceIfUnused();
     }
 
     public String getUsername() {
+        String username = this.username;
+        if (username == null) {
+            this.username = username = span(USERNAME);
+        }
         return username;
     }
 
     public void setUsername(String username) {
-        this.username = Objects.requireNonNull(username);
+        if (!hasValue(USERNAME, Objects.requireNonNull(username))) {
+            changed(USERNAME);
+        }
+        this.username = username;
+        releaseSourceIfUnused();
     }
 
     public String getColonBeforePassword() {
-        return colonBeforePassword;
+        return delimiter(COLON_BEFORE_PASSWORD);
     }
 
     public void setColonBeforePassword(String colonBeforePassword) {
-        this.colonBeforePassword = Objects.requireNonNull(colonBeforePassword);
+        setDelimiter(COLON_BEFORE_PASSWORD, colonBeforePassword);
     }
 
     public String getPassword() {
+        String password = this.password;
+        if (password == null) {
+            this.password = password = span(PASSWORD);
+        }
         return password;
     }
 
     public void setPassword(String password) {
-        this.password = Objects.requireNonNull(password);
+        if (!hasValue(PASSWORD, Objects.requireNonNull(password))) {
+            changed(PASSWORD);
+        }
+        this.password = password;
+        releaseSourceIfUnused();
     }
 
     public String getAtSign() {
-        return atSign;
+        return delimiter(AT_SIGN);
     }
 
     public void setAtSign(String atSign) {
-        this.atSign = Objects.requireNonNull(atSign);
+        setDelimiter(AT_SIGN, atSign);
     }
 
     public String getHost() {
+        String host = this.host;
+        if (host == null) {
+            this.host = host = span(HOST);
+        }
         return host;
     }
 
     public void setHost(String host) {
-        this.host = Objects.requireNonNull(host);
+        if (!hasValue(HOST, Objects.requireNonNull(host))) {
+            changed(HOST);
+        }
+        this.host = host;
+        releaseSourceIfUnused();
     }
 
     public String getColonBeforePort() {
-        return colonBeforePort;
+        return delimiter(COLON_BEFORE_PORT);
     }
 
     public void setColonBeforePort(String colonBeforePort) {
-        this.colonBeforePort = Objects.requireNonNull(colonBeforePort);
+        setDelimiter(COLON_BEFORE_PORT, colonBeforePort);
     }
 
     public String getPort() {
+        String port = this.port;
+        if (port == null) {
+            this.port = port = span(PORT);
+        }
         return port;
     }
 
     public void setPort(String port) {
-        this.port = Objects.requireNonNull(port);
+        if (!hasValue(PORT, Objects.requireNonNull(port))) {
+            changed(PORT);
+        }
+        this.port = port;
+        releaseSourceIfUnused();
     }
 
     public ParsedUrl resolve(ParsedUrl relative) {
@@ -0,0 +1,179 @@
+/*
+ * Pipeline.java - a sequence of canonicalization steps compiled for running
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A sequence of steps compiled into a faster one with the same result:
+ *
+ * - When the sequence starts with all the WHATWG steps those are done by
+ *   {@link FusedWhatwgCanonicalizer} in one pass.
+ * - Rewrite steps of the same component are merged so that it's read and set
+ *   once. A rewrite can move back past steps that don't touch its component
+ *   to join an earlier one, as the order of steps on disjoint components
+ *   doesn't matter.
+ *
+ * Steps with preconditions keep them, so they're still skipped without
+ * reading anything. Incremental runs and runs with metrics enabled use the
+ * original steps, as they need each step on its own.
+ *
+ * An incremental run only reruns the steps touching a modified component,
+ * which gives the same result as a full run only if the pipeline's output is
+ * left alone by running it again. A pipeline that rewrites the scheme after
+ * steps that read it along with other components, like aggressive's
+ * httpsToHttp after elideDefaultPort, breaks that: https://h:80/ becomes
+ * http://h:80/, and only a second run elides the port. Such pipelines rerun
+ * every step instead.
+ */
+final class Pipeline {
+    final Step[] steps;
+    private final int fusedWhatwgSteps; // the number of leading steps run fused, 0 or all of them
+    private final Step[] compiled; // the steps after those
+    private final boolean incremental; // false if runIncremental has to run every step
+
+    private Pipeline(Step[] steps, int fusedWhatwgSteps, Step[] compiled) {
+        this.steps = steps;
+        this.fusedWhatwgSteps = fusedWhatwgSteps;
+        this.compiled = compiled;
+        this.incremental = !rewritesSchemeLate(steps);
+    }
+
+    static Pipeline compile(Step... steps) {
+        int fused = startsWithWhatwg(steps) ? WhatwgCanonicalizer.STEPS.length : 0;
+
+        List<List<Step>> units = new ArrayList<>();
+        nextStep:
+        for (Step step : Arrays.copyOfRange(steps, fused, steps.length)) {
+            if (step.rewrite != null) {
+                for (int i = units.size() - 1; i >= 0; i--) {
+                    Step head = units.get(i).get(0);
+                    if (head.rewrite != null && head.component == step.component) {
+                        units.get(i).add(step);
+                        continue nextStep;
+                    } else if ((head.components & step.components) != 0) {
+                        break;
+                    }
+                }
+            }
+            units.add(new ArrayList<>(Arrays.asList(step)));
+        }
+
+        Step[] compiled = new Step[units.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            List<Step> unit = units.get(i);
+            compiled[i] = unit.size() == 1 ? unit.get(0) : merge(unit);
+        }
+        return new Pipeline(steps.clone(), fused, compiled);
+    }
+
+    /**
+     * True if the scheme is rewritten after a step that reads it to decide
+     * what to do with another component.
+     */
+    private static boolean rewritesSchemeLate(Step[] steps) {
+        int scheme = 1 << ParsedUrl.SCHEME;
+        boolean schemeRead = false;
+        for (Step step : steps) {
+            if (step.rewrite != null && step.component == ParsedUrl.SCHEME && schemeRead) {
+                return true;
+            }
+            if ((step.components & scheme) != 0 && step.components != scheme) {
+                schemeRead = true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWithWhatwg(Step[] steps) {
+        Step[] whatwg = WhatwgCanonicalizer.STEPS;
+        if (steps.length < whatwg.length) {
+            return false;
+        }
+        for (int i = 0; i < whatwg.length; i++) {
+            if (!steps[i].name.equals(whatwg[i].name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Step merge(List<Step> rewrites) {
+        StringBuilder name = new StringBuilder();
+        List<UnaryOperator<String>> functions = new ArrayList<>();
+        for (Step step : rewrites) {
+            if (name.length() > 0) name.append('+');
+            name.append(step.name);
+            functions.add(step.rewrite);
+        }
+        return Step.rewrite(name.toString(), rewrites.get(0).component, value -> {
+            // indexed rather than with an iterator, which might not be optimized away
+            for (int i = 0; i < functions.size(); i++) {
+                value = functions.get(i).apply(value);
+            }
+            return value;
+        });
+    }
+
+    void run(ParsedUrl url, Charset charset) {
+        if (CanonicalizerMetrics.enabled) {
+            Step.run(steps, url, charset);
+            return;
+        }
+        if (fusedWhatwgSteps > 0) {
+            if (url.hasUnusualDelimiters()) {
+                for (int i = 0; i < fusedWhatwgSteps; i++) {
+                    steps[i].apply(url, charset);
+                }
+            } else {
+                FusedWhatwgCanonicalizer.canonicalize(url, charset);
+            }
+        }
+        for (Step step : compiled) {
+            step.apply(url, charset);
+        }
+        url.markClean();
+    }
+
+    void runIncremental(ParsedUrl url, Charset charset) {
+        if (incremental) {
+            Step.runIncremental(steps, url, charset);
+        } else {
+            run(url, charset);
+        }
+    }
+
+    /**
+     * The steps as run, with merged ones joined by '+'.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (fusedWhatwgSteps > 0) {
+            sb.append("fusedWhatwg");
+        }
+        for (Step step : compiled) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(step.name);
+        }
+        return sb.toString();
+    }
+}
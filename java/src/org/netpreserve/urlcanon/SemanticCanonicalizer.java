@@ -19,6 +19,14 @@
 
 package org.netpreserve.urlcanon;
 
+import java.nio.charset.Charset;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.netpreserve.urlcanon.ParsedUrl.FRAGMENT;
+import static org.netpreserve.urlcanon.ParsedUrl.HASH_SIGN;
+import static org.netpreserve.urlcanon.Step.components;
+import static org.netpreserve.urlcanon.Step.step;
+
 /**
  * Like semantic_precise but removes the fragment from
  * the url, thus considers urls which differ only in the fragment to be
@@ -27,8 +35,42 @@ package org.netpreserve.urlcanon;
 public class SemanticCanonicalizer implements Canonicalizer {
     @Override
     public void canonicalize(ParsedUrl url) {
-        Canonicalizer.SEMANTIC_PRECISE.canonicalize(url);
-        removeFrament(url);
+        canonicalize(url, UTF_8);
+    }
+
+    public void canonicalize(ParsedUrl url, Charset charset) {
+        Steps.PIPELINE.run(url, charset);
+    }
+
+    @Override
+    public void recanonicalize(ParsedUrl url) {
+        recanonicalize(url, UTF_8);
+    }
+
+    public void recanonicalize(ParsedUrl url, Charset charset) {
+        Steps.PIPELINE.runIncremental(url, charset);
+    }
+
+    @Override
+    public boolean isCanonical(CharSequence input) {
+        return CanonicalChecker.isCanonical(this, input, CanonicalChecker.SEMANTIC);
+    }
+
+    /**
+     * The steps run after the ones inherited from semantic precise.
+     */
+    private static final Step[] OWN_STEPS = {
+            step("removeFragment", components(HASH_SIGN, FRAGMENT), (url, charset) -> removeFrament(url))
+    };
+
+    /**
+     * All the steps, built on first use. Creating the canonicalizer constants
+     * in Canonicalizer initializes all four classes, so whichever one is
+     * initialized first would see the others' steps as still null.
+     */
+    static final class Steps {
+        static final Step[] ALL = Step.concat(SemanticPreciseCanonicalizer.STEPS, OWN_STEPS);
+        static final Pipeline PIPELINE = Pipeline.compile(ALL);
     }
 
     static void removeFrament(ParsedUrl url) {
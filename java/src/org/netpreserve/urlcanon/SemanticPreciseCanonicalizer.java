@@ -26,6 +26,28 @@ import java.util.List;
 import java.util.regex.Pattern;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.netpreserve.urlcanon.ParsedUrl.ALL_COMPONENTS;
+import static org.netpreserve.urlcanon.ParsedUrl.AT_SIGN;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_AFTER_SCHEME;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_BEFORE_PASSWORD;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_BEFORE_PORT;
+import static org.netpreserve.urlcanon.ParsedUrl.FRAGMENT;
+import static org.netpreserve.urlcanon.ParsedUrl.HOST;
+import static org.netpreserve.urlcanon.ParsedUrl.LEADING_JUNK;
+import static org.netpreserve.urlcanon.ParsedUrl.NON_ASCII;
+import static org.netpreserve.urlcanon.ParsedUrl.PASSWORD;
+import static org.netpreserve.urlcanon.ParsedUrl.PATH;
+import static org.netpreserve.urlcanon.ParsedUrl.PERCENT;
+import static org.netpreserve.urlcanon.ParsedUrl.PORT;
+import static org.netpreserve.urlcanon.ParsedUrl.QUERY;
+import static org.netpreserve.urlcanon.ParsedUrl.SCHEME;
+import static org.netpreserve.urlcanon.ParsedUrl.SLASHES;
+import static org.netpreserve.urlcanon.ParsedUrl.TRAILING_JUNK;
+import static org.netpreserve.urlcanon.ParsedUrl.UNSAFE;
+import static org.netpreserve.urlcanon.ParsedUrl.USERNAME;
+import static org.netpreserve.urlcanon.Step.components;
+import static org.netpreserve.urlcanon.Step.rewrite;
+import static org.netpreserve.urlcanon.Step.step;
 import static org.netpreserve.urlcanon.WhatwgCanonicalizer.buildEncodeSet;
 
 /**
@@ -51,28 +73,55 @@ public class SemanticPreciseCanonicalizer implements Canonicalizer {
     }
 
     public void canonicalize(ParsedUrl url, Charset charset) {
-        WhatwgCanonicalizer.removeLeadingTrailingJunk(url);
-        defaultSchemeHttp(url);
-        WhatwgCanonicalizer.removeTabsAndNewlines(url);
-        WhatwgCanonicalizer.lowercaseScheme(url);
-        WhatwgCanonicalizer.elideDefaultPort(url);
-        WhatwgCanonicalizer.cleanUpUserinfo(url);
-        WhatwgCanonicalizer.twoSlashes(url);
-        pctDecodeRepeatedlyExceptQuery(url, charset);
-        // TODO: reparse_host,
-        WhatwgCanonicalizer.normalizeIpAddress(url);
-        fixHostDots(url);
-        WhatwgCanonicalizer.punycodeSpecialHost(url, charset);
-        removeUserinfo(url);
-        lessDumbPctEncode(url, charset);
-        lessDumbPctRecodeQuery(url, charset);
-        WhatwgCanonicalizer.fixBackslashes(url);
-        WhatwgCanonicalizer.leadingSlash(url);
-        WhatwgCanonicalizer.normalizePathDots(url);
-        collapseConsecutiveSlashes(url);
-        WhatwgCanonicalizer.emptyPathToSlash(url);
-        alphaReorderQuery(url);
+        Compiled.PIPELINE.run(url, charset);
+    }
+
+    @Override
+    public void recanonicalize(ParsedUrl url) {
+        recanonicalize(url, UTF_8);
+    }
+
+    public void recanonicalize(ParsedUrl url, Charset charset) {
+        Compiled.PIPELINE.runIncremental(url, charset);
+    }
+
+    @Override
+    public boolean isCanonical(CharSequence input) {
+        return CanonicalChecker.isCanonical(this, input, CanonicalChecker.SEMANTIC_PRECISE);
+    }
 
+    static final Step[] STEPS = {
+            step("removeLeadingTrailingJunk", components(LEADING_JUNK, TRAILING_JUNK), (url, charset) -> WhatwgCanonicalizer.removeLeadingTrailingJunk(url)),
+            step("defaultSchemeHttp", components(SCHEME, COLON_AFTER_SCHEME, SLASHES, USERNAME, COLON_BEFORE_PASSWORD, PASSWORD,
+                    AT_SIGN, HOST, COLON_BEFORE_PORT, PORT, PATH), (url, charset) -> defaultSchemeHttp(url)),
+            step("removeTabsAndNewlines", ALL_COMPONENTS, (url, charset) -> WhatwgCanonicalizer.removeTabsAndNewlines(url)),
+            step("lowercaseScheme", components(SCHEME), (url, charset) -> WhatwgCanonicalizer.lowercaseScheme(url)),
+            step("elideDefaultPort", components(SCHEME, COLON_BEFORE_PORT, PORT), (url, charset) -> WhatwgCanonicalizer.elideDefaultPort(url)),
+            step("cleanUpUserinfo", components(USERNAME, COLON_BEFORE_PASSWORD, PASSWORD, AT_SIGN), (url, charset) -> WhatwgCanonicalizer.cleanUpUserinfo(url)),
+            step("twoSlashes", components(SCHEME, SLASHES), (url, charset) -> WhatwgCanonicalizer.twoSlashes(url)),
+            step("pctDecodeRepeatedlyExceptQuery", components(SCHEME, USERNAME, PASSWORD, HOST, PORT, PATH, FRAGMENT), SemanticPreciseCanonicalizer::pctDecodeRepeatedlyExceptQuery),
+            // TODO: reparse_host,
+            step("normalizeIpAddress", components(HOST), (url, charset) -> WhatwgCanonicalizer.normalizeIpAddress(url)),
+            rewrite("fixHostDots", HOST, host -> removeLeadingTrailingAndDuplicateChars(host, '.')),
+            step("punycodeSpecialHost", components(SCHEME, HOST), WhatwgCanonicalizer::punycodeSpecialHost),
+            step("removeUserinfo", components(USERNAME, COLON_BEFORE_PASSWORD, PASSWORD, AT_SIGN), (url, charset) -> removeUserinfo(url)),
+            step("lessDumbPctEncode", components(SCHEME, USERNAME, PASSWORD, HOST, PORT, PATH, FRAGMENT), SemanticPreciseCanonicalizer::lessDumbPctEncode),
+            step("lessDumbPctRecodeQuery", components(QUERY), SemanticPreciseCanonicalizer::lessDumbPctRecodeQuery),
+            step("fixBackslashes", components(SCHEME, SLASHES, PATH), (url, charset) -> WhatwgCanonicalizer.fixBackslashes(url)),
+            step("leadingSlash", components(SCHEME, PATH), (url, charset) -> WhatwgCanonicalizer.leadingSlash(url)),
+            step("normalizePathDots", components(SCHEME, PATH), WhatwgCanonicalizer::hasPathDots, (url, charset) -> WhatwgCanonicalizer.normalizePathDots(url)),
+            step("collapseConsecutiveSlashes", components(SCHEME, PATH), url -> url.specialScheme() != null, (url, charset) -> collapseConsecutiveSlashes(url)),
+            step("emptyPathToSlash", components(SCHEME, HOST, PATH), (url, charset) -> WhatwgCanonicalizer.emptyPathToSlash(url)),
+            rewrite("alphaReorderQuery", QUERY, SemanticPreciseCanonicalizer::alphaReorderQuery),
+    };
+
+    /**
+     * The steps compiled, on first use as compiling reads the WHATWG steps,
+     * which may not be there yet while the canonicalizer classes are being
+     * initialized.
+     */
+    private static final class Compiled {
+        static final Pipeline PIPELINE = Pipeline.compile(STEPS);
     }
 
     static String removeLeadingTrailingAndDuplicateChars(String s, char charToRemove) {
@@ -93,14 +142,11 @@ public class SemanticPreciseCanonicalizer implements Canonicalizer {
         return sb.toString();
     }
 
-    private void fixHostDots(ParsedUrl url) {
-        url.setHost(removeLeadingTrailingAndDuplicateChars(url.getHost(), '.'));
-    }
 
     private static final Pattern TWO_OR_MORE_SLASHES_RE = Pattern.compile("//+");
 
-    private void collapseConsecutiveSlashes(ParsedUrl url) {
-        if (ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())) {
+    private static void collapseConsecutiveSlashes(ParsedUrl url) {
+        if (url.getPath().contains("//")) {
             url.setPath(TWO_OR_MORE_SLASHES_RE.matcher(url.getPath()).replaceAll("/"));
         }
     }
@@ -110,23 +156,24 @@ public class SemanticPreciseCanonicalizer implements Canonicalizer {
             url.setScheme(new String("http"));
             url.setColonAfterScheme(new String(":"));
             if (!url.getPath().isEmpty()) {
-                UrlParser.parsePathish(url, url.getPath(), 0, url.getPath().length());
+                UrlParser.reparsePathish(url);
             }
         }
     }
 
     static void pctDecodeRepeatedlyExceptQuery(ParsedUrl url, Charset charset) {
-        url.setScheme(pctDecodeTokenRepeatedly(url.getScheme(), charset));
-        url.setUsername(pctDecodeTokenRepeatedly(url.getUsername(), charset));
-        url.setPassword(pctDecodeTokenRepeatedly(url.getPassword(), charset));
-        url.setHost(pctDecodeTokenRepeatedly(url.getHost(), charset));
-        url.setPort(pctDecodeTokenRepeatedly(url.getPort(), charset));
-        url.setPath(pctDecodeTokenRepeatedly(url.getPath(), charset));
-        url.setFragment(pctDecodeTokenRepeatedly(url.getFragment(), charset));
+        if (url.has(SCHEME, PERCENT)) url.setScheme(pctDecodeTokenRepeatedly(url.getScheme(), charset));
+        if (url.has(USERNAME, PERCENT)) url.setUsername(pctDecodeTokenRepeatedly(url.getUsername(), charset));
+        if (url.has(PASSWORD, PERCENT)) url.setPassword(pctDecodeTokenRepeatedly(url.getPassword(), charset));
+        if (url.has(HOST, PERCENT)) url.setHost(pctDecodeTokenRepeatedly(url.getHost(), charset));
+        if (url.has(PORT, PERCENT)) url.setPort(pctDecodeTokenRepeatedly(url.getPort(), charset));
+        if (url.has(PATH, PERCENT)) url.setPath(pctDecodeTokenRepeatedly(url.getPath(), charset));
+        if (url.has(FRAGMENT, PERCENT)) url.setFragment(pctDecodeTokenRepeatedly(url.getFragment(), charset));
     }
 
     static String pctDecodeTokenRepeatedly(String str, Charset charset) {
         for (;;) {
+            CanonicalizerMetrics.count(CanonicalizerMetrics.Counter.PCT_DECODE_ITERATION);
             String decoded = WhatwgCanonicalizer.pctDecode(str, charset);
             if (decoded.equals(str)) {
                 return decoded;
@@ -147,21 +194,30 @@ public class SemanticPreciseCanonicalizer implements Canonicalizer {
     static final boolean[] LESS_DUMB_PATH_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff#%?]");
 
     static void lessDumbPctEncode(ParsedUrl url, Charset charset) {
-        url.setScheme(WhatwgCanonicalizer.pctEncode(url.getScheme(), GOOGLE_PCT_ENCODE, charset));
-        url.setScheme(WhatwgCanonicalizer.pctEncode(url.getScheme(), GOOGLE_PCT_ENCODE, charset));
-        url.setUsername(WhatwgCanonicalizer.pctEncode(url.getUsername(), LESS_DUMB_USERINFO_ENCODE, charset));
-        url.setPassword(WhatwgCanonicalizer.pctEncode(url.getPassword(), LESS_DUMB_USERINFO_ENCODE, charset));
-        url.setHost(WhatwgCanonicalizer.pctEncode(url.getHost(), GOOGLE_PCT_ENCODE, charset));
-        url.setPort(WhatwgCanonicalizer.pctEncode(url.getPort(), GOOGLE_PCT_ENCODE, charset));
-        url.setPath(WhatwgCanonicalizer.pctEncode(url.getPath(), LESS_DUMB_PATH_ENCODE, charset));
-        url.setFragment(WhatwgCanonicalizer.pctEncode(url.getFragment(), GOOGLE_PCT_ENCODE, charset));
+        // the ASCII in these encode sets, apart from userinfo's, is all UNSAFE or '%'
+        int encoded = NON_ASCII | UNSAFE | PERCENT;
+        if (url.has(SCHEME, encoded)) {
+            url.setScheme(WhatwgCanonicalizer.pctEncode(url, url.getScheme(), GOOGLE_PCT_ENCODE, charset));
+            url.setScheme(WhatwgCanonicalizer.pctEncode(url, url.getScheme(), GOOGLE_PCT_ENCODE, charset));
+        }
+        url.setUsername(WhatwgCanonicalizer.pctEncode(url, url.getUsername(), LESS_DUMB_USERINFO_ENCODE, charset));
+        url.setPassword(WhatwgCanonicalizer.pctEncode(url, url.getPassword(), LESS_DUMB_USERINFO_ENCODE, charset));
+        if (url.has(HOST, encoded)) url.setHost(WhatwgCanonicalizer.pctEncode(url, url.getHost(), GOOGLE_PCT_ENCODE, charset));
+        if (url.has(PORT, encoded)) url.setPort(WhatwgCanonicalizer.pctEncode(url, url.getPort(), GOOGLE_PCT_ENCODE, charset));
+        if (url.has(PATH, encoded)) url.setPath(WhatwgCanonicalizer.pctEncode(url, url.getPath(), LESS_DUMB_PATH_ENCODE, charset));
+        if (url.has(FRAGMENT, encoded)) url.setFragment(WhatwgCanonicalizer.pctEncode(url, url.getFragment(), GOOGLE_PCT_ENCODE, charset));
     }
 
     static final boolean[] LESS_DUMB_QUERY_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff#%&=]");
 
-    private static String pctRecodeQueryPart(String s, Charset charset) {
-        String decoded = pctDecodeTokenRepeatedly(s, charset);
-        return WhatwgCanonicalizer.pctEncode(decoded, LESS_DUMB_QUERY_ENCODE, charset);
+    private static void appendRecodedQueryPart(StringBuilder sb, String query, int start, int end, Charset charset) {
+        if (query.lastIndexOf('%', end - 1) < start) {
+            // nothing to decode
+            WhatwgCanonicalizer.pctEncodeTo(sb, query, start, end, LESS_DUMB_QUERY_ENCODE, charset);
+        } else {
+            String decoded = pctDecodeTokenRepeatedly(query.substring(start, end), charset);
+            WhatwgCanonicalizer.pctEncodeTo(sb, decoded, 0, decoded.length(), LESS_DUMB_QUERY_ENCODE, charset);
+        }
     }
 
     static void lessDumbPctRecodeQuery(ParsedUrl url, Charset charset) {
@@ -169,27 +225,80 @@ public class SemanticPreciseCanonicalizer implements Canonicalizer {
         if (query.isEmpty()) {
             return;
         }
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = CanonicalizationContext.builder(url);
+        if (sb == null) {
+            sb = new StringBuilder(query.length() + 16);
+        }
         int i = 0;
         while (i < query.length()) {
             int eq = query.indexOf('=', i);
             int amp = query.indexOf('&', i);
             if (amp == -1) amp = query.length();
             if (eq != -1 && eq < amp) {
-                sb.append(pctRecodeQueryPart(query.substring(i, eq), charset));
+                appendRecodedQueryPart(sb, query, i, eq, charset);
                 sb.append('=');
                 i = eq + 1;
             }
-            sb.append(pctRecodeQueryPart(query.substring(i, amp), charset));
+            appendRecodedQueryPart(sb, query, i, amp, charset);
             if (amp < query.length()) sb.append('&');
             i = amp + 1;
         }
-        url.setQuery(sb.toString());
+        if (!query.contentEquals(sb)) {
+            url.setQuery(sb.toString());
+        }
     }
 
-    static void alphaReorderQuery(ParsedUrl url) {
-        List<String> params = Arrays.asList(url.getQuery().split("&"));
+    static String alphaReorderQuery(String query) {
+        if (isSortedQuery(query)) {
+            return query;
+        }
+        List<String> params = Arrays.asList(query.split("&"));
         Collections.sort(params);
-        url.setQuery(String.join("&", params));
+        return String.join("&", params);
+    }
+
+    /**
+     * Whether splitting the query on &amp; and sorting the params would give
+     * back the same query, checked without splitting it. Trailing &amp;'s are
+     * dropped by the split so a query ending in one is never unchanged.
+     */
+    private static boolean isSortedQuery(String query) {
+        return isSortedQuery(query, 0, query.length());
+    }
+
+    /**
+     * Like {@link #isSortedQuery(String)} for the query s[start:end].
+     */
+    static boolean isSortedQuery(CharSequence s, int start, int end) {
+        if (end > start && s.charAt(end - 1) == '&') {
+            return false;
+        }
+        int prevStart = start;
+        int prevEnd = CharSequences.indexOf(s, '&', start, end);
+        while (prevEnd != -1) {
+            int paramStart = prevEnd + 1;
+            int paramEnd = CharSequences.indexOf(s, '&', paramStart, end);
+            if (compareParams(s, prevStart, prevEnd, paramStart, paramEnd == -1 ? end : paramEnd) > 0) {
+                return false;
+            }
+            prevStart = paramStart;
+            prevEnd = paramEnd;
+        }
+        return true;
+    }
+
+    /**
+     * Compares s[aStart:aEnd] with s[bStart:bEnd] like String.compareTo.
+     */
+    private static int compareParams(CharSequence s, int aStart, int aEnd, int bStart, int bEnd) {
+        int n = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < n; i++) {
+            char a = s.charAt(aStart + i);
+            char b = s.charAt(bStart + i);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * SpecialScheme.java - the WHATWG special schemes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+/**
+ * The schemes the WHATWG URL standard treats specially, with their default
+ * ports.
+ */
+enum SpecialScheme {
+    FTP("ftp", 21),
+    FILE("file", -1),
+    GOPHER("gopher", 70),
+    HTTP("http", 80),
+    HTTPS("https", 443),
+    WS("ws", 80),
+    WSS("wss", 443);
+
+    static final SpecialScheme[] VALUES = values();
+
+    final String name;
+    final int defaultPort; // -1 if none
+
+    SpecialScheme(String name, int defaultPort) {
+        this.name = name;
+        this.defaultPort = defaultPort;
+    }
+
+    /**
+     * Returns the special scheme with exactly this (lowercase) name, or null
+     * if the scheme isn't special.
+     */
+    static SpecialScheme of(String scheme) {
+        switch (scheme) {
+            case "ftp": return FTP;
+            case "file": return FILE;
+            case "gopher": return GOPHER;
+            case "http": return HTTP;
+            case "https": return HTTPS;
+            case "ws": return WS;
+            case "wss": return WSS;
+            default: return null;
+        }
+    }
+
+    /**
+     * Like {@link #of(String)} for the scheme s[start:end].
+     */
+    static SpecialScheme of(CharSequence s, int start, int end) {
+        for (SpecialScheme scheme : VALUES) {
+            if (scheme.matches(s, start, end)) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(CharSequence s, int start, int end) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (s.charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Step.java - a single named canonicalization step
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * A named canonicalization step. Like the step lists in canon.py a
+ * canonicalizer is just a sequence of these applied in order.
+ *
+ * Each step declares the components it reads or writes, so that
+ * {@link #runIncremental} can skip the steps a modification can't affect.
+ * A step may also have a precondition, a cheap test without which it's known
+ * to leave the url alone, so that it's skipped without reading any
+ * component. Steps that just rewrite the text of one component are made with
+ * {@link #rewrite} so that {@link Pipeline} can merge them.
+ */
+final class Step {
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    final String name;
+    final int id = nextId.getAndIncrement();
+    final int components; // bit mask of the ParsedUrl components the step touches
+    final int component; // the component a rewrite step rewrites, or -1
+    final UnaryOperator<String> rewrite; // null unless a rewrite step
+    private final Predicate<ParsedUrl> precondition; // null if there isn't one
+    private final BiConsumer<ParsedUrl, Charset> function;
+
+    private Step(String name, int components, int component, UnaryOperator<String> rewrite,
+                 Predicate<ParsedUrl> precondition, BiConsumer<ParsedUrl, Charset> function) {
+        this.name = name;
+        this.components = components;
+        this.component = component;
+        this.rewrite = rewrite;
+        this.precondition = precondition;
+        this.function = function;
+    }
+
+    static Step step(String name, int components, BiConsumer<ParsedUrl, Charset> function) {
+        return new Step(name, components, -1, null, null, function);
+    }
+
+    /**
+     * A step that's skipped unless precondition holds.
+     */
+    static Step step(String name, int components, Predicate<ParsedUrl> precondition,
+                     BiConsumer<ParsedUrl, Charset> function) {
+        return new Step(name, components, -1, null, precondition, function);
+    }
+
+    /**
+     * A step that replaces one component with a function of its text. The
+     * function returns its argument if there's nothing to change.
+     */
+    static Step rewrite(String name, int component, UnaryOperator<String> rewrite) {
+        return new Step(name, 1 << component, component, rewrite, null, (url, charset) -> {
+            String value = url.get(component);
+            String rewritten = rewrite.apply(value);
+            if (rewritten != value) {
+                url.set(component, rewritten);
+            }
+        });
+    }
+
+    /**
+     * Builds a component bit mask from ParsedUrl component constants.
+     */
+    static int components(int... components) {
+        int mask = 0;
+        for (int component : components) {
+            mask |= 1 << component;
+        }
+        return mask;
+    }
+
+    void apply(ParsedUrl url, Charset charset) {
+        if (precondition == null || precondition.test(url)) {
+            function.accept(url, charset);
+        }
+    }
+
+    /**
+     * Applies each step in turn, recording metrics if they're enabled.
+     */
+    static void run(Step[] steps, ParsedUrl url, Charset charset) {
+        if (CanonicalizerMetrics.enabled) {
+            CanonicalizerMetrics.run(steps, url, charset);
+        } else {
+            for (Step step : steps) {
+                step.apply(url, charset);
+            }
+        }
+        url.markClean();
+    }
+
+    /**
+     * Applies only the steps that touch a component modified since the url
+     * was last canonicalized, or modified by an earlier step of this run.
+     * Unlike {@link #run} no metrics are recorded.
+     */
+    static void runIncremental(Step[] steps, ParsedUrl url, Charset charset) {
+        int changed = url.dirtyComponents();
+        if (changed == 0) {
+            return;
+        }
+        for (Step step : steps) {
+            if ((step.components & changed) != 0) {
+                url.markClean();
+                step.apply(url, charset);
+                changed |= url.dirtyComponents();
+            }
+        }
+        url.markClean();
+    }
+
+    /**
+     * Concatenates step sequences.
+     */
+    static Step[] concat(Step[] a, Step... b) {
+        Step[] steps = new Step[a.length + b.length];
+        System.arraycopy(a, 0, steps, 0, a.length);
+        System.arraycopy(b, 0, steps, a.length, b.length);
+        return steps;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * UrlBuilder.java - assembles canonical urls from components
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.netpreserve.urlcanon.WhatwgCanonicalizer.buildEncodeSet;
+
+/**
+ * Builds a canonical url from its components without formatting and
+ * reparsing a string. Each component goes straight into a ParsedUrl which
+ * is then canonicalized; components that are already canonical are
+ * recognized by their character classes and left alone.
+ *
+ * <pre>
+ * String url = new UrlBuilder(Canonicalizer.SEMANTIC_PRECISE)
+ *         .scheme("https").host("example.com").port(8443)
+ *         .pathSegment("sitemaps").pathSegment("page 2.xml")
+ *         .queryParam("lang", "en")
+ *         .buildString();
+ * </pre>
+ *
+ * {@link #path(String)}, {@link #query(String)} and {@link #fragment(String)}
+ * take text in url syntax, which may already be percent-encoded. Path
+ * segments and query parameters are literal values: characters that would
+ * otherwise end them, and '%', are percent-encoded (as UTF-8). Userinfo and
+ * port are only used along with a host. The builder may be reused; build()
+ * doesn't reset it.
+ */
+public final class UrlBuilder {
+    private static final boolean[] SEGMENT_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff\"#%/<>?`{}\\x5c]");
+    private static final boolean[] QUERY_PARAM_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff\"#%&+<=>]");
+
+    private final Canonicalizer canonicalizer;
+    private String scheme;
+    private String username;
+    private String password;
+    private String host;
+    private int port = -1;
+    private final StringBuilder path = new StringBuilder();
+    private StringBuilder query;
+    private String fragment;
+
+    /**
+     * A builder producing WHATWG canonical urls.
+     */
+    public UrlBuilder() {
+        this(Canonicalizer.WHATWG);
+    }
+
+    public UrlBuilder(Canonicalizer canonicalizer) {
+        this.canonicalizer = canonicalizer;
+    }
+
+    public UrlBuilder scheme(String scheme) {
+        for (int i = 0; i < scheme.length(); i++) {
+            char c = scheme.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+                    || i > 0 && (c >= '0' && c <= '9' || c == '+' || c == '-' || c == '.'))) {
+                throw new IllegalArgumentException("invalid scheme: " + scheme);
+            }
+        }
+        this.scheme = scheme;
+        return this;
+    }
+
+    public UrlBuilder userinfo(String username, String password) {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Sets the host: a domain name (Unicode or ASCII), an IPv4 address or an
+     * IPv6 address in brackets.
+     */
+    public UrlBuilder host(String host) {
+        boolean ipv6 = host.startsWith("[") && host.endsWith("]");
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '/' || c == '\\' || c == '?' || c == '#' || c == '@' || (c == ':' && !ipv6)) {
+                throw new IllegalArgumentException("invalid host: " + host);
+            }
+        }
+        this.host = host;
+        return this;
+    }
+
+    /**
+     * Sets the port, or with -1 removes it.
+     */
+    public UrlBuilder port(int port) {
+        if (port < -1 || port > 65535) {
+            throw new IllegalArgumentException("invalid port: " + port);
+        }
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Replaces the path, including any segments added so far.
+     */
+    public UrlBuilder path(String path) {
+        this.path.setLength(0);
+        this.path.append(path);
+        return this;
+    }
+
+    /**
+     * Appends "/" and the percent-encoded segment to the path. As in a
+     * browser "." and ".." segments are then resolved.
+     */
+    public UrlBuilder pathSegment(String segment) {
+        path.append('/').append(WhatwgCanonicalizer.pctEncode(segment, SEGMENT_ENCODE, UTF_8));
+        return this;
+    }
+
+    /**
+     * Replaces the query, including any parameters added so far. Null
+     * removes it.
+     */
+    public UrlBuilder query(String query) {
+        this.query = query == null ? null : new StringBuilder(query);
+        return this;
+    }
+
+    /**
+     * Appends the percent-encoded name=value pair to the query.
+     */
+    public UrlBuilder queryParam(String name, String value) {
+        if (query == null) {
+            query = new StringBuilder();
+        } else if (query.length() > 0) {
+            query.append('&');
+        }
+        query.append(WhatwgCanonicalizer.pctEncode(name, QUERY_PARAM_ENCODE, UTF_8));
+        query.append('=');
+        query.append(WhatwgCanonicalizer.pctEncode(value, QUERY_PARAM_ENCODE, UTF_8));
+        return this;
+    }
+
+    /**
+     * Sets the fragment, or with null removes it.
+     */
+    public UrlBuilder fragment(String fragment) {
+        this.fragment = fragment;
+        return this;
+    }
+
+    /**
+     * Returns a new canonicalized url.
+     */
+    public ParsedUrl build() {
+        ParsedUrl url = new ParsedUrl();
+        if (scheme != null) {
+            url.setScheme(scheme);
+            url.setColonAfterScheme(":");
+        }
+        if (host != null) {
+            url.setSlashes("//");
+            url.setHost(host);
+            if (username != null || password != null) {
+                url.setUsername(username == null ? "" : username);
+                if (password != null) {
+                    url.setColonBeforePassword(":");
+                    url.setPassword(password);
+                }
+                url.setAtSign("@");
+            }
+            if (port != -1) {
+                url.setColonBeforePort(":");
+                url.setPort(Integer.toString(port));
+            }
+        }
+        if (host != null && path.length() > 0 && path.charAt(0) != '/' && path.charAt(0) != '\\') {
+            url.setPath("/" + path);
+        } else {
+            url.setPath(path.toString());
+        }
+        if (query != null) {
+            url.setQuestionMark("?");
+            url.setQuery(query.toString());
+        }
+        if (fragment != null) {
+            url.setHashSign("#");
+            url.setFragment(fragment);
+        }
+        canonicalizer.canonicalize(url);
+        return url;
+    }
+
+    /**
+     * Returns the canonicalized url as a string.
+     */
+    public String buildString() {
+        return build().toString();
+    }
+}
@@ -1,72 +1,100 @@
 package org.netpreserve.urlcanon;
 
 class UrlParser {
-    static ParsedUrl parseUrl(String s) {
-        ParsedUrl url = new ParsedUrl();
-        int pos = 0;
-        int len = s.length();
+    /**
+     * Parses s[start:end]. Components are recorded as offsets into s so it
+     * must not be modified afterwards.
+     */
+    static ParsedUrl parseUrl(CharSequence s, int start, int end) {
+        ParsedUrl url = new ParsedUrl(s);
+        parse(url, s, start, end);
+        return url;
+    }
+
+    /**
+     * Parses s[start:end] into a url that has been reset to s.
+     */
+    static void parse(ParsedUrl url, CharSequence s, int start, int end) {
+        checkWindow(s, start, end);
+        int pos = start;
+        int len = end;
 
         // leading control chars and spaces
         while (pos < len && s.charAt(pos) <= 0x20) pos++;
-        url.setLeadingJunk(s.substring(0, pos));
+        url.setSpan(ParsedUrl.LEADING_JUNK, start, pos);
 
         // trailing control chars and spaces
         while (pos < len && s.charAt(len - 1) <= 0x20) len--;
-        url.setTrailingJunk(s.substring(len));
+        url.setSpan(ParsedUrl.TRAILING_JUNK, len, end);
 
         // scheme [a-zA-Z] [^:]* :
+        int schemeStart = pos;
+        int schemeEnd = pos;
         if (pos < len && ((s.charAt(pos) >= 'a' && s.charAt(pos) <= 'z') || (s.charAt(pos) >= 'A' && s.charAt(pos) <= 'Z'))) {
-            int schemeStart = pos;
-            while (pos < len && s.charAt(pos) != ':') pos++;
+            pos = DelimiterScanner.indexOf(s, ':', pos, len);
 
             if (pos < len && s.charAt(pos) == ':') {
-                url.setScheme(s.substring(schemeStart, pos));
+                schemeEnd = pos;
+                url.setSpan(ParsedUrl.SCHEME, schemeStart, schemeEnd);
                 url.setColonAfterScheme(":");
                 pos++;
             } else { // no colon
                 pos = schemeStart; // backtrack
-                url.setScheme("");
+                url.setSpan(ParsedUrl.SCHEME, pos, pos);
                 url.setColonAfterScheme("");
             }
         } else {
-            url.setScheme("");
+            url.setSpan(ParsedUrl.SCHEME, pos, pos);
             url.setColonAfterScheme("");
         }
 
         // pathish [^?#]*
         int pathishStart = pos;
-        while (pos < len && s.charAt(pos) != '#' && s.charAt(pos) != '?') pos++;
-        parsePathish(url, s, pathishStart, pos);
+        pos = DelimiterScanner.indexOfEither(s, '#', '?', pos, len);
+        parsePathish(url, s, pathishStart, pos, specialScheme(s, schemeStart, schemeEnd));
 
         // query string \? [^#]*
         if (pos < len && s.charAt(pos) == '?') {
             pos++;
             url.setQuestionMark("?");
             int queryStart = pos;
-            while (pos < len && s.charAt(pos) != '#') pos++;
-            url.setQuery(s.substring(queryStart, pos));
+            pos = DelimiterScanner.indexOf(s, '#', pos, len);
+            url.setSpan(ParsedUrl.QUERY, queryStart, pos);
         } else {
             url.setQuestionMark("");
-            url.setQuery("");
+            url.setSpan(ParsedUrl.QUERY, pos, pos);
         }
 
         // fragment # .*
         if (pos < len && s.charAt(pos) == '#') {
             pos++;
             url.setHashSign("#");
-            url.setFragment(s.substring(pos, len));
+            url.setSpan(ParsedUrl.FRAGMENT, pos, len);
         } else {
             url.setHashSign("");
-            url.setFragment("");
+            url.setSpan(ParsedUrl.FRAGMENT, pos, pos);
         }
+    }
 
-        return url;
+    private static void checkWindow(CharSequence s, int start, int end) {
+        if (start < 0 || end > s.length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + s.length());
+        }
+    }
+
+    /**
+     * Reparses the path of a url that has just been given a scheme, as the
+     * scheme determines how the pathish part is split up.
+     */
+    static void reparsePathish(ParsedUrl url) {
+        String pathish = url.getPath();
+        url.rebase(pathish);
+        parsePathish(url, pathish, 0, pathish.length(), specialScheme(url.getScheme(), 0, url.getScheme().length()));
     }
 
-    static void parsePathish(ParsedUrl url, String s, int pos, int end) {
-        String cleanScheme = removeTabsAndNewlinesAndLowercase(url.getScheme());
-        boolean isSpecial = ParsedUrl.SPECIAL_SCHEMES.containsKey(cleanScheme);
-        boolean isFile = cleanScheme.equals("file");
+    private static void parsePathish(ParsedUrl url, CharSequence s, int pos, int end, SpecialScheme specialScheme) {
+        boolean isSpecial = specialScheme != null;
+        boolean isFile = specialScheme == SpecialScheme.FILE;
         int slashCount = 0;
 
         // slashes [\\/\r\n\y]*
@@ -93,82 +121,73 @@ class UrlParser {
                     break loop;
             }
         }
-        url.setSlashes(s.substring(slashesStart, pos));
+        url.setSpan(ParsedUrl.SLASHES, slashesStart, pos);
 
         if (isFile) {
             if (slashCount != 2) {
                 // no host? treat entire pathish as path
-                url.setPath(s.substring(slashesStart, end));
-                url.setSlashes("");
-                url.setUsername("");
-                url.setColonBeforePassword("");
-                url.setPassword("");
-                url.setAtSign("");
-                url.setHost("");
-                url.setColonBeforePort("");
-                url.setPort("");
+                noAuthority(url, slashesStart, end);
                 return;
             }
 
             // host [^/\\]*
             int startOfHost = pos;
-            while (pos < end && s.charAt(pos) != '/' && s.charAt(pos) != '\\') pos++;
-            url.setHost(s.substring(startOfHost, pos));
-            url.setUsername("");
+            pos = DelimiterScanner.indexOfEither(s, '/', '\\', pos, end);
+            url.setSpan(ParsedUrl.HOST, startOfHost, pos);
+            url.setSpan(ParsedUrl.USERNAME, startOfHost, startOfHost);
             url.setColonBeforePassword("");
-            url.setPassword("");
+            url.setSpan(ParsedUrl.PASSWORD, startOfHost, startOfHost);
             url.setAtSign("");
             url.setColonBeforePort("");
-            url.setPort("");
+            url.setSpan(ParsedUrl.PORT, pos, pos);
         } else if (isSpecial) {
 
             // authority [^/\\]*
             int startOfAuthority = pos;
-            while (pos < end && s.charAt(pos) != '/' && s.charAt(pos) != '\\') pos++;
+            pos = DelimiterScanner.indexOfEither(s, '/', '\\', pos, end);
             parseAuthority(url, s, startOfAuthority, pos);
 
         } else { // non special scheme
-            if (!removeTabsAndNewlinesAndLowercase(url.getSlashes()).equals("//")) {
+            if (slashCount != 2) {
                 // no double-slash? treat as opaque
-                url.setPath(s.substring(slashesStart, end));
-                url.setSlashes("");
-                url.setUsername("");
-                url.setColonBeforePassword("");
-                url.setPassword("");
-                url.setAtSign("");
-                url.setHost("");
-                url.setColonBeforePort("");
-                url.setPort("");
+                noAuthority(url, slashesStart, end);
                 return;
             }
 
             // authority [^/]*
             int startOfAuthority = pos;
-            while (pos < end && s.charAt(pos) != '/') pos++;
+            pos = DelimiterScanner.indexOf(s, '/', pos, end);
             parseAuthority(url, s, startOfAuthority, pos);
         }
 
         // path [/\\\\] .*
-        url.setPath(s.substring(pos, end));
+        url.setSpan(ParsedUrl.PATH, pos, end);
     }
 
-    private static void parseAuthority(ParsedUrl url, String s, int pos, int end) {
+    private static void noAuthority(ParsedUrl url, int pathStart, int end) {
+        url.setSpan(ParsedUrl.PATH, pathStart, end);
+        url.setSpan(ParsedUrl.SLASHES, pathStart, pathStart);
+        url.setSpan(ParsedUrl.USERNAME, pathStart, pathStart);
+        url.setColonBeforePassword("");
+        url.setSpan(ParsedUrl.PASSWORD, pathStart, pathStart);
+        url.setAtSign("");
+        url.setSpan(ParsedUrl.HOST, pathStart, pathStart);
+        url.setColonBeforePort("");
+        url.setSpan(ParsedUrl.PORT, pathStart, pathStart);
+    }
+
+    private static void parseAuthority(ParsedUrl url, CharSequence s, int pos, int end) {
         // userinfo (.*@)?
         int userinfoStart = pos;
-        int userinfoEnd = -1;
-        for (int i = pos; i < end; i++) {
-            if (s.charAt(i) == '@') {
-                userinfoEnd = i;
-            }
-        }
+        int userinfoEnd = DelimiterScanner.lastIndexOf(s, '@', pos, end);
         if (userinfoEnd != -1) {
             parseUserinfo(url, s, userinfoStart, userinfoEnd);
             pos = userinfoEnd + 1;
             url.setAtSign("@");
         } else { // no userinfo
-            url.setUsername("");
+            url.setSpan(ParsedUrl.USERNAME, pos, pos);
             url.setColonBeforePassword("");
-            url.setPassword("");
+            url.setSpan(ParsedUrl.PASSWORD, pos, pos);
             url.setAtSign("");
         }
 
@@ -188,44 +207,58 @@ class UrlParser {
 
         // host [^:]*
         while (pos < end && s.charAt(pos) != ':') pos++;
-        url.setHost(s.substring(hostStart, pos));
+        url.setSpan(ParsedUrl.HOST, hostStart, pos);
 
         // port :.*
         if (pos < end && s.charAt(pos) == ':') {
             pos++;
             url.setColonBeforePort(":");
-            url.setPort(s.substring(pos, end));
+            url.setSpan(ParsedUrl.PORT, pos, end);
         } else {
             url.setColonBeforePort("");
-            url.setPort("");
+            url.setSpan(ParsedUrl.PORT, pos, pos);
         }
     }
 
-    private static void parseUserinfo(ParsedUrl url, String s, int i, int end) {
+    private static void parseUserinfo(ParsedUrl url, CharSequence s, int i, int end) {
         // username
         int usernameStart = i;
         while (i < end && s.charAt(i) != ':') i++;
-        url.setUsername(s.substring(usernameStart, i));
+        url.setSpan(ParsedUrl.USERNAME, usernameStart, i);
 
         // password
         if (i < end && s.charAt(i) == ':') {
             url.setColonBeforePassword(":");
             i++;
-            url.setPassword(s.substring(i, end));
+            url.setSpan(ParsedUrl.PASSWORD, i, end);
         } else {
             url.setColonBeforePassword("");
-            url.setPassword("");
+            url.setSpan(ParsedUrl.PASSWORD, i, i);
+        }
+    }
+
+    /**
+     * Returns the special scheme s[start:end] refers to once tabs and newlines
+     * are removed and it's lowercased, or null if it isn't special.
+     */
+    static SpecialScheme specialScheme(CharSequence s, int start, int end) {
+        for (SpecialScheme scheme : SpecialScheme.VALUES) {
+            if (equalsIgnoringTabsNewlinesAndCase(s, start, end, scheme.name)) {
+                return scheme;
+            }
         }
+        return null;
     }
 
-    private static String removeTabsAndNewlinesAndLowercase(String s) {
-        StringBuilder sb = new StringBuilder(s.length());
-        for (int i = 0; i < s.length(); i++) {
+    private static boolean equalsIgnoringTabsNewlinesAndCase(CharSequence s, int start, int end, String lowercase) {
+        int j = 0;
+        for (int i = start; i < end; i++) {
             char c = s.charAt(i);
             if (c == '\t' || c == '\n' || c == '\r') continue;
             if (c >= 'A' && c <= 'Z') c += 32; // convert ascii caps to lowercase
-            sb.append(c);
+            if (j == lowercase.length() || c != lowercase.charAt(j)) return false;
+            j++;
         }
-        return sb.toString();
+        return j == lowercase.length();
     }
 }
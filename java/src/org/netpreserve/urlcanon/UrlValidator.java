@@ -0,0 +1,537 @@
+/*
+ * UrlValidator.java - classifies urls by whether the WHATWG URL standard accepts them
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.netpreserve.urlcanon.ParsedUrl.FRAGMENT;
+import static org.netpreserve.urlcanon.ParsedUrl.HOST;
+import static org.netpreserve.urlcanon.ParsedUrl.LEADING_JUNK;
+import static org.netpreserve.urlcanon.ParsedUrl.PATH;
+import static org.netpreserve.urlcanon.ParsedUrl.PORT;
+import static org.netpreserve.urlcanon.ParsedUrl.QUERY;
+import static org.netpreserve.urlcanon.ParsedUrl.SCHEME;
+import static org.netpreserve.urlcanon.ParsedUrl.SLASHES;
+import static org.netpreserve.urlcanon.ParsedUrl.TAB_OR_NEWLINE;
+import static org.netpreserve.urlcanon.ParsedUrl.TRAILING_JUNK;
+
+/**
+ * Classifies urls by how the <a href="https://url.spec.whatwg.org/">WHATWG
+ * URL standard</a> parses them without a base url, from the components the
+ * parser has already split out. The canonicalizers accept anything, so this
+ * lets callers tell the urls a browser would reject, and drop them before
+ * paying for punycode, decoding and path resolution.
+ *
+ * <pre>
+ * if (UrlValidator.classify(outlink) != UrlValidator.Validity.FAILURE) ...
+ * String canonical = Canonicalizer.WHATWG.canonicalizeStrict(outlink); // null if it's junk
+ * </pre>
+ *
+ * Hosts are checked for the characters the standard forbids and IP
+ * addresses are parsed exactly as it does, but the IDNA mapping is left to
+ * the canonicalizer, so the few hosts that only fail there, such as an
+ * "xn--" label that isn't valid punycode, aren't classified as failures.
+ */
+public final class UrlValidator {
+
+    /**
+     * How the WHATWG URL standard treats a url.
+     */
+    public enum Validity {
+        /**
+         * A valid URL string, which parses without validation errors.
+         */
+        VALID,
+        /**
+         * Parses, but with validation errors the parser works around:
+         * surrounding whitespace, tabs and newlines, backslashes, missing or
+         * extra slashes, credentials, shorthand or non-decimal IPv4 addresses,
+         * percent-encoded hosts and characters that need percent-encoding.
+         */
+        REPAIRABLE,
+        /**
+         * The parser returns failure: there's no scheme, a special url has no
+         * host, or the host has forbidden characters, an IP address or the
+         * port is malformed.
+         */
+        FAILURE
+    }
+
+    private static final int VALID = 0;
+    private static final int REPAIRABLE = 1;
+    private static final int FAILURE = 2;
+    private static final Validity[] VALIDITIES = Validity.values();
+
+    /*
+     * > A forbidden host code point is U+0000 NULL, U+0009 TAB, U+000A LF,
+     * > U+000D CR, U+0020 SPACE, U+0023 (#), U+002F (/), U+003A (:), U+003C (<),
+     * > U+003E (>), U+003F (?), U+0040 (@), U+005B ([), U+005C (\), U+005D (]),
+     * > U+005E (^), or U+007C (|).
+     * > A forbidden domain code point is a forbidden host code point, a C0
+     * > control, U+0025 (%), or U+007F DELETE.
+     * C1 controls are added to the domain set as IDNA disallows them. Opaque
+     * hosts may still have "<", ">", "^" and "|", as in the version of the
+     * standard testdata/urltestdata.json is from; they're only repairable.
+     */
+    private static final boolean[] FORBIDDEN_HOST = WhatwgCanonicalizer.buildEncodeSet("[\\x00\\t\\n\\r #/:?@\\x5b\\x5c\\x5d]");
+    private static final boolean[] FORBIDDEN_DOMAIN = WhatwgCanonicalizer.buildEncodeSet("[\\x00-\\x20#%/:<>?@\\x5b\\x5c\\x5d^|\\x7f-\\x9f]");
+
+    /*
+     * ASCII that isn't a URL code point, apart from "%" which is allowed
+     * before two hex digits.
+     */
+    private static final boolean[] NOT_URL = WhatwgCanonicalizer.buildEncodeSet("[\\x00-\\x20\"#<>\\x5b\\x5c\\x5d^`{|}\\x7f]");
+
+    private UrlValidator() {
+    }
+
+    /**
+     * Parses and classifies input.
+     */
+    public static Validity classify(CharSequence input) {
+        return CanonicalizationContext.classify(input, false);
+    }
+
+    /**
+     * Classifies a url as parsed, before it's canonicalized.
+     */
+    public static Validity classify(ParsedUrl url) {
+        return classify(url, false);
+    }
+
+    /**
+     * Whether the WHATWG URL standard fails to parse input. This is the
+     * strict mode of {@link #classify(CharSequence)}: it returns as soon as
+     * the scheme and authority are checked, without scanning the path, query
+     * and fragment, which can only make a url repairable.
+     */
+    public static boolean isFailure(CharSequence input) {
+        return CanonicalizationContext.classify(input, true) == Validity.FAILURE;
+    }
+
+    /**
+     * Whether the WHATWG URL standard fails to parse the url, as parsed.
+     *
+     * @see #isFailure(CharSequence)
+     */
+    public static boolean isFailure(ParsedUrl url) {
+        return classify(url, true) == Validity.FAILURE;
+    }
+
+    /**
+     * Classifies the url, stopping after the authority in strict mode, when
+     * only failure matters.
+     */
+    static Validity classify(ParsedUrl url, boolean strict) {
+        if (url.getColonAfterScheme().isEmpty()) {
+            return Validity.FAILURE; // relative, with no base url to resolve against
+        }
+        CharSequence scheme = url.chars(SCHEME);
+        int schemeStart = url.charsStart(SCHEME);
+        int schemeEnd = url.charsEnd(SCHEME);
+        int validity = checkScheme(scheme, schemeStart, schemeEnd);
+        if (validity == FAILURE) {
+            return Validity.FAILURE;
+        }
+        if (url.charsStart(LEADING_JUNK) != url.charsEnd(LEADING_JUNK)
+                || url.charsStart(TRAILING_JUNK) != url.charsEnd(TRAILING_JUNK)) {
+            validity = REPAIRABLE;
+        }
+
+        SpecialScheme specialScheme = UrlParser.specialScheme(scheme, schemeStart, schemeEnd);
+        boolean special = specialScheme != null;
+        if (special && !isTwoSlashes(url.chars(SLASHES), url.charsStart(SLASHES), url.charsEnd(SLASHES))) {
+            validity = REPAIRABLE; // missing, extra or back slashes
+        }
+        if (!url.getAtSign().isEmpty()) {
+            validity = REPAIRABLE; // credentials
+        }
+        if (special || url.charsStart(SLASHES) != url.charsEnd(SLASHES)) {
+            validity = Math.max(validity, checkHost(url, specialScheme));
+            if (validity == FAILURE) {
+                return Validity.FAILURE;
+            }
+        }
+        if (!url.getColonBeforePort().isEmpty()) {
+            validity = Math.max(validity, checkPort(url.chars(PORT), url.charsStart(PORT), url.charsEnd(PORT)));
+            if (validity == FAILURE) {
+                return Validity.FAILURE;
+            }
+        }
+        if (strict || validity == REPAIRABLE) {
+            return VALIDITIES[validity]; // nothing further along can fail
+        }
+
+        if (!isUrlUnits(url.chars(PATH), url.charsStart(PATH), url.charsEnd(PATH), false)
+                || !isUrlUnits(url.chars(QUERY), url.charsStart(QUERY), url.charsEnd(QUERY), false)
+                || !isUrlUnits(url.chars(FRAGMENT), url.charsStart(FRAGMENT), url.charsEnd(FRAGMENT), true)) {
+            return Validity.REPAIRABLE;
+        }
+        return Validity.VALID;
+    }
+
+    /**
+     * > A URL-scheme string must be one ASCII alpha, followed by zero or more
+     * > of ASCII alphanumeric, U+002B (+), U+002D (-), and U+002E (.).
+     * Anything else means there's no scheme, and so failure without a base.
+     */
+    private static int checkScheme(CharSequence s, int start, int end) {
+        int validity = VALID;
+        boolean first = true;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\t' || c == '\n' || c == '\r') {
+                validity = REPAIRABLE;
+            } else if (isAlpha(c) || (!first && (isDigit(c) || c == '+' || c == '-' || c == '.'))) {
+                first = false;
+            } else {
+                return FAILURE;
+            }
+        }
+        return first ? FAILURE : validity;
+    }
+
+    private static boolean isTwoSlashes(CharSequence s, int start, int end) {
+        return end - start == 2 && s.charAt(start) == '/' && s.charAt(start + 1) == '/';
+    }
+
+    private static int checkHost(ParsedUrl url, SpecialScheme specialScheme) {
+        int validity = VALID;
+        CharSequence host = url.chars(HOST);
+        int start = url.charsStart(HOST);
+        int end = url.charsEnd(HOST);
+        if (url.has(HOST, TAB_OR_NEWLINE)) {
+            host = WhatwgCanonicalizer.removeTabsAndNewlines(host, start, end);
+            start = 0;
+            end = host.length();
+            validity = REPAIRABLE;
+        }
+
+        if (start == end) {
+            // only file urls may have an empty host, and then without credentials or port
+            boolean file = specialScheme == SpecialScheme.FILE;
+            boolean mayBeEmpty = (specialScheme == null || file)
+                    && url.getAtSign().isEmpty() && url.getColonBeforePort().isEmpty();
+            return mayBeEmpty ? validity : FAILURE;
+        }
+        if (host.charAt(start) == '[') {
+            if (end - start < 2 || host.charAt(end - 1) != ']' || !isIpv6(host, start + 1, end - 1)) {
+                return FAILURE;
+            }
+            return validity;
+        }
+        if (specialScheme == null) {
+            return Math.max(validity, checkOpaqueHost(host, start, end));
+        }
+        if (specialScheme == SpecialScheme.FILE && end - start == 2 && isAlpha(host.charAt(start))
+                && (host.charAt(start + 1) == ':' || host.charAt(start + 1) == '|')) {
+            return REPAIRABLE; // a windows drive letter, taken as the start of the path
+        }
+        return Math.max(validity, checkDomain(host, start, end));
+    }
+
+    private static int checkOpaqueHost(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && FORBIDDEN_HOST[c]) {
+                return FAILURE;
+            }
+        }
+        return isUrlUnits(s, start, end, false) ? VALID : REPAIRABLE;
+    }
+
+    /**
+     * Checks a special url's host, percent-decoded, for forbidden domain code
+     * points and, if it ends in a number, that it's an IPv4 address.
+     */
+    private static int checkDomain(CharSequence s, int start, int end) {
+        int validity = VALID;
+        if (CharSequences.indexOf(s, '%', start, end) != -1) {
+            s = WhatwgCanonicalizer.pctDecode(s, start, end, UTF_8); // invalid UTF-8 becomes U+FFFD
+            start = 0;
+            end = s.length();
+            validity = REPAIRABLE;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c <= 0xff) {
+                if (FORBIDDEN_DOMAIN[c]) {
+                    return FAILURE;
+                }
+            } else if (c == '\uFFFD') {
+                return FAILURE;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    i++;
+                } else {
+                    return FAILURE;
+                }
+            }
+        }
+        if (endsInANumber(s, start, end)) {
+            return Math.max(validity, checkIpv4(s, start, end));
+        }
+        return validity;
+    }
+
+    /**
+     * Whether the last label of the host, ignoring one trailing dot, is a
+     * number, which makes the host an IPv4 address or nothing.
+     */
+    private static boolean endsInANumber(CharSequence s, int start, int end) {
+        if (end > start && s.charAt(end - 1) == '.') {
+            end--;
+        }
+        int lastStart = end;
+        while (lastStart > start && s.charAt(lastStart - 1) != '.') {
+            lastStart--;
+        }
+        if (lastStart == end) {
+            return false;
+        }
+        boolean digits = true;
+        for (int i = lastStart; i < end && digits; i++) {
+            digits = isDigit(s.charAt(i));
+        }
+        return digits || ipv4Number(s, lastStart, end) != -1;
+    }
+
+    /**
+     * The WHATWG IPv4 parser: up to four dot-separated numbers in decimal,
+     * octal or hex, all but the last less than 256.
+     */
+    private static int checkIpv4(CharSequence s, int start, int end) {
+        int validity = VALID;
+        if (s.charAt(end - 1) == '.') {
+            validity = REPAIRABLE;
+            end--;
+        }
+        int parts = 0;
+        int partStart = start;
+        while (true) {
+            int partEnd = CharSequences.indexOf(s, '.', partStart, end);
+            if (partEnd == -1) {
+                partEnd = end;
+            }
+            if (++parts > 4) {
+                return FAILURE;
+            }
+            long number = ipv4Number(s, partStart, partEnd);
+            if (number == -1) {
+                return FAILURE;
+            }
+            if (partEnd - partStart >= 2 && s.charAt(partStart) == '0') {
+                validity = REPAIRABLE; // octal or hex
+            }
+            if (partEnd == end) {
+                if (number >= 1L << (8 * (5 - parts))) {
+                    return FAILURE;
+                }
+                return parts < 4 || number > 255 ? REPAIRABLE : validity;
+            }
+            if (number > 255) {
+                return FAILURE;
+            }
+            partStart = partEnd + 1;
+        }
+    }
+
+    /**
+     * Parses an IPv4 number, returning -1 if it isn't one. Values past
+     * 2^32 are clamped to it, as they're out of range anyway.
+     */
+    private static long ipv4Number(CharSequence s, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        int radix = 10;
+        if (end - start >= 2 && s.charAt(start) == '0') {
+            char c = s.charAt(start + 1);
+            if (c == 'x' || c == 'X') {
+                radix = 16;
+                start += 2;
+            } else {
+                radix = 8;
+                start++;
+            }
+        }
+        long number = 0;
+        for (int i = start; i < end; i++) {
+            int digit = hexDigit(s.charAt(i));
+            if (digit == -1 || digit >= radix) {
+                return -1;
+            }
+            number = Math.min(number * radix + digit, 1L << 32);
+        }
+        return number;
+    }
+
+    /**
+     * The WHATWG IPv6 parser, without the brackets.
+     */
+    private static boolean isIpv6(CharSequence s, int start, int end) {
+        int pieceIndex = 0;
+        boolean compressed = false;
+        int i = start;
+        if (i < end && s.charAt(i) == ':') {
+            if (i + 1 >= end || s.charAt(i + 1) != ':') {
+                return false;
+            }
+            i += 2;
+            pieceIndex++;
+            compressed = true;
+        }
+        while (i < end) {
+            if (pieceIndex == 8) {
+                return false;
+            }
+            if (s.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                i++;
+                pieceIndex++;
+                compressed = true;
+                continue;
+            }
+            int length = 0;
+            while (length < 4 && i < end && hexDigit(s.charAt(i)) != -1) {
+                i++;
+                length++;
+            }
+            if (i < end && s.charAt(i) == '.') {
+                // embedded IPv4 address, strictly dotted decimal
+                if (length == 0 || pieceIndex > 6) {
+                    return false;
+                }
+                i -= length;
+                int numbersSeen = 0;
+                while (i < end) {
+                    if (numbersSeen > 0) {
+                        if (s.charAt(i) != '.' || numbersSeen == 4) {
+                            return false;
+                        }
+                        i++;
+                    }
+                    if (i >= end || !isDigit(s.charAt(i))) {
+                        return false;
+                    }
+                    int piece = -1;
+                    while (i < end && isDigit(s.charAt(i))) {
+                        int digit = s.charAt(i) - '0';
+                        if (piece == 0) {
+                            return false; // leading zero
+                        }
+                        piece = piece == -1 ? digit : piece * 10 + digit;
+                        if (piece > 255) {
+                            return false;
+                        }
+                        i++;
+                    }
+                    numbersSeen++;
+                    if (numbersSeen == 2 || numbersSeen == 4) {
+                        pieceIndex++;
+                    }
+                }
+                return numbersSeen == 4 && (compressed || pieceIndex == 8);
+            } else if (i < end && s.charAt(i) == ':') {
+                i++;
+                if (i == end) {
+                    return false;
+                }
+            } else if (i < end) {
+                return false;
+            }
+            pieceIndex++;
+        }
+        return compressed || pieceIndex == 8;
+    }
+
+    /**
+     * > A URL-port string must be one of the following: the empty string;
+     * > one or more ASCII digits representing a decimal number no greater
+     * > than 2^16 - 1.
+     */
+    private static int checkPort(CharSequence s, int start, int end) {
+        int validity = VALID;
+        int port = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\t' || c == '\n' || c == '\r') {
+                validity = REPAIRABLE;
+            } else if (!isDigit(c)) {
+                return FAILURE;
+            } else {
+                port = port * 10 + c - '0';
+                if (port > 65535) {
+                    return FAILURE;
+                }
+            }
+        }
+        return validity;
+    }
+
+    /**
+     * Whether s[start:end] is all URL code points and well-formed percent
+     * escapes. "#" is only a URL unit as the fragment delimiter.
+     */
+    private static boolean isUrlUnits(CharSequence s, int start, int end, boolean fragment) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == '%') {
+                    if (i + 2 >= end || hexDigit(s.charAt(i + 1)) == -1 || hexDigit(s.charAt(i + 2)) == -1) {
+                        return false;
+                    }
+                } else if (NOT_URL[c] || (fragment && c == '#')) {
+                    return false;
+                }
+            } else if (Character.isSurrogate(c)) {
+                if (!Character.isHighSurrogate(c) || i + 1 >= end || !Character.isLowSurrogate(s.charAt(i + 1))) {
+                    return false;
+                }
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                if ((codePoint & 0xfffe) == 0xfffe) {
+                    return false; // noncharacter
+                }
+            } else if ((c >= 0xfdd0 && c <= 0xfdef) || c >= 0xfffe) {
+                return false; // noncharacter
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
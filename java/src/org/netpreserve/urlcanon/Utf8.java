@@ -0,0 +1,136 @@
+/*
+ * Utf8.java - UTF-8 encoding of chars straight into byte arrays and buffers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes chars as UTF-8 the way String.getBytes(UTF_8) does, unpaired
+ * surrogates becoming '?', but without the intermediate String or byte
+ * array. Canonical urls are nearly always ASCII, which is copied a byte per
+ * char.
+ */
+final class Utf8 {
+    private Utf8() {
+    }
+
+    /**
+     * The number of bytes s[start:end] encodes to.
+     */
+    static int length(CharSequence s, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1; // '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes s[start:end] into bytes at pos, returning the position after
+     * the last byte written. The caller ensures there's room.
+     */
+    static int encode(CharSequence s, int start, int end, byte[] bytes, int pos) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | c >> 6);
+                bytes[pos++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                bytes[pos++] = (byte) (0xf0 | cp >> 18);
+                bytes[pos++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                bytes[pos++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                bytes[pos++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | c >> 12);
+                bytes[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+                bytes[pos++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Encodes s into bytes at offset, returning the number of bytes written.
+     *
+     * @throws IndexOutOfBoundsException if they don't fit, in which case
+     *                                   nothing is written
+     */
+    static int encode(CharSequence s, byte[] bytes, int offset) {
+        int length = s.length();
+        if (offset < 0 || offset > bytes.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + " of " + bytes.length + " bytes");
+        }
+        // a char is at most three bytes, so the exact length is only needed near the end
+        if (bytes.length - offset < length * 3) {
+            int needed = length(s, 0, length);
+            if (needed > bytes.length - offset) {
+                throw new IndexOutOfBoundsException(needed + " bytes don't fit at " + offset + " of " + bytes.length);
+            }
+        }
+        return encode(s, 0, length, bytes, offset) - offset;
+    }
+
+    /**
+     * Encodes s at the buffer's position, advancing it.
+     *
+     * @throws BufferOverflowException if the bytes don't fit, in which case
+     *                                 nothing is written
+     */
+    static void encode(CharSequence s, ByteBuffer buffer) {
+        int length = s.length();
+        if (buffer.remaining() < length * 3 && buffer.remaining() < length(s, 0, length)) {
+            throw new BufferOverflowException();
+        }
+        if (buffer.hasArray()) {
+            int start = buffer.arrayOffset() + buffer.position();
+            int end = encode(s, 0, length, buffer.array(), start);
+            buffer.position(buffer.position() + end - start);
+            return;
+        }
+        byte[] bytes = null;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else {
+                int end = i + 1 < length && Character.isHighSurrogate(c)
+                        && Character.isLowSurrogate(s.charAt(i + 1)) ? i + 2 : i + 1;
+                if (bytes == null) bytes = new byte[4];
+                buffer.put(bytes, 0, encode(s, i, end, bytes, 0));
+                i = end - 1;
+            }
+        }
+    }
+}
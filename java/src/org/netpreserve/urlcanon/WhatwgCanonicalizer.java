@@ -21,17 +21,39 @@
 package org.netpreserve.urlcanon;
 
 import java.nio.charset.Charset;
-import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Deque;
 import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.regex.Pattern.CASE_INSENSITIVE;
-
-class WhatwgCanonicalizer implements Canonicalizer {
+import static org.netpreserve.urlcanon.ParsedUrl.ALL_COMPONENTS;
+import static org.netpreserve.urlcanon.ParsedUrl.AT_SIGN;
+import static org.netpreserve.urlcanon.ParsedUrl.BACKSLASH;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_BEFORE_PASSWORD;
+import static org.netpreserve.urlcanon.ParsedUrl.COLON_BEFORE_PORT;
+import static org.netpreserve.urlcanon.ParsedUrl.DOT;
+import static org.netpreserve.urlcanon.ParsedUrl.FRAGMENT;
+import static org.netpreserve.urlcanon.ParsedUrl.HOST;
+import static org.netpreserve.urlcanon.ParsedUrl.LEADING_JUNK;
+import static org.netpreserve.urlcanon.ParsedUrl.NON_ASCII;
+import static org.netpreserve.urlcanon.ParsedUrl.PASSWORD;
+import static org.netpreserve.urlcanon.ParsedUrl.PATH;
+import static org.netpreserve.urlcanon.ParsedUrl.PERCENT;
+import static org.netpreserve.urlcanon.ParsedUrl.PORT;
+import static org.netpreserve.urlcanon.ParsedUrl.QUERY;
+import static org.netpreserve.urlcanon.ParsedUrl.SCHEME;
+import static org.netpreserve.urlcanon.ParsedUrl.SLASHES;
+import static org.netpreserve.urlcanon.ParsedUrl.TAB_OR_NEWLINE;
+import static org.netpreserve.urlcanon.ParsedUrl.TRAILING_JUNK;
+import static org.netpreserve.urlcanon.ParsedUrl.UNSAFE;
+import static org.netpreserve.urlcanon.ParsedUrl.USERNAME;
+import static org.netpreserve.urlcanon.Step.components;
+import static org.netpreserve.urlcanon.Step.step;
+
+public class WhatwgCanonicalizer implements Canonicalizer {
     private static final String SLASH = "/";
     private static final String TWO_SLASHES = "//";
     private static final Pattern SPECIAL_PATH_SEGMENT_REGEX = Pattern.compile("(?:([.]|%2e)([.]|%2e)?|[^/\\\\]*)(?:[/\\\\]|\\Z)", CASE_INSENSITIVE);
@@ -46,11 +68,13 @@ class WhatwgCanonicalizer implements Canonicalizer {
      * > The userinfo percent-encode set is the path percent-encode set and code
      * > points "/", ":", ";", "=", "@", "[", "\", "]", "^", and "|".
      */
-    private static final boolean[] C0_ENCODE = buildEncodeSet("[\\x00-\\x1f\\x7f-\\xff]");
-    private static final boolean[] PATH_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff\"#<>?`{}]");
-    private static final boolean[] QUERY_ENCODE = buildEncodeSet("[\\x00-\\x20\\x22\\x23\\x3c\\x3e\\x7f-\\xff]");
-    private static final boolean[] USERINFO_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff\"#<>?`{}/:;=@\\x5b\\x5c\\x5d\\x5e\\x7c]");
-    private static final boolean[] HOST_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff]");
+    static final boolean[] C0_ENCODE = buildEncodeSet("[\\x00-\\x1f\\x7f-\\xff]");
+    static final boolean[] PATH_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff\"#<>?`{}]");
+    static final boolean[] QUERY_ENCODE = buildEncodeSet("[\\x00-\\x20\\x22\\x23\\x3c\\x3e\\x7f-\\xff]");
+    static final boolean[] USERINFO_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff\"#<>?`{}/:;=@\\x5b\\x5c\\x5d\\x5e\\x7c]");
+    static final boolean[] HOST_ENCODE = buildEncodeSet("[\\x00-\\x20\\x7f-\\xff]");
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     private static final Idn idn = Idn.load();
 
@@ -64,11 +88,15 @@ class WhatwgCanonicalizer implements Canonicalizer {
     }
 
     static String removeTabsAndNewlines(String s) {
-        int first = findTabOrNewline(s);
-        if (first == -1) return s;
-        StringBuilder sb = new StringBuilder(s.length());
-        sb.append(s, 0, first);
-        for (int j = first; j < s.length(); j++) {
+        return removeTabsAndNewlines(s, 0, s.length());
+    }
+
+    static String removeTabsAndNewlines(CharSequence s, int start, int end) {
+        int first = findTabOrNewline(s, start, end);
+        if (first == -1) return CharSequences.toString(s, start, end);
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(s, start, first);
+        for (int j = first; j < end; j++) {
             char c = s.charAt(j);
             if (c != '\t' && c != '\r' && c != '\n') {
                 sb.append(c);
@@ -77,8 +105,8 @@ class WhatwgCanonicalizer implements Canonicalizer {
         return sb.toString();
     }
 
-    private static int findTabOrNewline(String s) {
-        for (int i = 0; i < s.length(); i++) {
+    private static int findTabOrNewline(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
             char c = s.charAt(i);
             if (c == '\t' || c == '\r' || c == '\n') {
                 return i;
@@ -93,23 +121,24 @@ class WhatwgCanonicalizer implements Canonicalizer {
     }
 
     static void removeTabsAndNewlines(ParsedUrl url) {
-        url.setLeadingJunk(removeTabsAndNewlines(url.getLeadingJunk()));
-        url.setScheme(removeTabsAndNewlines(url.getScheme()));
+        // components without tabs or newlines are left alone, and so stay lazy
+        if (url.has(LEADING_JUNK, TAB_OR_NEWLINE)) url.setLeadingJunk(removeTabsAndNewlines(url.getLeadingJunk()));
+        if (url.has(SCHEME, TAB_OR_NEWLINE)) url.setScheme(removeTabsAndNewlines(url.getScheme()));
         url.setColonAfterScheme(removeTabsAndNewlines(url.getColonAfterScheme()));
-        url.setSlashes(removeTabsAndNewlines(url.getSlashes()));
-        url.setUsername(removeTabsAndNewlines(url.getUsername()));
+        if (url.has(SLASHES, TAB_OR_NEWLINE)) url.setSlashes(removeTabsAndNewlines(url.getSlashes()));
+        if (url.has(USERNAME, TAB_OR_NEWLINE)) url.setUsername(removeTabsAndNewlines(url.getUsername()));
         url.setColonBeforePassword(removeTabsAndNewlines(url.getColonBeforePassword()));
-        url.setPassword(removeTabsAndNewlines(url.getPassword()));
+        if (url.has(PASSWORD, TAB_OR_NEWLINE)) url.setPassword(removeTabsAndNewlines(url.getPassword()));
         url.setAtSign(removeTabsAndNewlines(url.getAtSign()));
-        url.setHost(removeTabsAndNewlines(url.getHost()));
+        if (url.has(HOST, TAB_OR_NEWLINE)) url.setHost(removeTabsAndNewlines(url.getHost()));
         url.setColonBeforePort(removeTabsAndNewlines(url.getColonBeforePort()));
-        url.setPort(removeTabsAndNewlines(url.getPort()));
-        url.setPath(removeTabsAndNewlines(url.getPath()));
+        if (url.has(PORT, TAB_OR_NEWLINE)) url.setPort(removeTabsAndNewlines(url.getPort()));
+        if (url.has(PATH, TAB_OR_NEWLINE)) url.setPath(removeTabsAndNewlines(url.getPath()));
         url.setQuestionMark(removeTabsAndNewlines(url.getQuestionMark()));
-        url.setQuery(removeTabsAndNewlines(url.getQuery()));
+        if (url.has(QUERY, TAB_OR_NEWLINE)) url.setQuery(removeTabsAndNewlines(url.getQuery()));
         url.setHashSign(removeTabsAndNewlines(url.getHashSign()));
-        url.setFragment(removeTabsAndNewlines(url.getFragment()));
-        url.setTrailingJunk(removeTabsAndNewlines(url.getTrailingJunk()));
+        if (url.has(FRAGMENT, TAB_OR_NEWLINE)) url.setFragment(removeTabsAndNewlines(url.getFragment()));
+        if (url.has(TRAILING_JUNK, TAB_OR_NEWLINE)) url.setTrailingJunk(removeTabsAndNewlines(url.getTrailingJunk()));
     }
 
     static void lowercaseScheme(ParsedUrl url) {
@@ -117,8 +146,13 @@ class WhatwgCanonicalizer implements Canonicalizer {
     }
 
     static void fixBackslashes(ParsedUrl url) {
-        if (ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())) {
-            url.setSlashes(url.getSlashes().replace('\\', '/'));
+        if (url.specialScheme() != null) {
+            if (url.has(SLASHES, BACKSLASH)) {
+                url.setSlashes(url.getSlashes().replace('\\', '/'));
+            }
+            if (!url.has(PATH, BACKSLASH)) {
+                return;
+            }
             String path = url.getPath();
             if (!path.isEmpty()) {
                 char c = path.charAt(0);
@@ -130,54 +164,116 @@ class WhatwgCanonicalizer implements Canonicalizer {
     }
 
     static String resolvePathDots(String path, boolean special) {
-        if (!path.isEmpty() && (path.charAt(0) == '/' || (special && path.charAt(0) == '\\'))) {
-            // optimisation: skip string that have nothing to resolve
-            // scanning the string several times like this seems faster than the regex
-            if (!path.contains("/.") && !path.contains("/%2") &&
-                    (!special || (!path.contains("\\.") && !path.contains("\\%2")))) {
-                return path;
-            }
+        return resolvePathDots(path, 0, path.length(), special);
+    }
 
-            StringBuilder buf = new StringBuilder(path.length());
-            buf.append(path.charAt(0));
-            Deque<Integer> segmentOffsets = new ArrayDeque<>();
-            Matcher m = (special ? SPECIAL_PATH_SEGMENT_REGEX : NONSPECIAL_PATH_SEGMENT_REGEX).matcher(path);
-            m.region(1, path.length());
-            while (m.lookingAt()) {
-                if (m.start(2) != -1) {
-                    // "../" => pop last segment
-                    buf.setLength(segmentOffsets.isEmpty() ? 1 : segmentOffsets.pop());
-                } else if (m.start(1) != -1) {
-                    // "./" => do nothing
-                } else {
-                    // push new segment
-                    segmentOffsets.push(buf.length());
-                    buf.append(path, m.start(), m.end());
-                }
-                if (m.end() == path.length()) {
-                    break;
+    static String resolvePathDots(CharSequence path, int start, int end, boolean special) {
+        return resolvePathDots(path, start, end, special, null);
+    }
+
+    private static String resolvePathDots(CharSequence path, int start, int end, boolean special,
+                                          CanonicalizationContext context) {
+        if (!hasPathDots(path, start, end, special)) {
+            return CharSequences.toString(path, start, end);
+        }
+        StringBuilder buf = context == null ? new StringBuilder(end - start) : context.builder();
+        resolvePathDotsTo(buf, path, start, end, special, context);
+        return buf.toString();
+    }
+
+    /**
+     * True if path[start:end] might have "." or ".." segments to resolve.
+     */
+    private static boolean hasPathDots(CharSequence path, int start, int end, boolean special) {
+        // optimisation: skip string that have nothing to resolve
+        // scanning the string several times like this seems faster than the regex
+        return start < end && (path.charAt(start) == '/' || (special && path.charAt(start) == '\\')) &&
+                (CharSequences.indexOf(path, "/.", start, end) != -1 ||
+                        CharSequences.indexOf(path, "/%2", start, end) != -1 ||
+                        (special && (CharSequences.indexOf(path, "\\.", start, end) != -1 ||
+                                CharSequences.indexOf(path, "\\%2", start, end) != -1)));
+    }
+
+    /**
+     * Appends path[start:end] to buf with its "." and ".." segments resolved.
+     * The context, if any, provides the segment stack and matcher but not
+     * the builder, so buf may be the context's builder.
+     */
+    static void resolvePathDotsTo(StringBuilder buf, CharSequence path, int start, int end, boolean special,
+                                  CanonicalizationContext context) {
+        if (!hasPathDots(path, start, end, special)) {
+            buf.append(path, start, end);
+            return;
+        }
+
+        CanonicalizerMetrics.count(CanonicalizerMetrics.Counter.PATH_DOTS_REGEX);
+        Pattern pattern = special ? SPECIAL_PATH_SEGMENT_REGEX : NONSPECIAL_PATH_SEGMENT_REGEX;
+        int[] segmentOffsets; // stack of where each segment starts in buf
+        Matcher m;
+        if (context == null) {
+            segmentOffsets = new int[16];
+            m = pattern.matcher(path);
+        } else {
+            segmentOffsets = context.offsets;
+            m = context.segmentMatcher(pattern, special, path);
+        }
+        int segments = 0;
+        int root = buf.length() + 1;
+        buf.append(path.charAt(start));
+        m.region(start + 1, end);
+        while (m.lookingAt()) {
+            if (m.start(2) != -1) {
+                // "../" => pop last segment
+                buf.setLength(segments == 0 ? root : segmentOffsets[--segments]);
+            } else if (m.start(1) != -1) {
+                // "./" => do nothing
+            } else {
+                // push new segment
+                if (segments == segmentOffsets.length) {
+                    segmentOffsets = Arrays.copyOf(segmentOffsets, segments * 2);
+                    if (context != null) {
+                        context.offsets = segmentOffsets;
+                    }
                 }
-                m.region(m.end(), path.length());
+                segmentOffsets[segments++] = buf.length();
+                buf.append(path, m.start(), m.end());
             }
-            return buf.toString();
-        } else {
-            return path;
+            if (m.end() == end) {
+                break;
+            }
+            m.region(m.end(), end);
         }
     }
 
+    /**
+     * Precondition of normalizePathDots: there may be "." or "%2e" segments.
+     */
+    static boolean hasPathDots(ParsedUrl url) {
+        return url.has(PATH, DOT | PERCENT);
+    }
+
     static void normalizePathDots(ParsedUrl url) {
-        url.setPath(resolvePathDots(url.getPath(), ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())));
+        String path = url.getPath();
+        url.setPath(resolvePathDots(path, 0, path.length(), url.specialScheme() != null, url.context));
     }
 
     public static String pctDecode(String str, Charset charset) {
-        if (str.indexOf('%') == -1) return str;
-        StringBuilder sb = new StringBuilder(str.length());
+        return pctDecode(str, 0, str.length(), charset);
+    }
+
+    /**
+     * Percent-decodes str[start:end], decoding each run of escaped bytes with
+     * the given charset.
+     */
+    public static String pctDecode(CharSequence str, int start, int end, Charset charset) {
+        if (CharSequences.indexOf(str, '%', start, end) == -1) return CharSequences.toString(str, start, end);
+        StringBuilder sb = new StringBuilder(end - start);
         byte[] buf = new byte[16];
         int len = 0;
-        int i = 0;
-        while (i < str.length()) {
+        int i = start;
+        while (i < end) {
             while (true) {
-                if (i + 3 > str.length()) break;
+                if (i + 3 > end) break;
                 if (str.charAt(i) != '%') break;
 
                 int digit1 = Character.digit(str.charAt(i + 1), 16);
@@ -209,54 +305,138 @@ class WhatwgCanonicalizer implements Canonicalizer {
 
 
     static String pctEncode(String str, boolean[] encodeSet, Charset charset) {
-        StringBuilder buf = null;
-        for (int i = 0; i < str.length();) {
-            int codepoint = str.codePointAt(i);
-            int len = Character.charCount(codepoint);
+        return pctEncode(str, 0, str.length(), encodeSet, charset);
+    }
 
-            if (codepoint > 0xff || encodeSet[codepoint]) {
-                if (buf == null) {
-                    buf = new StringBuilder(str.length());
-                    buf.append(str, 0, i);
-                }
-                byte[] encoded = str.substring(i, i + len).getBytes(charset);
-                for (byte b : encoded) {
-                    buf.append('%');
-                    buf.append(Character.toUpperCase(Character.forDigit((b & 0xff) >> 4, 16)));
-                    buf.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
-                }
+    static String pctEncode(CharSequence str, int start, int end, boolean[] encodeSet, Charset charset) {
+        return pctEncode(str, start, end, encodeSet, charset, null);
+    }
+
+    /**
+     * Percent-encodes a component of url, using the url's scratch buffer if
+     * it has one.
+     */
+    static String pctEncode(ParsedUrl url, String str, boolean[] encodeSet, Charset charset) {
+        return pctEncode(str, 0, str.length(), encodeSet, charset, CanonicalizationContext.builder(url));
+    }
+
+    private static String pctEncode(CharSequence str, int start, int end, boolean[] encodeSet, Charset charset,
+                                    StringBuilder scratch) {
+        int i = DelimiterScanner.indexOfAny(str, encodeSet, start, end);
+        if (i == end) {
+            return CharSequences.toString(str, start, end);
+        }
+        StringBuilder buf = scratch == null ? new StringBuilder(end - start + 16) : scratch;
+        buf.append(str, start, i);
+        pctEncodeTo(buf, str, i, end, encodeSet, charset);
+        return buf.toString();
+    }
+
+    /**
+     * Like {@link #pctEncodeTo} but appends the run of chars before the first
+     * one to encode in one go.
+     */
+    static void appendPctEncoded(StringBuilder buf, CharSequence str, int start, int end, boolean[] encodeSet,
+                                 Charset charset) {
+        int i = DelimiterScanner.indexOfAny(str, encodeSet, start, end);
+        buf.append(str, start, i);
+        if (i < end) {
+            pctEncodeTo(buf, str, i, end, encodeSet, charset);
+        }
+    }
+
+    /**
+     * Appends str[start:end] to buf, percent-encoding the characters in
+     * encodeSet and those above U+00FF. The runs of characters in between
+     * are appended whole.
+     */
+    static void pctEncodeTo(StringBuilder buf, CharSequence str, int start, int end, boolean[] encodeSet, Charset charset) {
+        for (int i = start; i < end;) {
+            int next = DelimiterScanner.indexOfAny(str, encodeSet, i, end);
+            if (next > i) {
+                buf.append(str, i, next);
+                i = next;
+                continue;
+            }
+            char c = str.charAt(i);
+            int codepoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(str.charAt(i + 1))) {
+                codepoint = Character.toCodePoint(c, str.charAt(i + 1));
+            }
+            int len = Character.charCount(codepoint);
+            if (charset == UTF_8) {
+                appendPctUtf8(buf, codepoint);
             } else {
-                if (buf != null) {
-                    buf.append(str, i, i + len);
+                byte[] encoded = str.subSequence(i, i + len).toString().getBytes(charset);
+                for (byte b : encoded) {
+                    appendPctByte(buf, b);
                 }
             }
             i += len;
         }
-        return buf == null ? str : buf.toString();
     }
 
-    void pctEncodePath(ParsedUrl url, Charset charset) {
+    /**
+     * Encodes the code point as String.getBytes(UTF_8) would, without
+     * allocating, and appends the bytes percent-encoded.
+     */
+    private static void appendPctUtf8(StringBuilder buf, int codepoint) {
+        if (codepoint < 0x80) {
+            appendPctByte(buf, codepoint);
+        } else if (codepoint < 0x800) {
+            appendPctByte(buf, 0xc0 | codepoint >> 6);
+            appendPctByte(buf, 0x80 | codepoint & 0x3f);
+        } else if (Character.isSurrogate((char) codepoint) && codepoint < 0x10000) {
+            appendPctByte(buf, '?'); // unpaired surrogate
+        } else if (codepoint < 0x10000) {
+            appendPctByte(buf, 0xe0 | codepoint >> 12);
+            appendPctByte(buf, 0x80 | codepoint >> 6 & 0x3f);
+            appendPctByte(buf, 0x80 | codepoint & 0x3f);
+        } else {
+            appendPctByte(buf, 0xf0 | codepoint >> 18);
+            appendPctByte(buf, 0x80 | codepoint >> 12 & 0x3f);
+            appendPctByte(buf, 0x80 | codepoint >> 6 & 0x3f);
+            appendPctByte(buf, 0x80 | codepoint & 0x3f);
+        }
+    }
+
+    private static void appendPctByte(StringBuilder buf, int b) {
+        buf.append('%');
+        buf.append(HEX_DIGITS[(b & 0xff) >> 4]);
+        buf.append(HEX_DIGITS[b & 0xf]);
+    }
+
+    static void pctEncodePath(ParsedUrl url, Charset charset) {
+        if (!url.has(PATH, NON_ASCII | UNSAFE)) {
+            return;
+        }
         boolean[] encodeSet;
         if (!url.getPath().isEmpty() && url.getPath().charAt(0) == '/'
-                || ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())) {
+                || url.specialScheme() != null) {
             encodeSet = PATH_ENCODE;
         } else {
             encodeSet = C0_ENCODE;
         }
-        url.setPath(pctEncode(url.getPath(), encodeSet, charset));
+        url.setPath(pctEncode(url, url.getPath(), encodeSet, charset));
     }
 
-    void pctEncodeFragment(ParsedUrl url, Charset charset) {
-        url.setFragment(pctEncode(url.getFragment(), C0_ENCODE, charset));
+    static void pctEncodeFragment(ParsedUrl url, Charset charset) {
+        if (!url.has(FRAGMENT, NON_ASCII | UNSAFE)) {
+            return;
+        }
+        url.setFragment(pctEncode(url, url.getFragment(), C0_ENCODE, charset));
     }
 
-    void pctEncodeQuery(ParsedUrl url, Charset charset) {
-        url.setQuery(pctEncode(url.getQuery(), QUERY_ENCODE, charset));
+    static void pctEncodeQuery(ParsedUrl url, Charset charset) {
+        if (!url.has(QUERY, NON_ASCII | UNSAFE)) {
+            return;
+        }
+        url.setQuery(pctEncode(url, url.getQuery(), QUERY_ENCODE, charset));
     }
 
     static void emptyPathToSlash(ParsedUrl url) {
         if (url.getPath().isEmpty() && !url.getHost().isEmpty()
-                && ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())) {
+                && url.specialScheme() != null) {
             url.setPath(SLASH);
         }
     }
@@ -269,9 +449,12 @@ class WhatwgCanonicalizer implements Canonicalizer {
     }
 
     private static boolean hasDefaultPort(ParsedUrl url) {
-        Integer defaultPort = ParsedUrl.SPECIAL_SCHEMES.get(url.getScheme());
-        int port = (int) CharSequences.parseLong(url.getPort());
-        return defaultPort != null && port == defaultPort.intValue();
+        SpecialScheme scheme = url.specialScheme();
+        if (scheme == null || scheme.defaultPort == -1) {
+            return false;
+        }
+        // truncated to an int as ever, so a port that overflows one can still be elided
+        return (int) CharSequences.parseLong(url.getPort()) == scheme.defaultPort;
     }
 
     static String normalizeIpAddress(String host) {
@@ -310,7 +493,7 @@ class WhatwgCanonicalizer implements Canonicalizer {
      */
     public static void leadingSlash(ParsedUrl url) {
         String path = url.getPath();
-        if (ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())
+        if (url.specialScheme() != null
                 && (path.isEmpty() || path.charAt(0) != '/')) {
             StringBuilder b = new StringBuilder(path.length() + 1);
             b.append('/');
@@ -320,43 +503,76 @@ class WhatwgCanonicalizer implements Canonicalizer {
     }
 
     public static void twoSlashes(ParsedUrl url) {
-        if (!url.getSlashes().isEmpty() || ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())) {
+        if (!url.getSlashes().isEmpty() || url.specialScheme() != null) {
             url.setSlashes(TWO_SLASHES);
         }
     }
 
     public static void punycodeSpecialHost(ParsedUrl url, Charset charset) {
-        if (ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())) {
+        if (url.specialScheme() != null) {
             String host = url.getHost();
-            if (charset != UTF_8) {
-                // XXX: hack to match python behaviour, attempt to interpret as utf8 for punycoding
-                host = new String(host.getBytes(charset), UTF_8);
-                if (host.contains("\ufffd")) { // contains non-utf8 junk
-                    return; // leave unmodified
-                }
+            if (!isIdnNoOp(host, 0, host.length(), charset)) {
+                url.setHost(punycodeHost(host, charset));
             }
-            try {
-                String ascii = idn.toAscii(host);
-                url.setHost(ascii.toLowerCase());
-            } catch (IllegalArgumentException e) {
-                // leave unmodified
+        }
+    }
+
+    /**
+     * The host converted to ASCII with IDNA and lowercased, or host itself if
+     * that fails.
+     */
+    static String punycodeHost(String host, Charset charset) {
+        String unicode = host;
+        if (charset != UTF_8) {
+            // XXX: hack to match python behaviour, attempt to interpret as utf8 for punycoding
+            unicode = new String(host.getBytes(charset), UTF_8);
+            if (unicode.contains("\ufffd")) { // contains non-utf8 junk
+                return host; // leave unmodified
             }
         }
+        try {
+            CanonicalizerMetrics.count(CanonicalizerMetrics.Counter.IDN_TO_ASCII);
+            String ascii = idn.toAscii(unicode);
+            return ascii.toLowerCase();
+        } catch (IllegalArgumentException e) {
+            return host; // leave unmodified
+        }
+    }
+
+    /**
+     * True if host[start:end] is made up of lowercase letters, digits, dots
+     * and single hyphens, which IDNA leaves as they are, so it needn't be
+     * run. Labels with "--", like punycode's "xn--", always go through IDNA.
+     */
+    static boolean isIdnNoOp(CharSequence host, int start, int end, Charset charset) {
+        if (charset != UTF_8 && charset != ISO_8859_1) {
+            return false; // the host's bytes in other charsets may not be ASCII
+        }
+        char prev = 0;
+        for (int i = start; i < end; i++) {
+            char c = host.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '-') || (c == '-' && prev == '-')) {
+                return false;
+            }
+            prev = c;
+        }
+        return true;
     }
 
     static void pctEncodeHost(ParsedUrl url, Charset charset) {
-        url.setHost(pctEncode(url.getHost(), HOST_ENCODE, charset));
+        if (!url.has(HOST, NON_ASCII | UNSAFE)) {
+            return;
+        }
+        url.setHost(pctEncode(url, url.getHost(), HOST_ENCODE, charset));
     }
 
     static void pctDecodeHost(ParsedUrl url, Charset charset) {
-        if (ParsedUrl.SPECIAL_SCHEMES.containsKey(url.getScheme())) {
-            url.setHost(pctDecode(url.getHost(), charset));
-        }
+        url.setHost(pctDecode(url.getHost(), charset));
     }
 
     static void pctEncodeUserinfo(ParsedUrl url, Charset charset) {
-        url.setUsername(pctEncode(url.getUsername(), USERINFO_ENCODE, charset));
-        url.setPassword(pctEncode(url.getPassword(), USERINFO_ENCODE, charset));
+        url.setUsername(pctEncode(url, url.getUsername(), USERINFO_ENCODE, charset));
+        url.setPassword(pctEncode(url, url.getPassword(), USERINFO_ENCODE, charset));
     }
 
     @Override
@@ -364,25 +580,54 @@ class WhatwgCanonicalizer implements Canonicalizer {
         canonicalize(url, UTF_8);
     }
 
+    /**
+     * Canonicalizes the url in a single pass with
+     * {@link FusedWhatwgCanonicalizer}, which gives the same result as
+     * running the steps. The steps run instead when metrics are enabled, so
+     * that each is measured, and for urls given unusual delimiters through
+     * the setters.
+     */
     public void canonicalize(ParsedUrl url, Charset charset) {
-        removeLeadingTrailingJunk(url);
-        removeTabsAndNewlines(url);
-        lowercaseScheme(url);
-        elideDefaultPort(url);
-        cleanUpUserinfo(url);
-        twoSlashes(url);
-        pctDecodeHost(url, charset);
-        normalizeIpAddress(url);
-        punycodeSpecialHost(url, charset);
-        pctEncodeHost(url, charset);
-        fixBackslashes(url);
-        pctEncodePath(url, charset);
-        elideDefaultPort(url);
-        leadingSlash(url);
-        normalizePathDots(url);
-        emptyPathToSlash(url);
-        pctEncodeUserinfo(url, charset);
-        pctEncodeQuery(url, charset);
-        pctEncodeFragment(url, charset);
+        if (CanonicalizerMetrics.enabled || url.hasUnusualDelimiters()) {
+            Step.run(STEPS, url, charset);
+        } else {
+            FusedWhatwgCanonicalizer.canonicalize(url, charset);
+        }
+    }
+
+    @Override
+    public void recanonicalize(ParsedUrl url) {
+        recanonicalize(url, UTF_8);
     }
+
+    public void recanonicalize(ParsedUrl url, Charset charset) {
+        Step.runIncremental(STEPS, url, charset);
+    }
+
+    @Override
+    public boolean isCanonical(CharSequence input) {
+        return CanonicalChecker.isCanonical(this, input, CanonicalChecker.WHATWG);
+    }
+
+    static final Step[] STEPS = {
+            step("removeLeadingTrailingJunk", components(LEADING_JUNK, TRAILING_JUNK), (url, charset) -> removeLeadingTrailingJunk(url)),
+            step("removeTabsAndNewlines", ALL_COMPONENTS, (url, charset) -> removeTabsAndNewlines(url)),
+            step("lowercaseScheme", components(SCHEME), (url, charset) -> lowercaseScheme(url)),
+            step("elideDefaultPort", components(SCHEME, COLON_BEFORE_PORT, PORT), (url, charset) -> elideDefaultPort(url)),
+            step("cleanUpUserinfo", components(USERNAME, COLON_BEFORE_PASSWORD, PASSWORD, AT_SIGN), (url, charset) -> cleanUpUserinfo(url)),
+            step("twoSlashes", components(SCHEME, SLASHES), (url, charset) -> twoSlashes(url)),
+            step("pctDecodeHost", components(SCHEME, HOST), url -> url.specialScheme() != null && url.has(HOST, PERCENT), WhatwgCanonicalizer::pctDecodeHost),
+            step("normalizeIpAddress", components(HOST), (url, charset) -> normalizeIpAddress(url)),
+            step("punycodeSpecialHost", components(SCHEME, HOST), WhatwgCanonicalizer::punycodeSpecialHost),
+            step("pctEncodeHost", components(HOST), WhatwgCanonicalizer::pctEncodeHost),
+            step("fixBackslashes", components(SCHEME, SLASHES, PATH), (url, charset) -> fixBackslashes(url)),
+            step("pctEncodePath", components(SCHEME, PATH), WhatwgCanonicalizer::pctEncodePath),
+            step("elideDefaultPort", components(SCHEME, COLON_BEFORE_PORT, PORT), (url, charset) -> elideDefaultPort(url)),
+            step("leadingSlash", components(SCHEME, PATH), (url, charset) -> leadingSlash(url)),
+            step("normalizePathDots", components(SCHEME, PATH), WhatwgCanonicalizer::hasPathDots, (url, charset) -> normalizePathDots(url)),
+            step("emptyPathToSlash", components(SCHEME, HOST, PATH), (url, charset) -> emptyPathToSlash(url)),
+            step("pctEncodeUserinfo", components(USERNAME, PASSWORD), WhatwgCanonicalizer::pctEncodeUserinfo),
+            step("pctEncodeQuery", components(QUERY), WhatwgCanonicalizer::pctEncodeQuery),
+            step("pctEncodeFragment", components(FRAGMENT), WhatwgCanonicalizer::pctEncodeFragment),
+    };
 }
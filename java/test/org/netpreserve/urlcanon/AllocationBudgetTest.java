@@ -0,0 +1,153 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+import org.netpreserve.urlcanon.UrlCorpusGenerator.Shape;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Fails if parsing or canonicalizing a class of urls allocates more bytes per
+ * url than its recorded budget. When an optimisation lowers allocation, lower
+ * the budget to match (with ~20% headroom) so it can't silently regress.
+ *
+ * Allocation is measured with the per-thread allocation counter of
+ * com.sun.management.ThreadMXBean after warming up the JIT, and the test is
+ * skipped on JVMs which don't provide it. The tightest budgets rely on C2's
+ * escape analysis, which varies with the JVM and the number of cores, so the
+ * test only runs when asked for with {@code mvn test -Pallocation-budgets}.
+ */
+@RunWith(Parameterized.class)
+public class AllocationBudgetTest {
+    private static final int WARMUP_URLS = 20_000;
+    private static final int MEASURED_URLS = 5_000;
+    private static final int DISTINCT_URLS = 500;
+
+    /*
+     * Budgets in bytes per url. Rows are url shapes, columns are:
+     * parse, WHATWG, SEMANTIC_PRECISE, SEMANTIC, AGGRESSIVE, then WHATWG and
+     * SEMANTIC_PRECISE through a CanonicalizationContext writing to a reused
+     * StringBuilder (each canonicalizer column includes the parse).
+     */
+    private static final Object[][] BUDGETS = {
+            {Shape.PLAIN, 350, 520, 950, 950, 1250, 50, 700},
+            {Shape.IDN_HOST, 300, 1000, 1200, 1200, 1250, 530, 950},
+            {Shape.IPV4_HOST, 300, 590, 850, 850, 850, 140, 600},
+            {Shape.IPV6_HOST, 300, 1900, 1900, 1900, 1900, 1400, 1650},
+            {Shape.SORTED_QUERY, 350, 1670, 16000, 16000, 25000, 50, 17500},
+            {Shape.UNSORTED_QUERY, 350, 1670, 16600, 16600, 25500, 50, 18000},
+            {Shape.SESSION_ID, 350, 590, 1100, 1100, 1900, 50, 820},
+            {Shape.DOT_SEGMENTS, 350, 930, 1450, 1450, 1650, 90, 860},
+            {Shape.MULTI_PCT_ENCODED, 400, 1100, 3950, 3950, 4200, 50, 3500},
+    };
+
+    private static final String[] OPERATIONS = {"parse", "WHATWG", "SEMANTIC_PRECISE", "SEMANTIC", "AGGRESSIVE",
+            "context WHATWG", "context SEMANTIC_PRECISE"};
+
+    private static com.sun.management.ThreadMXBean threadMXBean;
+
+    @Parameter(0)
+    public Shape shape;
+
+    @Parameter(1)
+    public String operation;
+
+    @Parameter(2)
+    public long budget;
+
+    @Parameters(name = "{index} {0} {1} <= {2}")
+    public static List<Object[]> budgets() {
+        List<Object[]> tests = new ArrayList<>();
+        for (Object[] row : BUDGETS) {
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                tests.add(new Object[]{row[0], OPERATIONS[i], ((Integer) row[i + 1]).longValue()});
+            }
+        }
+        return tests;
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threadMXBean = (com.sun.management.ThreadMXBean) bean;
+            if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+                threadMXBean = null;
+            } else if (!threadMXBean.isThreadAllocatedMemoryEnabled()) {
+                threadMXBean.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+    }
+
+    @Test
+    public void test() {
+        assumeTrue("enable with -Pallocation-budgets", Boolean.getBoolean("urlcanon.allocationBudgets"));
+        assumeTrue("thread allocation counter not available", threadMXBean != null);
+
+        String[] urls = UrlCorpusGenerator.only(shape, 0).generate(DISTINCT_URLS).toArray(new String[0]);
+        boolean useContext = operation.startsWith("context ");
+        Canonicalizer canonicalizer = canonicalizer(useContext ? operation.substring("context ".length()) : operation);
+        CanonicalizationContext context = useContext ? new CanonicalizationContext(canonicalizer) : null;
+
+        run(urls, canonicalizer, context, WARMUP_URLS);
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        run(urls, canonicalizer, context, MEASURED_URLS);
+        long after = threadMXBean.getThreadAllocatedBytes(threadId);
+
+        long bytesPerUrl = (after - before) / MEASURED_URLS;
+        assertTrue(operation + " of " + shape + " allocated " + bytesPerUrl + " bytes per url, budget is " + budget,
+                bytesPerUrl <= budget);
+    }
+
+    private static long sink;
+
+    private static final StringBuilder out = new StringBuilder();
+
+    private static void run(String[] urls, Canonicalizer canonicalizer, CanonicalizationContext context, int count) {
+        long hash = 0;
+        if (context != null) {
+            for (int i = 0; i < count; i++) {
+                out.setLength(0);
+                context.canonicalize(urls[i % urls.length], out);
+                hash += out.length();
+            }
+            sink += hash;
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            ParsedUrl url = ParsedUrl.parseUrl(urls[i % urls.length]);
+            if (canonicalizer != null) {
+                canonicalizer.canonicalize(url);
+            }
+            hash += url.getPath().length();
+        }
+        sink += hash;
+    }
+
+    private static Canonicalizer canonicalizer(String operation) {
+        switch (operation) {
+            case "parse":
+                return null;
+            case "WHATWG":
+                return Canonicalizer.WHATWG;
+            case "SEMANTIC_PRECISE":
+                return Canonicalizer.SEMANTIC_PRECISE;
+            case "SEMANTIC":
+                return Canonicalizer.SEMANTIC;
+            case "AGGRESSIVE":
+                return Canonicalizer.AGGRESSIVE;
+            default:
+                throw new IllegalArgumentException(operation);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryFormatTest {
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<ParsedUrl> urls = new ArrayList<>();
+        for (String input : ParserIdempotenceTest.loadData()) {
+            urls.add(ParsedUrl.parseUrl(input));
+        }
+        for (String input : UrlCorpusGenerator.realistic(0).generate(1000)) {
+            ParsedUrl url = ParsedUrl.parseUrl(input);
+            Canonicalizer.SEMANTIC_PRECISE.canonicalize(url);
+            urls.add(url);
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(stream);
+        for (ParsedUrl url : urls) {
+            url.writeTo(out);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        ByteBuffer heap = ByteBuffer.wrap(stream.toByteArray());
+        ByteBuffer direct = ByteBuffer.allocateDirect(stream.size());
+        direct.put(stream.toByteArray()).flip();
+        for (ParsedUrl url : urls) {
+            if (hasUnpairedSurrogate(url.toString())) {
+                // not representable in UTF-8
+                ParsedUrl.readFrom(in);
+                ParsedUrl.readFrom(heap);
+                ParsedUrl.readFrom(direct);
+                continue;
+            }
+            assertRoundTrips(url, ParsedUrl.readFrom(in));
+            assertRoundTrips(url, ParsedUrl.readFrom(heap));
+            assertRoundTrips(url, ParsedUrl.readFrom(direct));
+        }
+        assertEquals(-1, in.read());
+        assertFalse(heap.hasRemaining());
+        assertFalse(direct.hasRemaining());
+    }
+
+    @Test
+    public void testLayout() {
+        ParsedUrl url = ParsedUrl.parseUrl("http://example.com/a?b#c");
+        Canonicalizer.WHATWG.canonicalize(url);
+        byte[] bytes = url.toBytes();
+        // header, 11 lengths, then "http" "//" "example.com" "/a" "b" "c"
+        assertEquals(1 + 11 + 4 + 2 + 11 + 2 + 1 + 1, bytes.length);
+
+        ParsedUrl decoded = ParsedUrl.readFrom(ByteBuffer.wrap(bytes));
+        assertFalse("clean urls stay clean", decoded.isDirty());
+        assertEquals("/a", decoded.getPath());
+
+        decoded.setPath("/x/../y");
+        decoded = ParsedUrl.readFrom(ByteBuffer.wrap(decoded.toBytes()));
+        assertTrue(decoded.isDirty());
+        Canonicalizer.WHATWG.recanonicalize(decoded);
+        assertEquals("http://example.com/y?b#c", decoded.toString());
+    }
+
+    @Test
+    public void testUnusualDelimiters() {
+        ParsedUrl url = ParsedUrl.parseUrl("http://example.com/?q");
+        url.setQuestionMark("\t?");
+        ParsedUrl decoded = ParsedUrl.readFrom(ByteBuffer.wrap(url.toBytes()));
+        assertEquals("\t?", decoded.getQuestionMark());
+        assertRoundTrips(url, decoded);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testTruncatedBuffer() {
+        byte[] bytes = ParsedUrl.parseUrl("http://example.com/").toBytes();
+        ParsedUrl.readFrom(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedStream() throws IOException {
+        byte[] bytes = ParsedUrl.parseUrl("http://example.com/").toBytes();
+        ParsedUrl.readFrom(new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformed() {
+        ParsedUrl.readFrom(ByteBuffer.wrap(new byte[]{0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x7f}));
+    }
+
+    private static void assertRoundTrips(ParsedUrl expected, ParsedUrl actual) {
+        assertTrue(expected + " vs " + actual, expected.sameComponents(actual));
+        assertEquals(expected.isDirty(), actual.isDirty());
+    }
+
+    private static boolean hasUnpairedSurrogate(String s) {
+        return !s.equals(new String(s.getBytes(UTF_8), UTF_8));
+    }
+}
@@ -0,0 +1,86 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ByteParsingTest {
+    @Test
+    public void testSameAsStringParsing() throws Exception {
+        for (String input : ParserIdempotenceTest.loadData()) {
+            byte[] bytes = input.getBytes(UTF_8);
+            if (!new String(bytes, UTF_8).equals(input)) {
+                continue; // unpaired surrogate, not representable in UTF-8
+            }
+            assertSameComponents(ParsedUrl.parseUrl(input), ParsedUrl.parseUrl(bytes));
+            assertEquals(input, ParsedUrl.parseUrl(bytes).toString());
+        }
+        for (String input : UrlCorpusGenerator.realistic(0).generate(2000)) {
+            ParsedUrl expected = ParsedUrl.parseUrl(input);
+            ParsedUrl actual = ParsedUrl.parseUrl(input.getBytes(UTF_8));
+            assertSameComponents(expected, actual);
+            Canonicalizer.SEMANTIC.canonicalize(expected);
+            Canonicalizer.SEMANTIC.canonicalize(actual);
+            assertEquals(expected.toString(), actual.toString());
+            assertEquals(expected.surt(), actual.surt());
+        }
+    }
+
+    @Test
+    public void testSlices() {
+        byte[] line = "WARC-Target-URI: http://exämple.com/päth?q#f\r\n".getBytes(UTF_8);
+        int offset = "WARC-Target-URI: ".length();
+        int length = line.length - offset - 2;
+
+        ParsedUrl url = ParsedUrl.parseUrl(line, offset, length);
+        assertEquals("exämple.com", url.getHost());
+        assertEquals("/päth", url.getPath());
+        assertEquals("http://exämple.com/päth?q#f", url.toString());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(line.length);
+        direct.put(line).flip();
+        direct.position(offset).limit(offset + length);
+        url = ParsedUrl.parseUrl(direct);
+        assertEquals("http://exämple.com/päth?q#f", url.toString());
+        assertEquals(offset, direct.position());
+
+        // parsed bytes are copied so reusing the buffer doesn't affect the url
+        line[offset] = 'f';
+        url = ParsedUrl.parseUrl(ByteBuffer.wrap(line, offset, length));
+        line[offset + 1] = 'x';
+        assertEquals("fttp", url.getScheme());
+    }
+
+    @Test
+    public void testLatin1() {
+        byte[] bytes = {'h', 't', 't', 'p', ':', '/', '/', 'h', '/', (byte) 0xe9, (byte) 0xff};
+        ParsedUrl url = ParsedUrl.parseUrl(bytes, 0, bytes.length, ISO_8859_1);
+        assertEquals("/éÿ", url.getPath());
+        new WhatwgCanonicalizer().canonicalize(url, ISO_8859_1);
+        assertEquals("http://h/%E9%FF", url.toString());
+
+        url = ParsedUrl.parseUrl(bytes);
+        assertTrue(url.getPath().contains("�"));
+    }
+
+    @Test
+    public void testByteCharsIsOneCharPerByte() {
+        byte[] bytes = "/päth".getBytes(UTF_8);
+        ByteChars chars = new ByteChars(bytes, 0, bytes.length, UTF_8);
+        assertEquals(6, chars.length());
+        assertEquals(new String(bytes, ISO_8859_1), chars.toString());
+        CharSequence sub = chars.subSequence(1, 4);
+        assertEquals(3, sub.length());
+        assertEquals(chars.charAt(2), sub.charAt(1));
+        assertEquals("pä", chars.decode(1, 4));
+    }
+
+    private static void assertSameComponents(ParsedUrl expected, ParsedUrl actual) {
+        assertTrue(expected + " vs " + actual, expected.sameComponents(actual));
+    }
+}
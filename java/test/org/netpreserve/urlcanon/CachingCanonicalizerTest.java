@@ -0,0 +1,126 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingCanonicalizerTest {
+    @Test
+    public void testSameAsCanonicalizer() throws Exception {
+        List<String> inputs = new ArrayList<>(ParserIdempotenceTest.loadData());
+        inputs.addAll(UrlCorpusGenerator.realistic(6).generate(2000));
+        for (Canonicalizer canonicalizer : new Canonicalizer[]{Canonicalizer.WHATWG, Canonicalizer.AGGRESSIVE}) {
+            CachingCanonicalizer cache = new CachingCanonicalizer(canonicalizer, 100_000);
+            Random random = new Random(0);
+            for (int i = 0; i < 20_000; i++) {
+                String input = new String(inputs.get(random.nextInt(inputs.size())));
+                String expected = canonicalizer.canonicalize(input);
+                String canonical = cache.canonicalize(input);
+                assertEquals(input, expected, canonical);
+                if (expected == input) {
+                    assertSame(input, canonical);
+                    assertTrue(input, cache.isCanonical(input));
+                }
+                StringBuilder sb = new StringBuilder();
+                cache.canonicalize(input, sb);
+                assertEquals(input, expected, sb.toString());
+            }
+            CachingCanonicalizer.Stats stats = cache.stats();
+            assertTrue(stats.toString(), stats.getHits() > 0 && stats.getEvictions() > 0);
+            assertTrue(stats.toString(), stats.getBytes() <= stats.getMaxBytes());
+        }
+    }
+
+    /**
+     * Urls seen once don't flush the ones seen over and over.
+     */
+    @Test
+    public void testScanResistance() {
+        CachingCanonicalizer cache = new CachingCanonicalizer(Canonicalizer.SEMANTIC, 50_000);
+        List<String> hot = UrlCorpusGenerator.only(UrlCorpusGenerator.Shape.PLAIN, 7).generate(100);
+        List<String> once = UrlCorpusGenerator.realistic(8).generate(30_000);
+        // more urls come between two of the same hot one than fit in the cache
+        for (int i = 0; i < once.size(); i++) {
+            if (i % 3 == 0) {
+                cache.canonicalize(hot.get(i / 3 % hot.size()));
+            }
+            cache.canonicalize(once.get(i));
+        }
+        long hitsBefore = cache.stats().getHits();
+        for (String url : hot) {
+            cache.canonicalize(url);
+        }
+        CachingCanonicalizer.Stats stats = cache.stats();
+        assertTrue(stats.toString(), stats.getHits() - hitsBefore >= 95);
+        assertTrue(stats.toString(), stats.getRejections() > once.size() * 8 / 10);
+    }
+
+    @Test
+    public void testStats() {
+        CachingCanonicalizer cache = new CachingCanonicalizer(Canonicalizer.WHATWG, 10_000);
+        assertEquals("http://example.com/", cache.canonicalize("HTTP://example.com"));
+        assertEquals("http://example.com/", cache.canonicalize("HTTP://example.com"));
+        assertTrue(cache.isCanonical("http://example.com/"));
+        CachingCanonicalizer.Stats stats = cache.stats();
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(1, stats.getEntries());
+        assertEquals(1 / 3.0, stats.getHitRate(), 0);
+
+        // too big to cache at all
+        StringBuilder big = new StringBuilder("http://example.com/");
+        for (int i = 0; i < 20_000; i++) big.append('a');
+        assertEquals(big.toString(), cache.canonicalize(big.toString()));
+        assertEquals(1, cache.stats().getRejections());
+
+        cache.clear();
+        assertEquals(0, cache.stats().getEntries());
+        assertEquals(3, cache.stats().getMisses());
+
+        try {
+            new CachingCanonicalizer(Canonicalizer.WHATWG, -1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        CachingCanonicalizer cache = new CachingCanonicalizer(Canonicalizer.SEMANTIC_PRECISE, 200_000);
+        List<String> urls = UrlCorpusGenerator.realistic(9).generate(3000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int seed = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 20_000; i++) {
+                        // skewed towards the first urls
+                        String url = urls.get((int) (urls.size() * Math.pow(random.nextDouble(), 3)));
+                        assertEquals(url, Canonicalizer.SEMANTIC_PRECISE.canonicalize(url), cache.canonicalize(url));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        CachingCanonicalizer.Stats stats = cache.stats();
+        assertEquals(stats.toString(), 80_000, stats.getHits() + stats.getMisses());
+        assertTrue(stats.toString(), stats.getBytes() <= stats.getMaxBytes());
+        assertTrue(stats.toString(), stats.getHitRate() > 0.5);
+    }
+}
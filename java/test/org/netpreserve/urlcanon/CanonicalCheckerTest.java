@@ -0,0 +1,149 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.netpreserve.urlcanon.CanonicalChecker.AGGRESSIVE;
+import static org.netpreserve.urlcanon.CanonicalChecker.MAYBE;
+import static org.netpreserve.urlcanon.CanonicalChecker.NO;
+import static org.netpreserve.urlcanon.CanonicalChecker.SEMANTIC;
+import static org.netpreserve.urlcanon.CanonicalChecker.SEMANTIC_PRECISE;
+import static org.netpreserve.urlcanon.CanonicalChecker.WHATWG;
+import static org.netpreserve.urlcanon.CanonicalChecker.YES;
+
+public class CanonicalCheckerTest {
+    private static final Canonicalizer[] CANONICALIZERS = {
+            Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE,
+    };
+
+    /**
+     * The scan agrees with canonicalizing and comparing, for the inputs and
+     * for their canonical forms, and decides most of the canonical ones.
+     */
+    @Test
+    public void testSameAsCanonicalizing() throws Exception {
+        List<String> inputs = new ArrayList<>(ParserIdempotenceTest.loadData());
+        inputs.addAll(UrlCorpusGenerator.realistic(5).generate(3000));
+        for (int level = WHATWG; level <= AGGRESSIVE; level++) {
+            Canonicalizer canonicalizer = CANONICALIZERS[level];
+            List<String> urls = new ArrayList<>(inputs);
+            for (String input : inputs) {
+                urls.add(canonicalizer.canonicalize(input));
+            }
+            int canonical = 0;
+            int decided = 0;
+            for (String url : urls) {
+                boolean expected = canonicalizer.canonicalize(url).equals(url);
+                int verdict = CanonicalChecker.check(url, level);
+                if (verdict != MAYBE) {
+                    assertEquals(canonicalizer + " " + url, expected ? YES : NO, verdict);
+                }
+                assertEquals(canonicalizer + " " + url, expected, canonicalizer.isCanonical(url));
+                assertEquals(canonicalizer + " " + url, expected, canonicalizer.isCanonical(new StringBuilder(url)));
+                if (expected) {
+                    canonical++;
+                    if (verdict == YES) decided++;
+                }
+            }
+            assertTrue(canonicalizer + " decided " + decided + " of " + canonical, decided > canonical / 2);
+        }
+    }
+
+    @Test
+    public void testVerdicts() {
+        assertEquals(YES, CanonicalChecker.check("http://example.com/", WHATWG));
+        assertEquals(YES, CanonicalChecker.check("https://example.com:8443/a/b.html?b=1&a=2#top", WHATWG));
+        assertEquals(YES, CanonicalChecker.check("http://1.2.3.4/a//b?x=%2", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("HTTP://example.com/", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://example.com", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://example.com:80/", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://example.com:4294967376/", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a/%2E%2e/b", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a b", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/é", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://0x7f.1/", WHATWG));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/ ", WHATWG));
+        assertEquals(MAYBE, CanonicalChecker.check("http://user@example.com/", WHATWG));
+        assertEquals(MAYBE, CanonicalChecker.check("http://[::1]/", WHATWG));
+        assertEquals(MAYBE, CanonicalChecker.check("http://Example.com/", WHATWG));
+        assertEquals(MAYBE, CanonicalChecker.check("mailto:user@example.com", WHATWG));
+
+        assertEquals(YES, CanonicalChecker.check("http://example.com/a?a=1&b=2#top", SEMANTIC_PRECISE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a?b=2&a=1", SEMANTIC_PRECISE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a?a=1=2", SEMANTIC_PRECISE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com//a", SEMANTIC_PRECISE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com./", SEMANTIC_PRECISE));
+        assertEquals(NO, CanonicalChecker.check("http://user@example.com/", SEMANTIC_PRECISE));
+        assertEquals(YES, CanonicalChecker.check("http://example.com/%E4%B8%AD?q=%25%C3%A9%3D#%20", SEMANTIC_PRECISE));
+        assertEquals(MAYBE, CanonicalChecker.check("http://example.com/%41", SEMANTIC_PRECISE));
+        assertEquals(MAYBE, CanonicalChecker.check("http://example.com/%e4%b8%ad", SEMANTIC_PRECISE));
+        assertEquals(MAYBE, CanonicalChecker.check("http://example.com/?q=%2541", SEMANTIC_PRECISE));
+        assertEquals(MAYBE, CanonicalChecker.check("http://example.com/%C3", SEMANTIC_PRECISE));
+        assertEquals(MAYBE, CanonicalChecker.check("http://example.com/%E0%80%80", SEMANTIC_PRECISE));
+
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a#top", SEMANTIC));
+        assertEquals(YES, CanonicalChecker.check("http://example.com/a?a", SEMANTIC));
+
+        assertEquals(YES, CanonicalChecker.check("http://example.com/a?a=1&b=2", AGGRESSIVE));
+        assertEquals(YES, CanonicalChecker.check("http://example.com/%e4%b8%ad?id=1", AGGRESSIVE));
+        assertEquals(NO, CanonicalChecker.check("https://example.com/", AGGRESSIVE));
+        assertEquals(NO, CanonicalChecker.check("http://www2.example.com/", AGGRESSIVE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/A", AGGRESSIVE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a/", AGGRESSIVE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a?", AGGRESSIVE));
+        assertEquals(NO, CanonicalChecker.check("http://example.com/a?a&&b", AGGRESSIVE));
+        assertEquals(MAYBE, CanonicalChecker.check("http://example.com/a?sid=0123456789abcdef0", AGGRESSIVE));
+    }
+
+    /**
+     * A subclass might canonicalize differently, so it isn't given the scan.
+     */
+    @Test
+    public void testSubclass() {
+        Canonicalizer canonicalizer = new WhatwgCanonicalizer() {
+            @Override
+            public void canonicalize(ParsedUrl url) {
+                super.canonicalize(url);
+                url.setPath(url.getPath().toUpperCase());
+            }
+        };
+        assertFalse(canonicalizer.isCanonical("http://example.com/a"));
+        assertTrue(canonicalizer.isCanonical("http://example.com/A"));
+    }
+
+    /**
+     * The urls the scan decides cost nothing.
+     */
+    @Test
+    public void testNoAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        String[] urls = UrlCorpusGenerator.only(UrlCorpusGenerator.Shape.PLAIN, 0).generate(100).stream()
+                .map(Canonicalizer.SEMANTIC::canonicalize)
+                .filter(url -> CanonicalChecker.check(url, SEMANTIC) == YES)
+                .toArray(String[]::new);
+        int checked = 0;
+        for (int i = 0; i < 20_000; i++) {
+            if (Canonicalizer.SEMANTIC.isCanonical(urls[i % urls.length])) checked++;
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            if (Canonicalizer.SEMANTIC.isCanonical(urls[i % urls.length])) checked++;
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(30_000, checked);
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
@@ -0,0 +1,89 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CanonicalizationContextTest {
+    private static final Canonicalizer[] CANONICALIZERS = {
+            Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE,
+    };
+
+    @Test
+    public void testSameAsCanonicalize() throws Exception {
+        List<String> inputs = new ArrayList<>(ParserIdempotenceTest.loadData());
+        inputs.addAll(UrlCorpusGenerator.realistic(0).generate(2000));
+        StringBuilder out = new StringBuilder();
+        for (Canonicalizer canonicalizer : CANONICALIZERS) {
+            CanonicalizationContext context = new CanonicalizationContext(canonicalizer);
+            for (String input : inputs) {
+                ParsedUrl expected = ParsedUrl.parseUrl(input);
+                canonicalizer.canonicalize(expected);
+
+                assertEquals(input, expected.toString(), context.canonicalize(input).toString());
+                assertEquals(input, expected.surt(), context.canonicalize(new StringBuilder(input)).surt());
+                out.setLength(0);
+                context.canonicalize(input, out);
+                assertEquals(input, expected.toString(), out.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testCopiesSurviveReuse() {
+        CanonicalizationContext context = new CanonicalizationContext(Canonicalizer.WHATWG);
+        StringBuilder input = new StringBuilder("http://example.com/a?b#c");
+        ParsedUrl copy = new ParsedUrl(context.canonicalize(input));
+        input.setLength(0);
+        input.append("ftp://other.org/?q#f");
+        assertEquals("ftp://other.org/?q#f", context.canonicalize(input).toString());
+        assertEquals("http://example.com/a?b#c", copy.toString());
+
+        // unusual delimiters and dirty state don't leak between urls
+        ParsedUrl url = context.canonicalize("http://example.com/?q");
+        url.setQuestionMark("\t?");
+        assertEquals("http://example.com/x", context.canonicalize("http://example.com/x").toString());
+    }
+
+    @Test
+    public void testStringEntryPoints() throws Exception {
+        List<String> inputs = new ArrayList<>(ParserIdempotenceTest.loadData());
+        inputs.addAll(UrlCorpusGenerator.realistic(1).generate(2000));
+        StringBuilder out = new StringBuilder("prefix ");
+        for (Canonicalizer canonicalizer : CANONICALIZERS) {
+            for (String input : inputs) {
+                ParsedUrl expected = ParsedUrl.parseUrl(input);
+                canonicalizer.canonicalize(expected);
+                String canonical = canonicalizer.canonicalize(input);
+                assertEquals(input, expected.toString(), canonical);
+
+                out.setLength(7);
+                canonicalizer.canonicalize(new StringBuilder(input), out);
+                assertEquals(input, "prefix " + expected, out.toString());
+                StringWriter writer = new StringWriter();
+                canonicalizer.canonicalize(input, (Appendable) writer);
+                assertEquals(input, expected.toString(), writer.toString());
+
+                // canonical input comes back as is
+                if (canonicalizer.canonicalize(canonical).equals(canonical)) {
+                    assertSame(input, canonical, canonicalizer.canonicalize(canonical));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNestedStringCanonicalization() {
+        // a canonicalizer that canonicalizes strings itself gets its own context
+        Canonicalizer nested = url -> {
+            url.setQuery(Canonicalizer.WHATWG.canonicalize("HTTP://Example.com/x/../" + url.getQuery()));
+            Canonicalizer.WHATWG.canonicalize(url);
+        };
+        assertEquals("http://a/?http://example.com/q", nested.canonicalize("http://a/?q"));
+    }
+}
@@ -0,0 +1,136 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CanonicalizerBuilderTest {
+    private static final Canonicalizer[] CANONICALIZERS = {
+            Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE,
+    };
+
+    @Test
+    public void testSameAsBuiltIns() throws Exception {
+        List<String> inputs = inputs();
+        for (Canonicalizer builtIn : CANONICALIZERS) {
+            Canonicalizer custom = new CanonicalizerBuilder(builtIn).build();
+            Canonicalizer copy = new CanonicalizerBuilder(custom).build();
+            for (String input : inputs) {
+                ParsedUrl expected = ParsedUrl.parseUrl(input);
+                builtIn.canonicalize(expected);
+                for (Canonicalizer canonicalizer : new Canonicalizer[]{custom, copy}) {
+                    ParsedUrl url = ParsedUrl.parseUrl(input);
+                    canonicalizer.canonicalize(url);
+                    assertTrue(input, expected.sameComponents(url));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiled pipelines, with their passes merged, do what running their
+     * steps one by one does.
+     */
+    @Test
+    public void testRandomPipelinesSameAsSteps() throws Exception {
+        List<String> inputs = inputs().subList(0, 1000);
+        List<String> available = CanonicalizerBuilder.availableSteps();
+        Random random = new Random(0);
+        for (int n = 0; n < 50; n++) {
+            CanonicalizerBuilder builder = new CanonicalizerBuilder(CANONICALIZERS[random.nextInt(4)]);
+            if (random.nextBoolean()) {
+                builder = new CanonicalizerBuilder();
+            }
+            for (int i = random.nextInt(12); i > 0; i--) {
+                builder.add(available.get(random.nextInt(available.size())));
+            }
+            Step[] steps = new Step[builder.steps().size()];
+            for (int i = 0; i < steps.length; i++) {
+                steps[i] = find(builder.steps().get(i));
+            }
+            Canonicalizer canonicalizer = builder.build();
+            for (String input : inputs) {
+                ParsedUrl expected = ParsedUrl.parseUrl(input);
+                ParsedUrl url = ParsedUrl.parseUrl(input);
+                String expectedError = null;
+                try {
+                    for (Step step : steps) {
+                        step.apply(expected, UTF_8);
+                    }
+                } catch (RuntimeException e) {
+                    expectedError = e.toString();
+                }
+                try {
+                    canonicalizer.canonicalize(url);
+                } catch (RuntimeException e) {
+                    assertEquals(builder.steps() + " " + input, expectedError, e.toString());
+                    continue;
+                }
+                assertEquals(builder.steps() + " " + input, null, expectedError);
+                assertEquals(builder.steps() + " " + input, expected.toString(), url.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testCompiled() {
+        assertEquals("fusedWhatwg, removeFragment", new CanonicalizerBuilder(Canonicalizer.WHATWG)
+                .add("removeFragment").build().toString().replaceAll("Canonicalizer\\[(.*)]", "$1"));
+        String aggressive = new CanonicalizerBuilder(Canonicalizer.AGGRESSIVE).build().toString();
+        assertTrue(aggressive, aggressive.contains(
+                "alphaReorderQuery+lowercaseQuery+stripSessionIdsFromQuery+removeRedundantAmpersandsFromQuery, "));
+        assertTrue(aggressive, aggressive.contains(
+                "lowercasePath+stripSessionIdsFromPath+stripTrailingSlashUnlessEmpty"));
+
+        // the WHATWG steps aren't fused unless they're all there
+        String partial = new CanonicalizerBuilder(Canonicalizer.WHATWG).remove("pctEncodeFragment").build().toString();
+        assertTrue(partial, partial.startsWith("Canonicalizer[removeLeadingTrailingJunk, "));
+    }
+
+    @Test
+    public void testCustom() {
+        Canonicalizer canonicalizer = new CanonicalizerBuilder(Canonicalizer.SEMANTIC)
+                .remove("alphaReorderQuery")
+                .add("stripWww", "lowercasePath")
+                .build();
+        ParsedUrl url = ParsedUrl.parseUrl("HTTP://www.Example.com/A/./B?z=1&a=2#frag");
+        canonicalizer.canonicalize(url);
+        assertEquals("http://example.com/a/b?z=1&a=2", url.toString());
+        assertEquals("http://example.com/", canonicalizer.canonicalize("http://WWW.example.com"));
+
+        try {
+            new CanonicalizerBuilder().add("noSuchStep");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("unknown step: noSuchStep", e.getMessage());
+        }
+        try {
+            new CanonicalizerBuilder(url2 -> { });
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static Step find(String name) {
+        for (Step[] steps : new Step[][]{WhatwgCanonicalizer.STEPS, SemanticPreciseCanonicalizer.STEPS,
+                SemanticCanonicalizer.Steps.ALL, AggressiveCanonicalizer.Steps.ALL}) {
+            for (Step step : steps) {
+                if (step.name.equals(name)) return step;
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+    private static List<String> inputs() throws Exception {
+        List<String> inputs = new ArrayList<>(UrlCorpusGenerator.realistic(3).generate(2000));
+        inputs.addAll(ParserIdempotenceTest.loadData());
+        return inputs;
+    }
+}
@@ -0,0 +1,112 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.After;
+import org.junit.Test;
+import org.netpreserve.urlcanon.CanonicalizerMetrics.Counter;
+import org.netpreserve.urlcanon.CanonicalizerMetrics.Snapshot;
+import org.netpreserve.urlcanon.CanonicalizerMetrics.StepStats;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CanonicalizerMetricsTest {
+    @After
+    public void tearDown() {
+        CanonicalizerMetrics.disable();
+        CanonicalizerMetrics.reset();
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertEquals(false, CanonicalizerMetrics.isEnabled());
+        CanonicalizerMetrics.reset();
+        Canonicalizer.WHATWG.canonicalize(ParsedUrl.parseUrl("http://example.com/a/../b"));
+        assertEquals(0, CanonicalizerMetrics.snapshot().getCount(Counter.PATH_DOTS_REGEX));
+    }
+
+    @Test
+    public void testStepsAndCounters() {
+        CanonicalizerMetrics.reset();
+        CanonicalizerMetrics.enable();
+
+        ParsedUrl url = ParsedUrl.parseUrl("HTTP://bücher.example/a/../%2541");
+        Canonicalizer.SEMANTIC_PRECISE.canonicalize(url);
+        assertEquals("http://xn--bcher-kva.example/A", url.toString());
+
+        Snapshot snapshot = CanonicalizerMetrics.snapshot();
+        StepStats lowercaseScheme = snapshot.getStep("lowercaseScheme");
+        assertEquals(1, lowercaseScheme.getInvocations());
+        assertEquals(1, lowercaseScheme.getChanges());
+        StepStats removeUserinfo = snapshot.getStep("removeUserinfo");
+        assertEquals(1, removeUserinfo.getInvocations());
+        assertEquals(0, removeUserinfo.getChanges());
+        assertEquals(1, snapshot.getCount(Counter.IDN_TO_ASCII));
+        assertEquals(1, snapshot.getCount(Counter.PATH_DOTS_REGEX));
+        assertTrue(snapshot.getCount(Counter.PCT_DECODE_ITERATION) >= 3);
+        assertTrue(snapshot.toString().contains("pctDecodeRepeatedlyExceptQuery"));
+    }
+
+    @Test
+    public void testInstrumentedMatchesUninstrumented() {
+        Canonicalizer[] canonicalizers = {Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE,
+                Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE};
+        List<String> inputs = UrlCorpusGenerator.realistic(0).generate(2000);
+        for (Canonicalizer canonicalizer : canonicalizers) {
+            for (String input : inputs) {
+                CanonicalizerMetrics.disable();
+                ParsedUrl expected = ParsedUrl.parseUrl(input);
+                canonicalizer.canonicalize(expected);
+                CanonicalizerMetrics.enable();
+                ParsedUrl actual = ParsedUrl.parseUrl(input);
+                canonicalizer.canonicalize(actual);
+                assertEquals(expected.toString(), actual.toString());
+            }
+        }
+        // once each by SEMANTIC_PRECISE and SEMANTIC, twice by AGGRESSIVE
+        assertEquals(inputs.size() * 4, CanonicalizerMetrics.snapshot().getStep("alphaReorderQuery").getInvocations());
+    }
+
+    @Test
+    public void testDeadThreadsAreFolded() throws InterruptedException {
+        CanonicalizerMetrics.reset();
+        CanonicalizerMetrics.enable();
+        int tracked = CanonicalizerMetrics.trackedThreads();
+        for (int i = 0; i < 10; i++) {
+            Thread thread = new Thread(() -> Canonicalizer.SEMANTIC.canonicalize("HTTP://Example.com/a/../b"));
+            thread.start();
+            thread.join();
+        }
+        assertEquals(tracked, CanonicalizerMetrics.trackedThreads());
+        StepStats lowercaseScheme = CanonicalizerMetrics.snapshot().getStep("lowercaseScheme");
+        assertEquals(10, lowercaseScheme.getInvocations());
+        assertEquals(10, lowercaseScheme.getChanges());
+
+        CanonicalizerMetrics.reset();
+        assertEquals(0, CanonicalizerMetrics.snapshot().getStep("lowercaseScheme").getInvocations());
+    }
+
+    @Test
+    public void testResetWhileOtherThreadIsAlive() throws Exception {
+        CanonicalizerMetrics.reset();
+        CanonicalizerMetrics.enable();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Runnable canonicalize = () -> Canonicalizer.SEMANTIC.canonicalize("HTTP://Example.com/");
+            executor.submit(canonicalize).get();
+            assertEquals(1, CanonicalizerMetrics.snapshot().getStep("lowercaseScheme").getInvocations());
+            CanonicalizerMetrics.reset();
+            assertEquals(0, CanonicalizerMetrics.snapshot().getStep("lowercaseScheme").getInvocations());
+            executor.submit(canonicalize).get();
+            assertEquals(1, CanonicalizerMetrics.snapshot().getStep("lowercaseScheme").getInvocations());
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(1, CanonicalizerMetrics.snapshot().getStep("lowercaseScheme").getInvocations());
+    }
+}
@@ -0,0 +1,49 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class CharSequenceParsingTest {
+    @Test
+    public void testWindows() {
+        String text = "<a href=\" HTTP://Example.com/a/./b%41?q#f \">";
+        int start = text.indexOf('"') + 1;
+        int end = text.lastIndexOf('"');
+        String expected = "http://example.com/a/bA?q";
+
+        for (CharSequence input : new CharSequence[]{text, new StringBuilder(text), CharBuffer.wrap(text)}) {
+            ParsedUrl url = ParsedUrl.parseUrl(input, start, end);
+            assertEquals(" HTTP://Example.com/a/./b%41?q#f ", url.toString());
+            assertEquals("Example.com", url.getHost());
+            assertEquals(expected, Canonicalizer.SEMANTIC.canonicalize(input, start, end).toString());
+        }
+    }
+
+    @Test
+    public void testBufferReuse() {
+        StringBuilder buffer = new StringBuilder("http://example.com/one");
+        ParsedUrl url = ParsedUrl.parseUrl(buffer, 0, buffer.length());
+        buffer.setLength(0);
+        buffer.append("http://example.org/two");
+        assertEquals("http://example.com/one", url.toString());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBadWindow() {
+        ParsedUrl.parseUrl("http://example.com/", 5, 50);
+    }
+
+    @Test
+    public void testHelpers() {
+        CharSequence s = new StringBuilder("[a\tb%41%zzé]");
+        assertEquals("ab%41%zzé", WhatwgCanonicalizer.removeTabsAndNewlines(s, 1, s.length() - 1));
+        assertEquals("a\tbA%zzé", WhatwgCanonicalizer.pctDecode(s, 1, s.length() - 1, UTF_8));
+        assertEquals("a%09b%41%zz%C3%A9", WhatwgCanonicalizer.pctEncode(s, 1, s.length() - 1,
+                WhatwgCanonicalizer.buildEncodeSet("[\\x00-\\x20\\x7f-\\xff]"), UTF_8));
+        assertEquals("b%4", WhatwgCanonicalizer.pctDecode(s, 3, 6, UTF_8));
+    }
+}
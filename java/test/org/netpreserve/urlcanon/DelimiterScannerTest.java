@@ -0,0 +1,56 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+
+public class DelimiterScannerTest {
+    private static final char[] ALPHABET = {'a', '#', '?', '/', '\\', ':', '@', 'é', '\u0080', 'ÿ', '"', '\u0123'};
+
+    @Test
+    public void testMatchesNaiveScan() {
+        Random random = new Random(0);
+        for (int n = 0; n < 2000; n++) {
+            int length = random.nextInt(200);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                // mostly filler so that matches land at every offset within a word
+                sb.append(random.nextInt(20) == 0 ? ALPHABET[random.nextInt(ALPHABET.length)] : 'x');
+            }
+            String string = sb.toString();
+            int from = length == 0 ? 0 : random.nextInt(length);
+            int to = from + random.nextInt(length - from + 1);
+            CharSequence[] inputs = {string, sb, new ByteChars(string.getBytes(ISO_8859_1), 0, length, ISO_8859_1)};
+            for (CharSequence input : inputs) {
+                // not representable as bytes
+                if (input instanceof ByteChars && string.indexOf('\u0123') != -1) {
+                    continue;
+                }
+                assertEquals(naiveIndexOf(string, '#', '#', from, to), DelimiterScanner.indexOf(input, '#', from, to));
+                assertEquals(naiveIndexOf(string, '#', '?', from, to),
+                        DelimiterScanner.indexOfEither(input, '#', '?', from, to));
+                assertEquals(naiveIndexOf(string, '/', '\\', from, to),
+                        DelimiterScanner.indexOfEither(input, '/', '\\', from, to));
+                assertEquals(naiveIndexOfAny(string, WhatwgCanonicalizer.PATH_ENCODE, from, to),
+                        DelimiterScanner.indexOfAny(input, WhatwgCanonicalizer.PATH_ENCODE, from, to));
+            }
+        }
+    }
+
+    private static int naiveIndexOf(String s, char a, char b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == a || s.charAt(i) == b) return i;
+        }
+        return to;
+    }
+
+    private static int naiveIndexOfAny(String s, boolean[] set, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) > 0xff || set[s.charAt(i)]) return i;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,106 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FusedWhatwgCanonicalizerTest {
+    @Test
+    public void testSameAsSteps() throws Exception {
+        for (String input : inputs()) {
+            assertSameAsSteps(input, ParsedUrl.parseUrl(input), ParsedUrl.parseUrl(input), UTF_8);
+            byte[] bytes = input.getBytes(UTF_8);
+            assertSameAsSteps(input, ParsedUrl.parseUrl(bytes), ParsedUrl.parseUrl(bytes), UTF_8);
+            bytes = input.getBytes(ISO_8859_1);
+            assertSameAsSteps(input, ParsedUrl.parseUrl(bytes, 0, bytes.length, ISO_8859_1),
+                    ParsedUrl.parseUrl(bytes, 0, bytes.length, ISO_8859_1), ISO_8859_1);
+        }
+    }
+
+    @Test
+    public void testRecanonicalizeContextUrl() throws Exception {
+        CanonicalizationContext context = new CanonicalizationContext(Canonicalizer.WHATWG);
+        for (String input : inputs()) {
+            ParsedUrl expected = ParsedUrl.parseUrl(input);
+            Step.run(WhatwgCanonicalizer.STEPS, expected, UTF_8);
+            Step.run(WhatwgCanonicalizer.STEPS, expected, UTF_8);
+
+            // the url is read from the fused canonicalizer's own buffer this time
+            ParsedUrl url = context.canonicalize(input);
+            Canonicalizer.WHATWG.canonicalize(url);
+            assertTrue(input, expected.sameComponents(url));
+        }
+    }
+
+    @Test
+    public void testIdnNoOp() throws Exception {
+        List<Idn> idns = Arrays.asList(Idn.load(), new IdnJava());
+        List<String> hosts = new ArrayList<>(Arrays.asList("", ".", "a..b", "-a-.b-", "a.b.", "1.2.3.4",
+                "x-y.example", "xn--bcher-kva.example", "a--b.example", "EXAMPLE.com",
+                "label-that-is-longer-than-sixty-three-characters-which-is-the-limit-for-dns.example"));
+        for (String input : inputs()) {
+            hosts.add(ParsedUrl.parseUrl(input).getHost());
+        }
+        for (String host : hosts) {
+            if (!WhatwgCanonicalizer.isIdnNoOp(host, 0, host.length(), UTF_8)) {
+                continue;
+            }
+            for (Idn idn : idns) {
+                String ascii;
+                try {
+                    ascii = idn.toAscii(host).toLowerCase();
+                } catch (IllegalArgumentException e) {
+                    ascii = host; // left unmodified
+                }
+                assertEquals(idn.getClass().getSimpleName(), host, ascii);
+            }
+        }
+        assertFalse(WhatwgCanonicalizer.isIdnNoOp("xn--bcher-kva.example", 0, 21, UTF_8));
+        assertFalse(WhatwgCanonicalizer.isIdnNoOp("Example.com", 0, 11, UTF_8));
+    }
+
+    @Test
+    public void testPortTruncatedToInt() {
+        // 4294967376 is 80 when truncated to an int, as the Java port has always compared it
+        String input = "http://~file:4294967376/";
+        ParsedUrl steps = ParsedUrl.parseUrl(input);
+        Step.run(WhatwgCanonicalizer.STEPS, steps, UTF_8);
+        assertEquals("http://~file/", steps.toString());
+        assertSameAsSteps(input, ParsedUrl.parseUrl(input), ParsedUrl.parseUrl(input), UTF_8);
+    }
+
+    private static List<String> inputs() throws Exception {
+        List<String> inputs = new ArrayList<>(ParserIdempotenceTest.loadData());
+        inputs.addAll(UrlCorpusGenerator.realistic(0).generate(5000));
+        return inputs;
+    }
+
+    private static void assertSameAsSteps(String input, ParsedUrl expected, ParsedUrl actual, Charset charset) {
+        RuntimeException expectedError = null;
+        try {
+            Step.run(WhatwgCanonicalizer.STEPS, expected, charset);
+        } catch (RuntimeException e) {
+            expectedError = e;
+        }
+        try {
+            FusedWhatwgCanonicalizer.canonicalize(actual, charset);
+        } catch (RuntimeException e) {
+            assertEquals(input, String.valueOf(expectedError), String.valueOf(e));
+            return;
+        }
+        assertEquals(input, null, expectedError);
+        assertEquals(input, expected.toString(), actual.toString());
+        assertTrue(input, expected.sameComponents(actual));
+        assertEquals(input, expected.surt(), actual.surt());
+        assertFalse(input, actual.isDirty());
+    }
+}
@@ -0,0 +1,31 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.Assert.assertEquals;
+
+public class InitializationOrderTest {
+    /**
+     * Each canonicalizer class can be the first one used, whichever order the
+     * classes end up being initialized in.
+     */
+    @Test
+    public void testAnyCanonicalizerFirst() throws Exception {
+        String[] classes = {"WhatwgCanonicalizer", "SemanticPreciseCanonicalizer",
+                "SemanticCanonicalizer", "AggressiveCanonicalizer"};
+        URL classpath = Canonicalizer.class.getProtectionDomain().getCodeSource().getLocation();
+        for (String name : classes) {
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{classpath}, null)) {
+                Class<?> parsedUrl = loader.loadClass("org.netpreserve.urlcanon.ParsedUrl");
+                Object canonicalizer = loader.loadClass("org.netpreserve.urlcanon." + name)
+                        .getConstructor().newInstance();
+                Object url = parsedUrl.getMethod("parseUrl", String.class).invoke(null, "HTTP://Example.com/a/../b");
+                canonicalizer.getClass().getMethod("canonicalize", parsedUrl).invoke(canonicalizer, url);
+                assertEquals(name, "http://example.com/b", url.toString());
+            }
+        }
+    }
+}
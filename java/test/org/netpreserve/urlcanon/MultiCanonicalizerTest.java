@@ -0,0 +1,66 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MultiCanonicalizerTest {
+    @Test
+    public void testSameAsSeparately() throws Exception {
+        List<String> inputs = new ArrayList<>(ParserIdempotenceTest.loadData());
+        inputs.addAll(UrlCorpusGenerator.realistic(4).generate(2000));
+        Canonicalizer custom = new CanonicalizerBuilder(Canonicalizer.WHATWG).add("removeFragment", "stripWww").build();
+        Canonicalizer[][] combinations = {
+                {Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE},
+                {Canonicalizer.AGGRESSIVE, Canonicalizer.SEMANTIC, Canonicalizer.WHATWG},
+                {Canonicalizer.SEMANTIC, Canonicalizer.SEMANTIC, custom, Canonicalizer.WHATWG},
+                {Canonicalizer.AGGRESSIVE},
+                {},
+        };
+        for (Canonicalizer[] canonicalizers : combinations) {
+            MultiCanonicalizer multi = new MultiCanonicalizer(canonicalizers);
+            for (String input : inputs) {
+                ParsedUrl[] urls = multi.canonicalize(input);
+                assertEquals(canonicalizers.length, urls.length);
+                for (int i = 0; i < canonicalizers.length; i++) {
+                    ParsedUrl expected = ParsedUrl.parseUrl(input);
+                    canonicalizers[i].canonicalize(expected);
+                    assertTrue(multi + input, expected.sameComponents(urls[i]));
+                    assertEquals(input, expected.toString(), urls[i].toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSharedSteps() {
+        MultiCanonicalizer multi = new MultiCanonicalizer(
+                Canonicalizer.WHATWG, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE);
+        String[] lines = multi.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("parse", lines[0]);
+        assertEquals("  fusedWhatwg => 0", lines[1]);
+        assertTrue(lines[2], lines[2].startsWith("  removeLeadingTrailingJunk, defaultSchemeHttp, "));
+        assertTrue(lines[2], lines[2].endsWith(", removeFragment => 1"));
+        assertTrue(lines[3], lines[3].startsWith("    httpsToHttp, stripWww, "));
+        assertTrue(lines[3], lines[3].endsWith(" => 2"));
+
+        // each semantic-precise step runs once for both semantic and aggressive
+        CanonicalizerMetrics.reset();
+        CanonicalizerMetrics.enable();
+        try {
+            String[] forms = multi.canonicalizeToStrings("HTTPS://www.Example.com/A/./B?z=1&a=2#frag");
+            assertEquals("https://www.example.com/A/B?z=1&a=2#frag", forms[0]);
+            assertEquals("https://www.example.com/A/B?a=2&z=1", forms[1]);
+            assertEquals("http://example.com/a/b?a=2&z=1", forms[2]);
+        } finally {
+            CanonicalizerMetrics.disable();
+        }
+        assertEquals(1, CanonicalizerMetrics.snapshot().getStep("defaultSchemeHttp").getInvocations());
+        assertEquals(2, CanonicalizerMetrics.snapshot().getStep("lowercaseScheme").getInvocations());
+    }
+}
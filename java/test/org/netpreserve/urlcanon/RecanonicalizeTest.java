@@ -0,0 +1,125 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecanonicalizeTest {
+    private static final Canonicalizer[] CANONICALIZERS = {
+            Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE,
+    };
+
+    private static final String[] PATHS = {"", "/", "/a/../b", "/A//B/./c", "\\x\\y", "/sess/jsessionid=0123456789abcdef0123456789abcdef/x", "/é %2e/"};
+    private static final String[] QUERIES = {"", "b=2&a=1", "&&x=Y&&", "q=a b", "PHPSESSID=0123456789abcdef0123456789abcdef&z", "é=%41"};
+    private static final String[] HOSTS = {"example.com", "WWW.Example.COM", "%65xample.org", "0x7f.1", "[::1]", "bücher.de", "a..b."};
+    private static final String[] FRAGMENTS = {"", "frag", "f r%61g"};
+    private static final String[] PORTS = {"", "80", "443", "8080"};
+    private static final String[] SCHEMES = {"http", "https", "HTTP", "ftp", "foo"};
+
+    @Test
+    public void testSameAsFullCanonicalization() {
+        Random random = new Random(0);
+        for (String input : UrlCorpusGenerator.realistic(0).generate(2000)) {
+            for (Canonicalizer canonicalizer : CANONICALIZERS) {
+                ParsedUrl url = ParsedUrl.parseUrl(input);
+                canonicalizer.canonicalize(url);
+                assertFalse(url.isDirty());
+                edit(url, random);
+                ParsedUrl expected = new ParsedUrl(url);
+                canonicalizer.canonicalize(expected);
+                canonicalizer.recanonicalize(url);
+                assertEquals(input, expected.toString(), url.toString());
+                assertFalse(url.isDirty());
+            }
+        }
+    }
+
+    @Test
+    public void testDirtyTracking() {
+        ParsedUrl url = ParsedUrl.parseUrl("http://example.com/a?b");
+        assertTrue(url.isDirty());
+        Canonicalizer.SEMANTIC.canonicalize(url);
+        assertFalse(url.isDirty());
+        url.setQuery("b");
+        assertFalse("setting the same value isn't a change", url.isDirty());
+        url.setQuery("x");
+        assertTrue(url.isDirty());
+        assertEquals(1 << ParsedUrl.QUERY, url.dirtyComponents());
+
+        Canonicalizer.SEMANTIC.recanonicalize(url);
+        assertFalse(url.isDirty());
+        assertEquals("http://example.com/a?x", url.toString());
+        url.setPath("/x/../y");
+        Canonicalizer.SEMANTIC.recanonicalize(url);
+        assertEquals("http://example.com/y?x", url.toString());
+    }
+
+    @Test
+    public void testAggressiveHttpsDefaultPort() {
+        // aggressive turns https://x.com:80/p into http://x.com:80/p, and only a
+        // second pass elides the port, so its recanonicalize reruns every step
+        ParsedUrl url = ParsedUrl.parseUrl("https://x.com:80/p");
+        Canonicalizer.AGGRESSIVE.canonicalize(url);
+        assertEquals("http://x.com:80/p", url.toString());
+        url.setPath("/q");
+        Canonicalizer.AGGRESSIVE.recanonicalize(url);
+        assertEquals("http://x.com/q", url.toString());
+        assertFalse(url.isDirty());
+    }
+
+    @Test
+    public void testDirtyTrackingOfLazyComponents() {
+        ParsedUrl[] urls = {ParsedUrl.parseUrl("http://example.com/päth?q"),
+                ParsedUrl.parseUrl("http://example.com/päth?q".getBytes(StandardCharsets.UTF_8))};
+        for (ParsedUrl url : urls) {
+            url.markClean();
+            url.setPath("/päth");
+            url.setQuery("q");
+            assertFalse(url.isDirty());
+            url.setPath("/päth/");
+            assertEquals(1 << ParsedUrl.PATH, url.dirtyComponents());
+            url.setQuery("Q");
+            assertEquals(1 << ParsedUrl.PATH | 1 << ParsedUrl.QUERY, url.dirtyComponents());
+            assertEquals("http://example.com/päth/?Q", url.toString());
+        }
+    }
+
+    private static void edit(ParsedUrl url, Random random) {
+        int edits = 1 + random.nextInt(2);
+        for (int i = 0; i < edits; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    url.setPath(pick(PATHS, random));
+                    break;
+                case 1:
+                    url.setQuestionMark("?");
+                    url.setQuery(pick(QUERIES, random));
+                    break;
+                case 2:
+                    url.setHost(pick(HOSTS, random));
+                    break;
+                case 3:
+                    url.setHashSign("#");
+                    url.setFragment(pick(FRAGMENTS, random));
+                    break;
+                case 4:
+                    String port = pick(PORTS, random);
+                    url.setColonBeforePort(port.isEmpty() ? "" : ":");
+                    url.setPort(port);
+                    break;
+                default:
+                    url.setScheme(pick(SCHEMES, random));
+                    break;
+            }
+        }
+    }
+
+    private static String pick(String[] values, Random random) {
+        return values[random.nextInt(values.length)];
+    }
+}
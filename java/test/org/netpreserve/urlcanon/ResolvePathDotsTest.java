@@ -81,4 +81,10 @@ public class ResolvePathDotsTest {
     public void test() {
         assertEquals(expected, WhatwgCanonicalizer.resolvePathDots(new String(input), special).toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testWindow() {
+        StringBuilder buffer = new StringBuilder("x/./").append(input).append("/../y");
+        assertEquals(expected, WhatwgCanonicalizer.resolvePathDots(buffer, 4, 4 + input.length(), special));
+    }
+}
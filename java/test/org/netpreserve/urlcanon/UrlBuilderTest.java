@@ -0,0 +1,83 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UrlBuilderTest {
+    private static final Canonicalizer[] CANONICALIZERS = {
+            Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE, Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE,
+    };
+
+    @Test
+    public void testTypedComponents() {
+        UrlBuilder builder = new UrlBuilder()
+                .scheme("HTTPS").host("Bücher.Example").port(443)
+                .pathSegment("a b").pathSegment("c/d?").pathSegment("100%")
+                .queryParam("q", "x&y=z").queryParam("é", "")
+                .fragment("top");
+        assertEquals("https://xn--bcher-kva.example/a%20b/c%2Fd%3F/100%25?q=x%26y%3Dz&%C3%A9=#top", builder.buildString());
+
+        builder.port(8443).path("/sitemaps/../index.xml").query(null).fragment(null);
+        assertEquals("https://xn--bcher-kva.example:8443/index.xml", builder.buildString());
+
+        assertEquals("http://example.com/", new UrlBuilder().scheme("http").host("EXAMPLE.com").buildString());
+        assertEquals("http://127.0.0.1/x", new UrlBuilder().scheme("http").host("0x7f.1").path("x").buildString());
+        assertEquals("http://user:p%40ss@[::1]:8080/",
+                new UrlBuilder().scheme("http").userinfo("user", "p@ss").host("[0:0::1]").port(8080).buildString());
+        assertEquals("http://example.com/?a=1&b=2",
+                new UrlBuilder(Canonicalizer.SEMANTIC).scheme("http").host("example.com")
+                        .queryParam("b", "2").queryParam("a", "1").fragment("frag").buildString());
+
+        ParsedUrl url = new UrlBuilder().scheme("http").host("example.com").build();
+        assertFalse(url.isDirty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidHost() {
+        new UrlBuilder().host("example.com/path");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPort() {
+        new UrlBuilder().port(65536);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScheme() {
+        new UrlBuilder().scheme("1http");
+    }
+
+    @Test
+    public void testSameAsParsing() {
+        int built = 0;
+        for (String input : UrlCorpusGenerator.realistic(0).generate(2000)) {
+            ParsedUrl parsed = ParsedUrl.parseUrl(input);
+            if (!parsed.getLeadingJunk().isEmpty() || !parsed.getTrailingJunk().isEmpty()
+                    || !parsed.getSlashes().equals("//") || parsed.getHost().isEmpty()
+                    || !parsed.getScheme().matches("[a-zA-Z][a-zA-Z0-9+.-]*")
+                    || !parsed.getPort().matches("[0-9]{0,5}") || !parsed.getColonBeforePort().equals(parsed.getPort().isEmpty() ? "" : ":")
+                    || !parsed.getUsername().isEmpty() || !parsed.getPassword().isEmpty() || !parsed.getAtSign().isEmpty()) {
+                continue;
+            }
+            int port = parsed.getPort().isEmpty() ? -1 : Integer.parseInt(parsed.getPort());
+            if (port > 65535) {
+                continue;
+            }
+            for (Canonicalizer canonicalizer : CANONICALIZERS) {
+                UrlBuilder builder = new UrlBuilder(canonicalizer)
+                        .scheme(parsed.getScheme()).host(parsed.getHost()).port(port).path(parsed.getPath());
+                if (!parsed.getQuestionMark().isEmpty()) builder.query(parsed.getQuery());
+                if (!parsed.getHashSign().isEmpty()) builder.fragment(parsed.getFragment());
+
+                ParsedUrl expected = ParsedUrl.parseUrl(input);
+                canonicalizer.canonicalize(expected);
+                assertEquals(input, expected.toString(), builder.buildString());
+            }
+            built++;
+        }
+        assertTrue(built > 1000);
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * UrlCorpusGenerator.java - deterministic synthetic url workloads
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.netpreserve.urlcanon;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Generates synthetic urls for benchmarking and regression testing. Unlike
+ * the json test data, which is a collection of edge cases, the output follows
+ * a configurable mix of url shapes, each of which exercises a particular slow
+ * path of the parser or canonicalizers.
+ *
+ * The sequence of urls is fully determined by the seed and the weights.
+ *
+ * Usage from the command line: {@code UrlCorpusGenerator count [seed [shape]]}
+ */
+public class UrlCorpusGenerator {
+
+    public enum Shape {
+        /** ordinary http(s) url with a short path and maybe a short query */
+        PLAIN(68),
+        /** unicode host names, exercises punycodeSpecialHost */
+        IDN_HOST(3),
+        /** decimal, octal, hex and abbreviated ipv4 hosts */
+        IPV4_HOST(2),
+        /** compressed, uncompressed and ipv4-embedded ipv6 hosts */
+        IPV6_HOST(1),
+        /** long query with parameters already in alphabetical order */
+        SORTED_QUERY(4),
+        /** long query with parameters in random order, tracker style */
+        UNSORTED_QUERY(8),
+        /** session ids stripped by the aggressive canonicalizer */
+        SESSION_ID(5),
+        /** ./ and ../ segments, literal and percent-encoded */
+        DOT_SEGMENTS(4),
+        /** paths percent-encoded two or three times over */
+        MULTI_PCT_ENCODED(5);
+
+        final int defaultWeight;
+
+        Shape(int defaultWeight) {
+            this.defaultWeight = defaultWeight;
+        }
+    }
+
+    private static final String[] WORDS = {"news", "article", "images", "static", "blog", "search", "product",
+            "category", "index", "archive", "assets", "user", "profile", "2017", "content", "media", "page", "view",
+            "default", "catalog", "library", "about", "contact", "help", "wiki", "download", "files", "en", "api"};
+    private static final String[] TLDS = {"com", "org", "net", "gov.au", "co.uk", "de", "fr", "edu", "io", "jp"};
+    private static final String[] EXTENSIONS = {"", "", "", "/", ".html", ".htm", ".php", ".aspx", ".jpg", ".css",
+            ".js", ".pdf"};
+    private static final String[] IDN_LABELS = {"bücher", "straße", "пример", "испытание", "例え", "テスト", "δοκιμή",
+            "مثال", "חנות", "café", "ñandú", "ＥＸＡＭＰＬＥ", "xn--bcher-kva", "Bücher"};
+    private static final String[] QUERY_KEYS = {"id", "page", "q", "sort", "lang", "ref", "utm_source", "utm_medium",
+            "utm_campaign", "utm_term", "utm_content", "fbclid", "gclid", "s", "cat", "tag", "offset", "limit", "v",
+            "format", "view", "from", "to", "session", "t", "callback", "_"};
+    private static final String SESSION_CHARS = "0123456789abcdefghijklmnopqrstuvwxyz";
+    private static final String UNRESERVED_AND_SPECIAL = "abcXYZ019 ~!$&'()*+,;=:@/?#[]%\"<>^`{|}é中";
+
+    private final SplittableRandom random;
+    private final Shape[] shapes;
+    private final int[] cumulativeWeights;
+    private final StringBuilder buf = new StringBuilder();
+
+    /**
+     * @param seed seed for the pseudorandom sequence
+     * @param weights relative frequency of each shape; shapes that are absent or zero are never generated
+     */
+    public UrlCorpusGenerator(long seed, Map<Shape, Integer> weights) {
+        this.random = new SplittableRandom(seed);
+        List<Shape> shapeList = new ArrayList<>();
+        List<Integer> cumulative = new ArrayList<>();
+        int total = 0;
+        for (Shape shape : Shape.values()) {
+            Integer weight = weights.get(shape);
+            if (weight != null && weight > 0) {
+                total += weight;
+                shapeList.add(shape);
+                cumulative.add(total);
+            }
+        }
+        if (shapeList.isEmpty()) {
+            throw new IllegalArgumentException("at least one shape must have a positive weight");
+        }
+        this.shapes = shapeList.toArray(new Shape[0]);
+        this.cumulativeWeights = new int[cumulative.size()];
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            cumulativeWeights[i] = cumulative.get(i);
+        }
+    }
+
+    /**
+     * A generator with the default mix of shapes, which is roughly what shows up in crawl outlinks.
+     */
+    public static UrlCorpusGenerator realistic(long seed) {
+        Map<Shape, Integer> weights = new EnumMap<>(Shape.class);
+        for (Shape shape : Shape.values()) {
+            weights.put(shape, shape.defaultWeight);
+        }
+        return new UrlCorpusGenerator(seed, weights);
+    }
+
+    /**
+     * A generator producing only urls of the given shape.
+     */
+    public static UrlCorpusGenerator only(Shape shape, long seed) {
+        return new UrlCorpusGenerator(seed, Collections.singletonMap(shape, 1));
+    }
+
+    public List<String> generate(int count) {
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add(next());
+        }
+        return urls;
+    }
+
+    public String next() {
+        int n = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = 0;
+        while (n >= cumulativeWeights[i]) i++;
+        return next(shapes[i]);
+    }
+
+    private String next(Shape shape) {
+        buf.setLength(0);
+        switch (shape) {
+            case PLAIN:
+                scheme();
+                host();
+                path(1 + random.nextInt(4));
+                if (random.nextInt(3) == 0) {
+                    buf.append('?');
+                    query(1 + random.nextInt(3), false);
+                }
+                if (random.nextInt(20) == 0) {
+                    buf.append('#').append(pick(WORDS));
+                }
+                break;
+            case IDN_HOST:
+                scheme();
+                if (random.nextBoolean()) buf.append(pick(WORDS)).append('.');
+                buf.append(pick(IDN_LABELS));
+                buf.append(random.nextInt(4) == 0 ? "。" : ".");
+                buf.append(pick(TLDS));
+                path(random.nextInt(3));
+                break;
+            case IPV4_HOST:
+                scheme();
+                ipv4();
+                port();
+                path(random.nextInt(3));
+                break;
+            case IPV6_HOST:
+                scheme();
+                buf.append('[');
+                ipv6();
+                buf.append(']');
+                port();
+                path(random.nextInt(3));
+                break;
+            case SORTED_QUERY:
+                scheme();
+                host();
+                path(1 + random.nextInt(3));
+                buf.append('?');
+                query(20 + random.nextInt(60), true);
+                break;
+            case UNSORTED_QUERY:
+                scheme();
+                host();
+                path(1 + random.nextInt(3));
+                buf.append('?');
+                query(20 + random.nextInt(60), false);
+                break;
+            case SESSION_ID:
+                sessionId();
+                break;
+            case DOT_SEGMENTS:
+                scheme();
+                host();
+                dotSegments();
+                break;
+            case MULTI_PCT_ENCODED:
+                scheme();
+                host();
+                multiPctEncodedPath();
+                if (random.nextBoolean()) {
+                    buf.append("?q=");
+                    buf.append(pctEncode(pctEncode(randomText(8), false), false));
+                }
+                break;
+            default:
+                throw new IllegalStateException(shape.toString());
+        }
+        return buf.toString();
+    }
+
+    private String pick(String[] array) {
+        return array[random.nextInt(array.length)];
+    }
+
+    private void scheme() {
+        switch (random.nextInt(10)) {
+            case 0:
+                buf.append("HTTP://");
+                break;
+            case 1:
+            case 2:
+            case 3:
+                buf.append("http://");
+                break;
+            default:
+                buf.append("https://");
+        }
+    }
+
+    private void host() {
+        if (random.nextInt(3) == 0) buf.append("www.");
+        int labels = 1 + random.nextInt(2);
+        for (int i = 0; i < labels; i++) {
+            buf.append(pick(WORDS));
+            if (random.nextInt(4) == 0) buf.append(random.nextInt(100));
+            buf.append('.');
+        }
+        buf.append(pick(TLDS));
+        if (random.nextInt(50) == 0) buf.append(":80");
+    }
+
+    private void port() {
+        if (random.nextInt(4) == 0) buf.append(':').append(random.nextBoolean() ? 80 : 1024 + random.nextInt(60000));
+    }
+
+    private void path(int segments) {
+        for (int i = 0; i < segments; i++) {
+            buf.append('/').append(pick(WORDS));
+        }
+        if (segments > 0) {
+            buf.append(pick(EXTENSIONS));
+        }
+    }
+
+    private void query(int params, boolean sorted) {
+        List<String> pairs = new ArrayList<>(params);
+        for (int i = 0; i < params; i++) {
+            String value;
+            switch (random.nextInt(4)) {
+                case 0:
+                    value = Integer.toString(random.nextInt(100000));
+                    break;
+                case 1:
+                    value = randomToken(SESSION_CHARS, 8 + random.nextInt(24));
+                    break;
+                case 2:
+                    value = pctEncode(randomText(4 + random.nextInt(8)), false);
+                    break;
+                default:
+                    value = pick(WORDS);
+            }
+            pairs.add(pick(QUERY_KEYS) + "=" + value);
+        }
+        if (sorted) {
+            Collections.sort(pairs);
+        }
+        for (int i = 0; i < pairs.size(); i++) {
+            if (i > 0) buf.append('&');
+            buf.append(pairs.get(i));
+        }
+    }
+
+    private void ipv4() {
+        int parts = random.nextInt(8) == 0 ? 1 + random.nextInt(3) : 4;
+        for (int i = 0; i < parts; i++) {
+            if (i > 0) buf.append('.');
+            long max = i == parts - 1 ? (1L << (8 * (5 - parts))) : 256;
+            long value = (random.nextLong() >>> 1) % max;
+            switch (random.nextInt(4)) {
+                case 0:
+                    buf.append("0x").append(Long.toHexString(value));
+                    break;
+                case 1:
+                    buf.append('0').append(Long.toOctalString(value));
+                    break;
+                default:
+                    buf.append(value);
+            }
+        }
+    }
+
+    private void ipv6() {
+        int[] groups = new int[8];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = random.nextInt(3) == 0 ? 0 : random.nextInt(0x10000);
+        }
+        switch (random.nextInt(3)) {
+            case 0: // uncompressed, maybe with leading zeroes and upper case
+                for (int i = 0; i < groups.length; i++) {
+                    if (i > 0) buf.append(':');
+                    String hex = Integer.toHexString(groups[i]);
+                    buf.append(random.nextBoolean() ? hex.toUpperCase(Locale.ROOT) : hex);
+                }
+                break;
+            case 1: // compressed run of zeroes
+                int start = random.nextInt(7);
+                int end = start + 1 + random.nextInt(8 - start);
+                for (int i = 0; i < start; i++) {
+                    buf.append(Integer.toHexString(groups[i])).append(':');
+                }
+                if (start == 0) buf.append(':');
+                for (int i = end; i < groups.length; i++) {
+                    buf.append(':').append(Integer.toHexString(groups[i]));
+                }
+                if (end == groups.length) buf.append(':');
+                break;
+            default: // ipv4 embedded
+                buf.append("::ffff:");
+                buf.append(random.nextInt(256)).append('.').append(random.nextInt(256)).append('.')
+                        .append(random.nextInt(256)).append('.').append(random.nextInt(256));
+        }
+    }
+
+    private void sessionId() {
+        scheme();
+        host();
+        switch (random.nextInt(8)) {
+            case 0:
+                path(2);
+                buf.append(";jsessionid=").append(randomToken(SESSION_CHARS, 32));
+                break;
+            case 1:
+                buf.append("/(").append(randomToken(SESSION_CHARS, 24)).append(")/");
+                buf.append(pick(WORDS)).append(".aspx");
+                break;
+            case 2:
+                buf.append("/(a(").append(randomToken(SESSION_CHARS, 24)).append(")f(")
+                        .append(randomToken(SESSION_CHARS, 24)).append("))/").append(pick(WORDS)).append(".aspx");
+                break;
+            default:
+                path(1 + random.nextInt(3));
+                buf.append('?');
+                List<String> params = new ArrayList<>();
+                params.add("id=" + random.nextInt(1000));
+                switch (random.nextInt(6)) {
+                    case 0:
+                        params.add("jsessionid=" + randomToken(SESSION_CHARS, 10 + random.nextInt(30)));
+                        break;
+                    case 1:
+                        params.add("sessionid=" + randomToken(SESSION_CHARS, 16 + random.nextInt(16)));
+                        break;
+                    case 2:
+                        params.add("PHPSESSID=" + randomToken(SESSION_CHARS, 26));
+                        break;
+                    case 3:
+                        params.add("sid=" + randomToken(SESSION_CHARS, 16 + random.nextInt(16)));
+                        break;
+                    case 4:
+                        params.add("ASPSESSIONID" + randomToken("ABCDEFGHIJKLMNOPQRSTUVWXYZ", 8) + "="
+                                + randomToken("ABCDEFGHIJKLMNOPQRSTUVWXYZ", 24));
+                        break;
+                    default:
+                        params.add("CFID=" + random.nextInt(1000000) + "&CFTOKEN=" + randomToken(SESSION_CHARS, 8)
+                                + "-" + randomToken(SESSION_CHARS, 4));
+                }
+                if (random.nextBoolean()) params.add("page=" + random.nextInt(50));
+                if (random.nextBoolean()) Collections.reverse(params);
+                buf.append(String.join("&", params));
+        }
+    }
+
+    private void dotSegments() {
+        String[] dots = {".", "..", "%2e", "%2E%2e", ".%2e", "%2e."};
+        int segments = 2 + random.nextInt(8);
+        for (int i = 0; i < segments; i++) {
+            buf.append(random.nextInt(10) == 0 ? '\\' : '/');
+            if (random.nextInt(3) == 0) {
+                buf.append(pick(dots));
+            } else {
+                buf.append(pick(WORDS));
+            }
+        }
+        if (random.nextBoolean()) buf.append('/');
+    }
+
+    private void multiPctEncodedPath() {
+        int segments = 1 + random.nextInt(4);
+        for (int i = 0; i < segments; i++) {
+            buf.append('/');
+            String segment = randomText(3 + random.nextInt(10));
+            int times = 1 + random.nextInt(3);
+            for (int j = 0; j < times; j++) {
+                segment = pctEncode(segment, j > 0);
+            }
+            buf.append(segment);
+        }
+    }
+
+    private String randomToken(String chars, int length) {
+        char[] token = new char[length];
+        for (int i = 0; i < length; i++) {
+            token[i] = chars.charAt(random.nextInt(chars.length()));
+        }
+        return new String(token);
+    }
+
+    private String randomText(int length) {
+        return randomToken(UNRESERVED_AND_SPECIAL, length);
+    }
+
+    /**
+     * Percent-encodes everything but ascii letters and digits. If percentOnly
+     * is true only '%' is encoded, as happens when an already encoded string
+     * gets encoded again.
+     */
+    private static String pctEncode(String s, boolean percentOnly) {
+        StringBuilder sb = new StringBuilder(s.length() * 3);
+        for (byte b : s.getBytes(UTF_8)) {
+            char c = (char) (b & 0xff);
+            boolean alnum = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+            if (alnum || (percentOnly && c != '%')) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: UrlCorpusGenerator count [seed [shape]]");
+            System.exit(1);
+        }
+        long count = Long.parseLong(args[0]);
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        UrlCorpusGenerator generator = args.length > 2 ? only(Shape.valueOf(args[2]), seed) : realistic(seed);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, UTF_8));
+        for (long i = 0; i < count; i++) {
+            out.write(generator.next());
+            out.write('\n');
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,33 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+import org.netpreserve.urlcanon.UrlCorpusGenerator.Shape;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class UrlCorpusGeneratorTest {
+    @Test
+    public void testDeterministic() {
+        assertEquals(UrlCorpusGenerator.realistic(42).generate(1000), UrlCorpusGenerator.realistic(42).generate(1000));
+        assertNotEquals(UrlCorpusGenerator.realistic(42).generate(1000), UrlCorpusGenerator.realistic(43).generate(1000));
+    }
+
+    @Test
+    public void testEveryShapeCanonicalizes() {
+        Canonicalizer[] canonicalizers = {Canonicalizer.WHATWG, Canonicalizer.SEMANTIC_PRECISE,
+                Canonicalizer.SEMANTIC, Canonicalizer.AGGRESSIVE};
+        for (Shape shape : Shape.values()) {
+            List<String> urls = UrlCorpusGenerator.only(shape, 0).generate(500);
+            for (String input : urls) {
+                assertEquals(input, ParsedUrl.parseUrl(input).toString());
+                for (Canonicalizer canonicalizer : canonicalizers) {
+                    ParsedUrl url = ParsedUrl.parseUrl(input);
+                    canonicalizer.canonicalize(url);
+                }
+            }
+        }
+    }
+}
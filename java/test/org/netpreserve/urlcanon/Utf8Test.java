@@ -0,0 +1,106 @@
+package org.netpreserve.urlcanon;
+
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Utf8Test {
+    @Test
+    public void testSameAsGetBytes() {
+        Random random = new Random(0);
+        char[] chars = {'a', '%', 'é', '߿', 'ࠀ', '中', '￿', '\ud83d', '\ude00'};
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = random.nextInt(12); i > 0; i--) {
+                sb.append(chars[random.nextInt(chars.length)]);
+            }
+            String s = sb.toString();
+            byte[] expected = s.getBytes(UTF_8);
+            assertEquals(s, expected.length, Utf8.length(s, 0, s.length()));
+            assertEncodes(expected, s);
+        }
+    }
+
+    @Test
+    public void testOverflowWritesNothing() {
+        byte[] bytes = new byte[8];
+        try {
+            Utf8.encode("http://é", bytes, 0);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            assertArrayEquals(new byte[8], bytes);
+        }
+        assertEquals(7, Utf8.encode("http://", bytes, 1));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+        try {
+            Utf8.encode("http://é", buffer);
+            fail();
+        } catch (BufferOverflowException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testUrls() throws Exception {
+        List<String> inputs = new ArrayList<>(ParserIdempotenceTest.loadData());
+        inputs.addAll(UrlCorpusGenerator.realistic(2).generate(2000));
+        for (Canonicalizer canonicalizer : Arrays.asList(Canonicalizer.WHATWG, Canonicalizer.AGGRESSIVE)) {
+            for (String input : inputs) {
+                int capacity = input.length() * 9 + 16; // percent-encoded, at the most
+                ParsedUrl url = ParsedUrl.parseUrl(input);
+                canonicalizer.canonicalize(url);
+                ParsedUrl expected = new ParsedUrl(url);
+
+                // formatted on the fly, then from the cached strings
+                for (int i = 0; i < 2; i++) {
+                    byte[] bytes = new byte[capacity];
+                    int length = url.writeUtf8(bytes, 1);
+                    assertEquals(input, expected.toString(), new String(bytes, 1, length, UTF_8));
+                    length = url.writeSurtUtf8(bytes, 0);
+                    assertEquals(input, expected.surt(), new String(bytes, 0, length, UTF_8));
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+                    url.writeSsurtUtf8(buffer);
+                    assertEquals(input, expected.ssurt(), new String(bytes(buffer), UTF_8));
+                    url.toString();
+                    url.surt();
+                    url.ssurt();
+                }
+
+                byte[] bytes = new byte[capacity];
+                int length = canonicalizer.canonicalize(input, bytes, 3);
+                assertEquals(input, expected.toString(), new String(bytes, 3, length, UTF_8));
+                ByteBuffer buffer = ByteBuffer.allocate(capacity);
+                canonicalizer.canonicalize(new StringBuilder(input), buffer);
+                assertEquals(input, expected.toString(), new String(bytes(buffer), UTF_8));
+            }
+        }
+    }
+
+    private static void assertEncodes(byte[] expected, String s) {
+        byte[] bytes = new byte[expected.length + 2];
+        assertEquals(s, expected.length, Utf8.encode(s, bytes, 1));
+        assertArrayEquals(s, expected, Arrays.copyOfRange(bytes, 1, expected.length + 1));
+        for (ByteBuffer buffer : Arrays.asList(ByteBuffer.allocate(expected.length),
+                ByteBuffer.allocateDirect(expected.length))) {
+            Utf8.encode(new StringBuilder(s), buffer);
+            assertArrayEquals(s, expected, bytes(buffer));
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}